@@ -0,0 +1,21 @@
+package com.mybatis.plugin.tenant.benchmark;
+
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Update;
+
+/**
+ * 批量插入基准测试的mapper
+ */
+public interface BatchInsertMapper {
+
+    @Update("create table if not exists t_order (id bigint primary key, name varchar(64), tenant_id varchar(32))")
+    void createTable();
+
+    @Update("truncate table t_order")
+    void truncate();
+
+    @Insert("insert into t_order (id, name) values (#{id}, #{name})")
+    int insert(@Param("id") long id, @Param("name") String name);
+
+}
@@ -0,0 +1,27 @@
+package com.mybatis.plugin.tenant.benchmark;
+
+import com.mybatis.plugin.tenant.TenantProperties;
+
+/**
+ * 基准测试公共配置
+ */
+public final class BenchmarkSupport {
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * 默认插件配置: 启用插件, 不启用缓存, 忽略字典表
+     *
+     * @return TenantProperties
+     */
+    public static TenantProperties tenantProperties() {
+        TenantProperties tenantProperties = new TenantProperties();
+        tenantProperties.setEnable(true);
+        tenantProperties.setColumn("tenant_id");
+        tenantProperties.setIgnoreTables("t_dict,t_region");
+        tenantProperties.setMapperLocations(BenchmarkSupport.class.getPackage().getName());
+        return tenantProperties;
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.mybatis.plugin.tenant.benchmark;
+
+/**
+ * 基准测试sql样本
+ * <p>
+ * 覆盖常见的业务sql形态, 新增样本时只追加, 避免历史结果不可比
+ * </p>
+ */
+public enum SqlCorpus {
+
+    SIMPLE_SELECT("SELECT id, name, status FROM t_order WHERE user_id = ? AND status IN (?, ?) ORDER BY id DESC LIMIT ?"),
+
+    MULTI_JOIN("SELECT o.id, u.name, i.sku, p.amount FROM t_order o "
+            + "LEFT JOIN t_user u ON u.id = o.user_id "
+            + "INNER JOIN t_order_item i ON i.order_id = o.id "
+            + "LEFT JOIN t_payment p ON p.order_id = o.id "
+            + "WHERE o.status = ? OR o.deleted = 0"),
+
+    TRAILING_ON_JOIN("SELECT * FROM t_order o LEFT JOIN t_order_item i LEFT JOIN t_sku s "
+            + "ON s.id = i.sku_id ON i.order_id = o.id WHERE o.id = ?"),
+
+    NESTED_SUB_SELECT("SELECT o.id, (SELECT COUNT(1) FROM t_order_item i WHERE i.order_id = o.id) AS cnt FROM t_order o "
+            + "WHERE o.user_id IN (SELECT u.id FROM t_user u WHERE u.level > (SELECT AVG(level) FROM t_user WHERE city = ?)) "
+            + "AND EXISTS (SELECT 1 FROM t_payment p WHERE p.order_id = o.id)"),
+
+    UNION("SELECT id, amount FROM t_order WHERE status = ? UNION ALL SELECT id, amount FROM t_order_history WHERE status = ?"),
+
+    CTE("WITH recent AS (SELECT id, user_id FROM t_order WHERE create_time > ?) "
+            + "SELECT r.id, u.name FROM recent r LEFT JOIN t_user u ON u.id = r.user_id"),
+
+    INSERT_SELECT("INSERT INTO t_order_history (id, user_id, amount) SELECT id, user_id, amount FROM t_order WHERE create_time < ?"),
+
+    INSERT_VALUES(insertValues(50)),
+
+    INSERT_ON_DUPLICATE("INSERT INTO t_stock (sku_id, warehouse_id, quantity) VALUES (?, ?, ?) "
+            + "ON DUPLICATE KEY UPDATE quantity = quantity + VALUES(quantity)"),
+
+    UPDATE("UPDATE t_order SET status = ?, update_time = ? WHERE id = ? OR parent_id = ?"),
+
+    DELETE("DELETE FROM t_order_item WHERE order_id = ?");
+
+    private final String sql;
+
+    SqlCorpus(String sql) {
+        this.sql = sql;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    private static String insertValues(int rows) {
+        StringBuilder sb = new StringBuilder("INSERT INTO t_order_item (order_id, sku_id, quantity, price) VALUES ");
+        for (int i = 0; i < rows; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append("(?, ?, ?, ?)");
+        }
+        return sb.toString();
+    }
+
+}
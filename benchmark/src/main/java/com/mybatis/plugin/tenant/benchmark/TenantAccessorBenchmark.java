@@ -0,0 +1,130 @@
+package com.mybatis.plugin.tenant.benchmark;
+
+import com.mybatis.plugin.tenant.TenantPluginUtils;
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.executor.statement.StatementHandler;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Intercepts;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.plugin.Plugin;
+import org.apache.ibatis.plugin.Signature;
+import org.apache.ibatis.reflection.DefaultReflectorFactory;
+import org.apache.ibatis.reflection.MetaObject;
+import org.apache.ibatis.reflection.ReflectorFactory;
+import org.apache.ibatis.reflection.SystemMetaObject;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.ExecutorType;
+import org.apache.ibatis.session.RowBounds;
+import org.apache.ibatis.transaction.jdbc.JdbcTransaction;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StatementHandler/BoundSql字段访问基准测试
+ * <p>
+ * 对比改写路径上的字段访问: 每次新建 SystemMetaObject, 共用 ReflectorFactory 的 MetaObject, 与 {@link TenantPluginUtils} 中缓存的字段访问,
+ * 包括解开插件代理, 读取 delegate,mappedStatement,boundSql 和写回 sql, 配合 gc profiler 对比分配
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TenantAccessorBenchmark {
+
+    private static final ReflectorFactory REFLECTOR_FACTORY = new DefaultReflectorFactory();
+
+    private StatementHandler statementHandler;
+
+    @Setup
+    public void setup() {
+        UnpooledDataSource dataSource = new UnpooledDataSource("org.h2.Driver", "jdbc:h2:mem:accessor", "sa", "");
+        Configuration configuration = new Configuration(new Environment("benchmark", new JdbcTransactionFactory(), dataSource));
+        configuration.addMapper(BatchInsertMapper.class);
+        configuration.addInterceptor(new NoopInterceptor());
+
+        MappedStatement ms = configuration.getMappedStatement(BatchInsertMapper.class.getName() + ".insert");
+        Map<String, Object> parameter = new HashMap<>();
+        parameter.put("id", 1L);
+        parameter.put("name", "order-1");
+        Executor executor = configuration.newExecutor(new JdbcTransaction(dataSource, null, false), ExecutorType.SIMPLE);
+        BoundSql boundSql = ms.getBoundSql(parameter);
+        statementHandler = configuration.newStatementHandler(executor, ms, parameter, RowBounds.DEFAULT, null, boundSql);
+        if (!Proxy.isProxyClass(statementHandler.getClass())) {
+            throw new IllegalStateException("StatementHandler is not wrapped by plugin");
+        }
+    }
+
+    @Benchmark
+    public Object metaObject() {
+        Object target = statementHandler;
+        while (Proxy.isProxyClass(target.getClass())) {
+            target = SystemMetaObject.forObject(target).getValue("h.target");
+        }
+        MetaObject handler = SystemMetaObject.forObject(SystemMetaObject.forObject(target).getValue("delegate"));
+        MappedStatement ms = (MappedStatement) handler.getValue("mappedStatement");
+        BoundSql boundSql = (BoundSql) handler.getValue("boundSql");
+        MetaObject metaBoundSql = SystemMetaObject.forObject(boundSql);
+        metaBoundSql.setValue("sql", boundSql.getSql());
+        return ms;
+    }
+
+    /**
+     * 共用 ReflectorFactory 的 MetaObject, 只缓存反射信息, 每次访问仍新建 MetaObject
+     */
+    @Benchmark
+    public Object sharedReflectorMetaObject() {
+        Object target = statementHandler;
+        while (Proxy.isProxyClass(target.getClass())) {
+            target = metaObject(target).getValue("h.target");
+        }
+        MetaObject handler = metaObject(metaObject(target).getValue("delegate"));
+        MappedStatement ms = (MappedStatement) handler.getValue("mappedStatement");
+        BoundSql boundSql = (BoundSql) handler.getValue("boundSql");
+        metaObject(boundSql).setValue("sql", boundSql.getSql());
+        return ms;
+    }
+
+    @Benchmark
+    public Object cachedAccessor() {
+        TenantPluginUtils.MPStatementHandler handler = TenantPluginUtils.mpStatementHandler(statementHandler);
+        MappedStatement ms = handler.mappedStatement();
+        TenantPluginUtils.MPBoundSql mpBs = handler.mPBoundSql();
+        mpBs.sql(mpBs.sql());
+        return ms;
+    }
+
+    private static MetaObject metaObject(Object object) {
+        return MetaObject.forObject(object, SystemMetaObject.DEFAULT_OBJECT_FACTORY, SystemMetaObject.DEFAULT_OBJECT_WRAPPER_FACTORY, REFLECTOR_FACTORY);
+    }
+
+    /**
+     * 只用于生成插件代理
+     */
+    @Intercepts(@Signature(type = StatementHandler.class, method = "prepare", args = {Connection.class, Integer.class}))
+    public static class NoopInterceptor implements Interceptor {
+
+        @Override
+        public Object intercept(Invocation invocation) throws Throwable {
+            return invocation.proceed();
+        }
+
+        @Override
+        public Object plugin(Object target) {
+            return Plugin.wrap(target, this);
+        }
+    }
+
+}
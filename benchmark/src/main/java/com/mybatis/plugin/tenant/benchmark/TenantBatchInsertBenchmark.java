@@ -0,0 +1,77 @@
+package com.mybatis.plugin.tenant.benchmark;
+
+import com.mybatis.plugin.tenant.TenantPluginContext;
+import com.mybatis.plugin.tenant.TenantPluginInterceptor;
+import com.mybatis.plugin.tenant.TenantProperties;
+import net.sf.jsqlparser.expression.StringValue;
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.session.*;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BatchExecutor批量插入基准测试
+ * <p>
+ * 在H2内存库中以 ExecutorType.BATCH 插入10万行后统一flush,
+ * 分别对比不启用插件, 字面量租户ID, 绑定参数租户ID三种情况
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TenantBatchInsertBenchmark {
+
+    private static final int ROWS = 100_000;
+
+    @Param({"NONE", "LITERAL", "BIND"})
+    public String plugin;
+
+    private SqlSessionFactory sqlSessionFactory;
+
+    @Setup
+    public void setup() {
+        UnpooledDataSource dataSource = new UnpooledDataSource("org.h2.Driver", "jdbc:h2:mem:batch_" + plugin + ";DB_CLOSE_DELAY=-1", "sa", "");
+        Configuration configuration = new Configuration(new Environment("benchmark", new JdbcTransactionFactory(), dataSource));
+        configuration.addMapper(BatchInsertMapper.class);
+
+        TenantProperties tenantProperties = BenchmarkSupport.tenantProperties();
+        tenantProperties.setEnable(!"NONE".equals(plugin));
+        tenantProperties.setBindParameter("BIND".equals(plugin));
+        new TenantPluginContext(tenantProperties);
+        if (tenantProperties.getEnable()) {
+            configuration.addInterceptor(new TenantPluginInterceptor(() -> new StringValue("10001")));
+        }
+        sqlSessionFactory = new SqlSessionFactoryBuilder().build(configuration);
+
+        try (SqlSession sqlSession = sqlSessionFactory.openSession(true)) {
+            sqlSession.getMapper(BatchInsertMapper.class).createTable();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void truncate() {
+        try (SqlSession sqlSession = sqlSessionFactory.openSession(true)) {
+            sqlSession.getMapper(BatchInsertMapper.class).truncate();
+        }
+    }
+
+    @Benchmark
+    public int batchInsert() {
+        try (SqlSession sqlSession = sqlSessionFactory.openSession(ExecutorType.BATCH, false)) {
+            BatchInsertMapper mapper = sqlSession.getMapper(BatchInsertMapper.class);
+            for (long id = 0; id < ROWS; id++) {
+                mapper.insert(id, "order-" + id);
+            }
+            int batches = sqlSession.flushStatements().size();
+            sqlSession.commit();
+            return batches;
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.mybatis.plugin.tenant.benchmark;
+
+import com.mybatis.plugin.tenant.TenantPluginContext;
+import com.mybatis.plugin.tenant.TenantPluginInterceptor;
+import net.sf.jsqlparser.expression.StringValue;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * sql改写基准测试
+ * <p>
+ * 直接调用 parserSingle/parserMulti, 不经过缓存, 衡量完整的解析,改写,输出开销
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TenantRewriteBenchmark {
+
+    @Param
+    public SqlCorpus corpus;
+
+    private TenantPluginInterceptor interceptor;
+
+    private String sql;
+
+    @Setup
+    public void setup() {
+        interceptor = new TenantPluginInterceptor(() -> new StringValue("10001"));
+        new TenantPluginContext(BenchmarkSupport.tenantProperties());
+        sql = corpus.getSql();
+    }
+
+    @Benchmark
+    public String parserSingle() {
+        return interceptor.parserSingle(sql, null);
+    }
+
+    @Benchmark
+    public String parserMulti() {
+        return interceptor.parserMulti(sql, null);
+    }
+
+}
@@ -2,6 +2,9 @@ package com.mybatis.plugin.tenant;
 
 import net.sf.jsqlparser.expression.Expression;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * 获取租户ID接口定义
  */
@@ -11,15 +14,27 @@ public interface ITenantDefine {
      * 获取租户ID
      * <p>
      * 注意:
-     * 1.多线程环境下读取不到web上下文环境
-     * 2.测试单元中会出现部分mapper方法报错的情况
-     * 3.对sql性能有要求的
-     * 以上情况不推荐使用多租户插件
-     * 解决方法: 自己手动写sql,在对应的mapper方法上添加注解 {@link IgnoreTenant}
+     * 1.每条拦截的语句只调用一次, 结果用于该语句中所有的租户条件
+     * 2.当前线程通过 {@link TenantContextHolder} 设置了租户ID时不会调用
+     * 3.异步线程读取不到web上下文环境, 提交任务时使用 {@link TenantContextHolder#wrap(Runnable)} 等方法传递租户
+     * 4.不需要租户条件的sql, 在对应的mapper方法上添加注解 {@link IgnoreTenant}
      * <p/>
      *
      * @return
      */
     Expression getTenantId();
 
+    /**
+     * 获取租户ID集合
+     * <p>
+     * 跨租户的批处理任务返回多个租户ID时, 租户条件输出为 tenant_id IN (...), 一次查询多个租户;
+     * insert语句的租户ID无法确定, 返回多个租户ID时抛出异常
+     * <p/>
+     *
+     * @return 默认为 {@link #getTenantId()}
+     */
+    default List<Expression> getTenantIds() {
+        return Collections.singletonList(getTenantId());
+    }
+
 }
@@ -0,0 +1,52 @@
+package com.mybatis.plugin.tenant;
+
+import org.apache.ibatis.mapping.SqlCommandType;
+
+/**
+ * 多租户插件监控指标接口定义
+ * <p>
+ * 默认不记录任何指标, 引入micrometer时由 {@link MicrometerTenantPluginMetrics} 实现
+ * </p>
+ */
+public interface ITenantPluginMetrics {
+
+    ITenantPluginMetrics NOOP = new ITenantPluginMetrics() {
+    };
+
+    /**
+     * 记录一次sql改写的耗时
+     *
+     * @param commandType  sql类型
+     * @param mapperId     mapperId
+     * @param parseNanos   解析耗时
+     * @param rewriteNanos 改写耗时
+     * @param deparseNanos 输出sql耗时
+     */
+    default void recordRewrite(SqlCommandType commandType, String mapperId, long parseNanos, long rewriteNanos, long deparseNanos) {
+    }
+
+    /**
+     * 忽略的mapper命中
+     *
+     * @param mapperId mapperId
+     */
+    default void ignoredMapper(String mapperId) {
+    }
+
+    /**
+     * 忽略的表命中
+     *
+     * @param tableName 表名
+     */
+    default void ignoredTable(String tableName) {
+    }
+
+    /**
+     * sql解析失败
+     *
+     * @param mapperId mapperId
+     */
+    default void parseFailure(String mapperId) {
+    }
+
+}
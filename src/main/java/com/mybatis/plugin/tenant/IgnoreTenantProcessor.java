@@ -0,0 +1,221 @@
+package com.mybatis.plugin.tenant;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * {@link IgnoreTenant} 编译期索引生成器
+ * <p>
+ * 1. 编译时记录编译过的类,被忽略的mapper类和mapper方法, 写入 {@link TenantIgnoreIndex#INDEX_LOCATION},
+ * 启动时由 {@link TenantPluginContext} 读取, 索引中记录的类不再加载和反射
+ * 2. 增量编译时与输出目录中已有的索引合并, 本次重新编译的类以本次结果为准
+ * 3. 需要通过编译参数 -Amybatis.tenant.ignoreIndex=true 开启, 未开启时不处理任何类
+ * 4. 与运行时的 AnnotationUtils.findAnnotation 一致, 查找父类,父接口,被覆盖的方法和元注解上的 {@link IgnoreTenant}
+ * </p>
+ */
+@SupportedOptions(IgnoreTenantProcessor.OPTION_ENABLE)
+public class IgnoreTenantProcessor extends AbstractProcessor {
+
+    /*开启索引的编译参数*/
+    public static final String OPTION_ENABLE = "mybatis.tenant.ignoreIndex";
+
+    /*本次编译的类, 二进制名*/
+    private final Set<String> classes = new TreeSet<>();
+    /*本次编译的类, 类名*/
+    private final Set<String> classNames = new TreeSet<>();
+    /*忽略的mapper类*/
+    private final Set<String> types = new TreeSet<>();
+    /*忽略的mapper方法*/
+    private final Set<String> methods = new TreeSet<>();
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        //未开启时不声明支持任何注解, 编译器不会调用本处理器
+        return isEnabled() ? Collections.singleton("*") : Collections.emptySet();
+    }
+
+    private boolean isEnabled() {
+        return processingEnv != null && Boolean.parseBoolean(processingEnv.getOptions().get(OPTION_ENABLE));
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            writeIndex();
+            return false;
+        }
+        for (TypeElement typeElement : ElementFilter.typesIn(roundEnv.getRootElements())) {
+            processType(typeElement);
+        }
+        //不声明处理任何注解, 不影响其它处理器
+        return false;
+    }
+
+    private void processType(TypeElement typeElement) {
+        String className = typeElement.getQualifiedName().toString();
+        classes.add(processingEnv.getElementUtils().getBinaryName(typeElement).toString());
+        classNames.add(className);
+
+        if (isIgnored(typeElement)) {
+            types.add(className);
+        }
+
+        for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(typeElement))) {
+            if (method.getModifiers().contains(Modifier.PUBLIC) && isIgnored(method, typeElement)) {
+                methods.add(className + StringPool.DOT + method.getSimpleName());
+            }
+        }
+
+        //内部类
+        for (TypeElement innerType : ElementFilter.typesIn(typeElement.getEnclosedElements())) {
+            processType(innerType);
+        }
+    }
+
+    /**
+     * 类或其父类,父接口上是否有 {@link IgnoreTenant}
+     */
+    private boolean isIgnored(TypeElement typeElement) {
+        if (hasIgnoreTenant(typeElement, new HashSet<>())) {
+            return true;
+        }
+        for (TypeMirror superType : processingEnv.getTypeUtils().directSupertypes(typeElement.asType())) {
+            Element element = superType instanceof DeclaredType ? ((DeclaredType) superType).asElement() : null;
+            if (element instanceof TypeElement && isIgnored((TypeElement) element)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 方法或其覆盖的父类,父接口方法上是否有 {@link IgnoreTenant}
+     */
+    private boolean isIgnored(ExecutableElement method, TypeElement typeElement) {
+        if (hasIgnoreTenant(method, new HashSet<>())) {
+            return true;
+        }
+        Elements elements = processingEnv.getElementUtils();
+        Set<TypeElement> superTypes = new LinkedHashSet<>();
+        collectSuperTypes(typeElement, superTypes);
+        for (TypeElement superType : superTypes) {
+            for (ExecutableElement superMethod : ElementFilter.methodsIn(superType.getEnclosedElements())) {
+                if (superMethod.getSimpleName().contentEquals(method.getSimpleName()) && !superMethod.equals(method)
+                        && elements.overrides(method, superMethod, typeElement) && hasIgnoreTenant(superMethod, new HashSet<>())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void collectSuperTypes(TypeElement typeElement, Set<TypeElement> superTypes) {
+        for (TypeMirror superType : processingEnv.getTypeUtils().directSupertypes(typeElement.asType())) {
+            Element element = superType instanceof DeclaredType ? ((DeclaredType) superType).asElement() : null;
+            if (element instanceof TypeElement && superTypes.add((TypeElement) element)) {
+                collectSuperTypes((TypeElement) element, superTypes);
+            }
+        }
+    }
+
+    /**
+     * 元素或其注解(元注解)上是否有 {@link IgnoreTenant}
+     *
+     * @param visited 已检查的注解, 避免 @Documented 等注解的循环
+     */
+    private static boolean hasIgnoreTenant(Element element, Set<Element> visited) {
+        if (element.getAnnotation(IgnoreTenant.class) != null) {
+            return true;
+        }
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            Element annotationType = annotation.getAnnotationType().asElement();
+            if (visited.add(annotationType) && hasIgnoreTenant(annotationType, visited)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeIndex() {
+        if (classes.isEmpty()) {
+            return;
+        }
+        readIndex();
+        try {
+            FileObject fileObject = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, StringPool.EMPTY, TenantIgnoreIndex.INDEX_LOCATION);
+            try (Writer writer = new OutputStreamWriter(fileObject.openOutputStream(), StandardCharsets.UTF_8)) {
+                for (String className : classes) {
+                    writer.write(TenantIgnoreIndex.CLASS + className + StringPool.NEWLINE);
+                }
+                for (String type : types) {
+                    writer.write(TenantIgnoreIndex.TYPE + type + StringPool.NEWLINE);
+                }
+                for (String method : methods) {
+                    writer.write(TenantIgnoreIndex.METHOD + method + StringPool.NEWLINE);
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Failed to write " + TenantIgnoreIndex.INDEX_LOCATION + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * 合并输出目录中已有的索引, 跳过本次重新编译的类的旧记录
+     */
+    private void readIndex() {
+        try {
+            FileObject fileObject = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, StringPool.EMPTY, TenantIgnoreIndex.INDEX_LOCATION);
+            try (Reader in = fileObject.openReader(true);
+                 BufferedReader reader = new BufferedReader(in)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(TenantIgnoreIndex.CLASS)) {
+                        String className = line.substring(TenantIgnoreIndex.CLASS.length()).trim();
+                        if (!classNames.contains(className.replace('$', '.'))) {
+                            classes.add(className);
+                        }
+                    } else if (line.startsWith(TenantIgnoreIndex.TYPE)) {
+                        String type = line.substring(TenantIgnoreIndex.TYPE.length()).trim();
+                        if (!classNames.contains(type)) {
+                            types.add(type);
+                        }
+                    } else if (line.startsWith(TenantIgnoreIndex.METHOD)) {
+                        String method = line.substring(TenantIgnoreIndex.METHOD.length()).trim();
+                        if (!classNames.contains(method.substring(0, Math.max(0, method.lastIndexOf('.'))))) {
+                            methods.add(method);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            //没有已有的索引(全量编译)
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+package com.mybatis.plugin.tenant;
+
+import io.micrometer.core.instrument.*;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.apache.ibatis.mapping.SqlCommandType;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * 基于micrometer的多租户插件监控指标
+ * <p>
+ * 1. tenant.plugin.parse/rewrite/deparse: 解析,改写,输出sql耗时, 按sql类型和mapperId打标签
+ * 2. tenant.plugin.ignored.mapper/ignored.table: 忽略的mapper和表命中次数
+ * 3. tenant.plugin.parse.failure: 解析失败次数
+ * 4. tenant.plugin.cache.*: sql改写缓存命中情况
+ * mapperId标签超过上限后统一记为 {@link #OTHER}, 避免指标数量膨胀
+ * </p>
+ */
+public class MicrometerTenantPluginMetrics implements ITenantPluginMetrics, MeterBinder {
+
+    public static final String PREFIX = "tenant.plugin";
+
+    static final String OTHER = "OTHER";
+
+    private final int maxMapperTags;
+
+    /*已使用的mapperId标签*/
+    private final Set<String> mapperTags = ConcurrentHashMap.newKeySet();
+
+    /*mapperId标签 -> 按sql类型下标的计时器*/
+    private final ConcurrentMap<String, RewriteTimers[]> rewriteTimers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counter> ignoredMapperCounters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counter> ignoredTableCounters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counter> parseFailureCounters = new ConcurrentHashMap<>();
+
+    private volatile MeterRegistry registry;
+
+    public MicrometerTenantPluginMetrics(int maxMapperTags) {
+        this.maxMapperTags = maxMapperTags;
+    }
+
+    /**
+     * 缓存指标每次读取时从 {@link TenantPluginContext#getSqlCache()} 获取, 绑定时缓存可能尚未创建, 刷新配置后也可能被替换或关闭
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        this.registry = registry;
+
+        FunctionCounter.builder(PREFIX + ".cache.hits", this, m -> cacheValue(TenantSqlCache::getHitCount, 0)).register(registry);
+        FunctionCounter.builder(PREFIX + ".cache.misses", this, m -> cacheValue(TenantSqlCache::getMissCount, 0)).register(registry);
+        FunctionCounter.builder(PREFIX + ".cache.evictions", this, m -> cacheValue(TenantSqlCache::getEvictionCount, 0)).register(registry);
+        Gauge.builder(PREFIX + ".cache.hit.ratio", this, m -> cacheValue(TenantSqlCache::getHitRatio, Double.NaN)).register(registry);
+        Gauge.builder(PREFIX + ".cache.size", this, m -> cacheValue(TenantSqlCache::size, 0)).register(registry);
+    }
+
+    @Override
+    public void recordRewrite(SqlCommandType commandType, String mapperId, long parseNanos, long rewriteNanos, long deparseNanos) {
+        MeterRegistry registry = this.registry;
+        if (registry == null) {
+            return;
+        }
+        SqlCommandType command = commandType == null ? SqlCommandType.UNKNOWN : commandType;
+        String mapperTag = mapperTag(mapperId);
+        RewriteTimers[] mapperTimers = rewriteTimers.computeIfAbsent(mapperTag, k -> new RewriteTimers[SqlCommandType.values().length]);
+        RewriteTimers timers = mapperTimers[command.ordinal()];
+        if (timers == null) {
+            //并发时重复创建的计时器由registry去重
+            timers = new RewriteTimers(registry, command.name(), mapperTag);
+            mapperTimers[command.ordinal()] = timers;
+        }
+        timers.parse.record(parseNanos, TimeUnit.NANOSECONDS);
+        timers.rewrite.record(rewriteNanos, TimeUnit.NANOSECONDS);
+        timers.deparse.record(deparseNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void ignoredMapper(String mapperId) {
+        increment(ignoredMapperCounters, PREFIX + ".ignored.mapper", "mapper", mapperTag(mapperId));
+    }
+
+    @Override
+    public void ignoredTable(String tableName) {
+        //忽略的表来自配置, 数量有限
+        increment(ignoredTableCounters, PREFIX + ".ignored.table", "table", tableName);
+    }
+
+    @Override
+    public void parseFailure(String mapperId) {
+        increment(parseFailureCounters, PREFIX + ".parse.failure", "mapper", mapperTag(mapperId));
+    }
+
+    private void increment(ConcurrentMap<String, Counter> counters, String name, String tagKey, String tagValue) {
+        MeterRegistry registry = this.registry;
+        if (registry == null) {
+            return;
+        }
+        counters.computeIfAbsent(tagValue, k -> Counter.builder(name).tag(tagKey, k).register(registry)).increment();
+    }
+
+    /**
+     * 当前改写缓存的指标
+     *
+     * @param defaultValue 未启用缓存时的值
+     */
+    private static double cacheValue(ToDoubleFunction<TenantSqlCache> function, double defaultValue) {
+        TenantSqlCache sqlCache = TenantPluginContext.getSqlCache();
+        return sqlCache == null ? defaultValue : function.applyAsDouble(sqlCache);
+    }
+
+    /**
+     * mapperId标签, 超过上限的新mapperId记为 {@link #OTHER}
+     */
+    private String mapperTag(String mapperId) {
+        if (mapperId == null) {
+            return OTHER;
+        }
+        if (mapperTags.contains(mapperId)) {
+            return mapperId;
+        }
+        if (mapperTags.size() < maxMapperTags && mapperTags.add(mapperId)) {
+            return mapperId;
+        }
+        return mapperTags.contains(mapperId) ? mapperId : OTHER;
+    }
+
+    private static final class RewriteTimers {
+        private final Timer parse;
+        private final Timer rewrite;
+        private final Timer deparse;
+
+        RewriteTimers(MeterRegistry registry, String command, String mapper) {
+            this.parse = timer(registry, PREFIX + ".parse", command, mapper);
+            this.rewrite = timer(registry, PREFIX + ".rewrite", command, mapper);
+            this.deparse = timer(registry, PREFIX + ".deparse", command, mapper);
+        }
+
+        private static Timer timer(MeterRegistry registry, String name, String command, String mapper) {
+            return Timer.builder(name).tag("command", command).tag("mapper", mapper).register(registry);
+        }
+    }
+
+}
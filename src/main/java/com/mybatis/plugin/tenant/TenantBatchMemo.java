@@ -0,0 +1,129 @@
+package com.mybatis.plugin.tenant;
+
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.MappedStatement;
+
+import java.lang.ref.WeakReference;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * BatchExecutor下的改写记录
+ * <p>
+ * 1. BatchExecutor 以改写前的sql判断是否复用Statement, 复用时只调用 parameterize, 不再调用 prepare
+ * 2. 每个线程记录当前BatchExecutor中各MappedStatement的原sql和改写模板, prepare时直接复用模板,
+ * parameterize时为复用Statement的BoundSql补齐改写结果(绑定参数模式下的租户参数)
+ * 3. 字面量模式下租户ID已写入预编译的Statement, 记录prepare时的租户, 复用时租户不同则抛出异常,
+ * 避免切换租户后的数据写入上一个租户
+ * 4. 只弱引用BatchExecutor, executor关闭或被回收后记录失效
+ * </p>
+ */
+final class TenantBatchMemo {
+
+    /*每个BatchExecutor最多记录的MappedStatement数, 超出时清空重新记录*/
+    private static final int MAX_STATEMENTS = 32;
+
+    private static final ThreadLocal<TenantBatchMemo> MEMO = new ThreadLocal<>();
+
+    private final WeakReference<Executor> executor;
+
+    private final Map<MappedStatement, Entry> entries = new IdentityHashMap<>();
+
+    private TenantBatchMemo(Executor executor) {
+        this.executor = new WeakReference<>(executor);
+    }
+
+    /**
+     * 获取当前线程中BatchExecutor的改写记录, 不存在或属于其它executor时新建
+     *
+     * @param executor BatchExecutor
+     * @return 改写记录
+     */
+    static TenantBatchMemo of(Executor executor) {
+        TenantBatchMemo memo = MEMO.get();
+        if (memo == null || !memo.owns(executor)) {
+            memo = new TenantBatchMemo(executor);
+            MEMO.set(memo);
+        }
+        return memo;
+    }
+
+    /**
+     * 获取当前线程中仍然有效的改写记录
+     *
+     * @return 没有或executor已关闭时返回null
+     */
+    static TenantBatchMemo current() {
+        TenantBatchMemo memo = MEMO.get();
+        if (memo == null) {
+            return null;
+        }
+        Executor owner = memo.executor.get();
+        if (owner == null || owner.isClosed()) {
+            MEMO.remove();
+            return null;
+        }
+        return memo;
+    }
+
+    boolean owns(Executor executor) {
+        return this.executor.get() == executor;
+    }
+
+    /**
+     * 获取改写模板
+     *
+     * @param ms  MappedStatement
+     * @param sql 改写前的sql
+     * @return 原sql不一致或未记录时返回null
+     */
+    TenantSql get(MappedStatement ms, String sql) {
+        Entry entry = entries.get(ms);
+        return entry != null && entry.sql.equals(sql) ? entry.tenantSql : null;
+    }
+
+    void put(MappedStatement ms, String sql, TenantSql tenantSql) {
+        if (entries.size() >= MAX_STATEMENTS && !entries.containsKey(ms)) {
+            entries.clear();
+        }
+        entries.put(ms, new Entry(sql, tenantSql));
+    }
+
+    /**
+     * 记录字面量模式下Statement预编译时的租户
+     *
+     * @param ms        MappedStatement
+     * @param sql       改写前的sql
+     * @param tenantKey 租户, 同 {@link TenantCache#tenantKey(java.util.List)}, sql中没有租户时为null
+     */
+    void prepared(MappedStatement ms, String sql, String tenantKey) {
+        Entry entry = entries.get(ms);
+        if (entry != null && entry.sql.equals(sql)) {
+            entry.tenantKey = tenantKey;
+        }
+    }
+
+    /**
+     * 获取字面量模式下Statement预编译时的租户
+     *
+     * @param ms  MappedStatement
+     * @param sql 改写前的sql
+     * @return 未记录或sql中没有租户时返回null
+     */
+    String preparedTenantKey(MappedStatement ms, String sql) {
+        Entry entry = entries.get(ms);
+        return entry != null && entry.sql.equals(sql) ? entry.tenantKey : null;
+    }
+
+    private static final class Entry {
+        private final String sql;
+        private final TenantSql tenantSql;
+        private String tenantKey;
+
+        Entry(String sql, TenantSql tenantSql) {
+            this.sql = sql;
+            this.tenantSql = tenantSql;
+        }
+    }
+
+}
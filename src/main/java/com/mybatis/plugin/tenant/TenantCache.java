@@ -0,0 +1,428 @@
+package com.mybatis.plugin.tenant;
+
+import net.sf.jsqlparser.expression.Expression;
+import org.apache.ibatis.cache.Cache;
+import org.apache.ibatis.cache.CacheKey;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按租户分区的MyBatis二级缓存
+ * <p>
+ * 1. 按查询改写时的租户分区, 每个租户单独做LRU淘汰, sql中没有租户(忽略的mapper或表)时使用公共分区
+ * 2. 改写的查询在 CacheKey 末尾追加 {@link PartitionKey}, 读写时从key中读取分区, 不依赖事务提交时的租户上下文
+ * 3. 支持按租户清除和按租户统计命中率, {@link #evictTenant(String)} 清除所有命名空间中该租户的缓存
+ * 4. 缓存对象直接共享, 等同 readOnly=true, 适合只读的参考数据
+ * 5. 写入时才创建分区, 没有分区的租户查询未命中时计入 {@link #getColdMissCount()}, 避免大量租户的查询挤掉已有分区
+ * </p>
+ * <pre>
+ * &lt;cache type="com.mybatis.plugin.tenant.TenantCache"&gt;
+ *     &lt;property name="size" value="512"/&gt;
+ * &lt;/cache&gt;
+ * </pre>
+ */
+public class TenantCache implements Cache {
+
+    /*没有租户时的分区*/
+    public static final String NO_TENANT = StringPool.EMPTY;
+
+    /*已创建的缓存, 按命名空间*/
+    private static final Map<String, TenantCache> CACHES = new ConcurrentHashMap<>();
+
+    private final String id;
+
+    private final Map<String, Partition> partitions = new ConcurrentHashMap<>();
+
+    /*创建分区时的锁, 租户数检查,淘汰和创建一起完成*/
+    private final Object partitionLock = new Object();
+
+    /*没有分区的租户的未命中次数, 查询不创建分区*/
+    private final LongAdder coldMisses = new LongAdder();
+
+    /*每个租户的最大条数*/
+    private int size = 1024;
+
+    /*最多缓存的租户数, 超出时清除最久未访问的租户*/
+    private int maxTenants = 1024;
+
+    public TenantCache(String id) {
+        if (id == null) {
+            throw TenantPluginException.tenantPluginException("Cache instances require an ID");
+        }
+        this.id = id;
+        CACHES.put(id, this);
+    }
+
+    /**
+     * 清除所有命名空间中指定租户的缓存
+     *
+     * @param tenantKey 租户, 同 {@link #tenantKey(List)}
+     */
+    public static void evictTenant(String tenantKey) {
+        for (TenantCache cache : CACHES.values()) {
+            cache.clearTenant(tenantKey);
+        }
+    }
+
+    /**
+     * 获取命名空间的缓存
+     *
+     * @param id 命名空间
+     * @return 不存在时返回null
+     */
+    public static TenantCache getCache(String id) {
+        return CACHES.get(id);
+    }
+
+    public static Collection<TenantCache> getCaches() {
+        return Collections.unmodifiableCollection(CACHES.values());
+    }
+
+    /**
+     * 租户分区的key, 多个租户以,连接
+     *
+     * @param tenantIds 租户ID
+     * @return 没有租户时返回 {@link #NO_TENANT}
+     */
+    public static String tenantKey(List<Expression> tenantIds) {
+        if (tenantIds == null || tenantIds.isEmpty()) {
+            return NO_TENANT;
+        }
+        if (tenantIds.size() == 1) {
+            return TenantPluginUtils.tenantIdValue(tenantIds.get(0)).toString();
+        }
+        StringBuilder key = new StringBuilder();
+        for (Expression tenantId : tenantIds) {
+            if (key.length() > 0) {
+                key.append(StringPool.COMMA);
+            }
+            key.append(TenantPluginUtils.tenantIdValue(tenantId));
+        }
+        return key.toString();
+    }
+
+    /**
+     * 写入 CacheKey 的租户分区
+     *
+     * @param tenantIds 改写查询时的租户ID
+     * @return 分区
+     */
+    public static PartitionKey partitionKey(List<Expression> tenantIds) {
+        return new PartitionKey(tenantKey(tenantIds));
+    }
+
+    /**
+     * 从 CacheKey 中读取租户分区
+     *
+     * @param key CacheKey
+     * @return 没有写入分区时返回 {@link #NO_TENANT}
+     */
+    static String partitionOf(Object key) {
+        if (key instanceof CacheKey) {
+            List<Object> updates = TenantPluginUtils.cacheKeyUpdates((CacheKey) key);
+            Object last = updates.isEmpty() ? null : updates.get(updates.size() - 1);
+            if (last instanceof PartitionKey) {
+                return ((PartitionKey) last).tenantKey;
+            }
+        }
+        return NO_TENANT;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public void putObject(Object key, Object value) {
+        partition(partitionOf(key)).put(key, value);
+    }
+
+    @Override
+    public Object getObject(Object key) {
+        Partition partition = partitions.get(partitionOf(key));
+        if (partition == null) {
+            coldMisses.increment();
+            return null;
+        }
+        return partition.get(key);
+    }
+
+    @Override
+    public Object removeObject(Object key) {
+        Partition partition = partitions.get(partitionOf(key));
+        return partition == null ? null : partition.remove(key);
+    }
+
+    /**
+     * 命名空间有更新时由MyBatis调用, 清除所有租户
+     */
+    @Override
+    public void clear() {
+        partitions.clear();
+    }
+
+    /**
+     * 清除指定租户的缓存
+     *
+     * @param tenantKey 租户
+     */
+    public void clearTenant(String tenantKey) {
+        partitions.remove(tenantKey);
+    }
+
+    @Override
+    public int getSize() {
+        int total = 0;
+        for (Partition partition : partitions.values()) {
+            total += partition.size();
+        }
+        return total;
+    }
+
+    /**
+     * 各租户的统计
+     *
+     * @return 租户 -&gt; 统计
+     */
+    public Map<String, Stats> getStats() {
+        Map<String, Stats> stats = new LinkedHashMap<>();
+        partitions.forEach((tenant, partition) -> stats.put(tenant, partition.stats()));
+        return stats;
+    }
+
+    /**
+     * 指定租户的统计
+     *
+     * @param tenantKey 租户
+     * @return 没有缓存时返回null
+     */
+    public Stats getStats(String tenantKey) {
+        Partition partition = partitions.get(tenantKey);
+        return partition == null ? null : partition.stats();
+    }
+
+    /**
+     * 没有分区的租户的未命中次数, 不计入各租户的统计
+     *
+     * @return 次数
+     */
+    public long getColdMissCount() {
+        return coldMisses.sum();
+    }
+
+    public void setSize(int size) {
+        if (size <= 0) {
+            throw TenantPluginException.tenantPluginException("Invalid tenant cache size: %s", size);
+        }
+        this.size = size;
+    }
+
+    public void setMaxTenants(int maxTenants) {
+        if (maxTenants <= 0) {
+            throw TenantPluginException.tenantPluginException("Invalid tenant cache maxTenants: %s", maxTenants);
+        }
+        this.maxTenants = maxTenants;
+    }
+
+    /**
+     * 获取或创建租户分区
+     * <p>
+     * ConcurrentHashMap的compute中不能删除其它key, 创建分区时加锁, 租户数检查,淘汰和写入之间不会有其它分区创建
+     * </p>
+     */
+    private Partition partition(String tenantKey) {
+        Partition partition = partitions.get(tenantKey);
+        if (partition != null) {
+            return partition;
+        }
+        synchronized (partitionLock) {
+            partition = partitions.get(tenantKey);
+            if (partition == null) {
+                if (partitions.size() >= maxTenants) {
+                    evictEldestTenant();
+                }
+                partition = new Partition(size);
+                partitions.put(tenantKey, partition);
+            }
+            return partition;
+        }
+    }
+
+    /**
+     * 清除最久未访问的租户
+     */
+    private void evictEldestTenant() {
+        String eldest = null;
+        long eldestAccess = Long.MAX_VALUE;
+        for (Map.Entry<String, Partition> entry : partitions.entrySet()) {
+            long lastAccess = entry.getValue().lastAccess;
+            if (lastAccess < eldestAccess) {
+                eldestAccess = lastAccess;
+                eldest = entry.getKey();
+            }
+        }
+        if (eldest != null) {
+            partitions.remove(eldest);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Cache)) {
+            return false;
+        }
+        return id.equals(((Cache) o).getId());
+    }
+
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+
+    /**
+     * 单个租户的缓存, 访问顺序的LinkedHashMap实现LRU
+     */
+    private static final class Partition {
+        private final int maxEntries;
+        private final LinkedHashMap<Object, Object> map = new LinkedHashMap<>(16, 0.75F, true);
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private volatile long lastAccess = System.nanoTime();
+
+        Partition(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        Object get(Object key) {
+            Object value;
+            synchronized (this) {
+                value = map.get(key);
+            }
+            if (value == null) {
+                misses.increment();
+            } else {
+                hits.increment();
+            }
+            lastAccess = System.nanoTime();
+            return value;
+        }
+
+        synchronized void put(Object key, Object value) {
+            map.put(key, value);
+            Iterator<Object> iterator = map.keySet().iterator();
+            while (map.size() > maxEntries && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+                evictions.increment();
+            }
+            lastAccess = System.nanoTime();
+        }
+
+        synchronized Object remove(Object key) {
+            return map.remove(key);
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+
+        Stats stats() {
+            return new Stats(size(), hits.sum(), misses.sum(), evictions.sum());
+        }
+    }
+
+    /**
+     * CacheKey中的租户分区
+     */
+    public static final class PartitionKey implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String tenantKey;
+
+        PartitionKey(String tenantKey) {
+            this.tenantKey = tenantKey;
+        }
+
+        public String getTenantKey() {
+            return tenantKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || (o instanceof PartitionKey && tenantKey.equals(((PartitionKey) o).tenantKey));
+        }
+
+        @Override
+        public int hashCode() {
+            return tenantKey.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "tenant=" + tenantKey;
+        }
+    }
+
+    /**
+     * 租户缓存统计
+     */
+    public static final class Stats {
+        private final int size;
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+
+        Stats(int size, long hitCount, long missCount, long evictionCount) {
+            this.size = size;
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        /**
+         * 命中率
+         *
+         * @return 0~1, 没有请求时为0
+         */
+        public double getHitRatio() {
+            long total = hitCount + missCount;
+            return total == 0 ? 0D : (double) hitCount / total;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{size=" + size + ", hitCount=" + hitCount + ", missCount=" + missCount + ", evictionCount=" + evictionCount + "}";
+        }
+    }
+
+}
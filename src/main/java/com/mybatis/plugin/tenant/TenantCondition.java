@@ -0,0 +1,23 @@
+package com.mybatis.plugin.tenant;
+
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.operators.relational.EqualsTo;
+
+/**
+ * 租户条件表达式
+ * <p>
+ * 输出为 "字段 {@link TenantSql#TENANT_CONDITION}", 由 {@link TenantSql} 在执行时替换为 "= 租户ID" 或 "IN (租户ID, ...)"
+ * </p>
+ */
+public class TenantCondition extends EqualsTo {
+
+    public TenantCondition(Expression column) {
+        super(column, new TenantIdParameter());
+    }
+
+    @Override
+    public String toString() {
+        return getLeftExpression() + StringPool.SPACE + TenantSql.TENANT_CONDITION;
+    }
+
+}
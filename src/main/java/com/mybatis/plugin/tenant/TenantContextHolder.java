@@ -0,0 +1,195 @@
+package com.mybatis.plugin.tenant;
+
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.LongValue;
+import net.sf.jsqlparser.expression.StringValue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * 租户上下文
+ * <p>
+ * 1. 当前线程设置了租户ID时优先使用, 否则由注册的 {@link ITenantDefine} 获取
+ * 2. 提交到线程池,并行流,虚拟线程等异步任务时, 先 {@link #capture()} 当前租户, 再在任务线程中恢复,
+ * 或直接使用 {@link #wrap(Runnable)}, {@link #wrap(Callable)}, {@link #wrap(Executor)}
+ * 3. 跨租户的批处理任务可以 {@link #setAll(Collection)} 设置多个租户ID, 查询条件输出为 tenant_id IN (...)
+ * </p>
+ * <pre>
+ * TenantContextHolder.Snapshot snapshot = TenantContextHolder.capture();
+ * list.parallelStream().forEach(item -&gt; snapshot.run(() -&gt; mapper.update(item)));
+ * </pre>
+ */
+public final class TenantContextHolder {
+
+    private static final ThreadLocal<List<Expression>> TENANT_ID = new ThreadLocal<>();
+
+    private TenantContextHolder() {
+    }
+
+    /**
+     * 当前线程设置的租户ID
+     *
+     * @return 未设置时返回null, 设置了多个时返回第一个
+     */
+    public static Expression get() {
+        List<Expression> tenantIds = TENANT_ID.get();
+        return tenantIds == null ? null : tenantIds.get(0);
+    }
+
+    /**
+     * 当前线程设置的所有租户ID
+     *
+     * @return 未设置时返回null
+     */
+    public static List<Expression> getAll() {
+        return TENANT_ID.get();
+    }
+
+    /**
+     * 设置当前线程的租户ID
+     *
+     * @param tenantId 租户ID, 为null时清除
+     */
+    public static void set(Expression tenantId) {
+        setTenantIds(tenantId == null ? null : Collections.singletonList(tenantId));
+    }
+
+    public static void set(String tenantId) {
+        set(tenantId == null ? null : new StringValue(tenantId));
+    }
+
+    public static void set(long tenantId) {
+        set(new LongValue(tenantId));
+    }
+
+    /**
+     * 设置当前线程的多个租户ID, 用于跨租户查询
+     *
+     * @param tenantIds 租户ID, 为空时清除
+     */
+    public static void setAll(Collection<? extends Expression> tenantIds) {
+        setTenantIds(tenantIds == null || tenantIds.isEmpty() ? null : Collections.unmodifiableList(new ArrayList<>(tenantIds)));
+    }
+
+    private static void setTenantIds(List<Expression> tenantIds) {
+        if (tenantIds == null) {
+            TENANT_ID.remove();
+        } else {
+            TENANT_ID.set(tenantIds);
+        }
+    }
+
+    public static void clear() {
+        TENANT_ID.remove();
+    }
+
+    /**
+     * 获取当前生效的租户ID, 当前线程未设置时由 {@link ITenantDefine} 获取
+     *
+     * @param tenantDefine 租户ID接口, 可以为null
+     * @return 租户ID, 都没有时返回null
+     */
+    public static List<Expression> resolve(ITenantDefine tenantDefine) {
+        List<Expression> tenantIds = TENANT_ID.get();
+        if (tenantIds != null || tenantDefine == null) {
+            return tenantIds;
+        }
+        return tenantDefine.getTenantIds();
+    }
+
+    /**
+     * 记录当前生效的租户ID, 当前线程未设置时由插件注册的 {@link ITenantDefine} 获取
+     *
+     * @return 租户快照
+     */
+    public static Snapshot capture() {
+        return new Snapshot(resolve(TenantPluginContext.getTenantDefine()));
+    }
+
+    public static Runnable wrap(Runnable task) {
+        return capture().wrap(task);
+    }
+
+    public static <T> Callable<T> wrap(Callable<T> task) {
+        return capture().wrap(task);
+    }
+
+    public static <T> Supplier<T> wrap(Supplier<T> task) {
+        return capture().wrap(task);
+    }
+
+    /**
+     * 包装Executor, 提交任务时记录提交线程的租户
+     *
+     * @param executor Executor
+     * @return 传递租户的Executor
+     */
+    public static Executor wrap(Executor executor) {
+        return command -> executor.execute(wrap(command));
+    }
+
+    /**
+     * 租户快照, 在其它线程中恢复, 执行结束后还原该线程原来的租户
+     */
+    public static final class Snapshot {
+
+        private final List<Expression> tenantIds;
+
+        private Snapshot(List<Expression> tenantIds) {
+            this.tenantIds = tenantIds;
+        }
+
+        public List<Expression> getTenantIds() {
+            return tenantIds;
+        }
+
+        public void run(Runnable task) {
+            List<Expression> previous = TENANT_ID.get();
+            setTenantIds(tenantIds);
+            try {
+                task.run();
+            } finally {
+                setTenantIds(previous);
+            }
+        }
+
+        public <T> T call(Callable<T> task) throws Exception {
+            List<Expression> previous = TENANT_ID.get();
+            setTenantIds(tenantIds);
+            try {
+                return task.call();
+            } finally {
+                setTenantIds(previous);
+            }
+        }
+
+        public <T> T get(Supplier<T> task) {
+            List<Expression> previous = TENANT_ID.get();
+            setTenantIds(tenantIds);
+            try {
+                return task.get();
+            } finally {
+                setTenantIds(previous);
+            }
+        }
+
+        public Runnable wrap(Runnable task) {
+            return () -> run(task);
+        }
+
+        public <T> Callable<T> wrap(Callable<T> task) {
+            return () -> call(task);
+        }
+
+        public <T> Supplier<T> wrap(Supplier<T> task) {
+            return () -> get(task);
+        }
+    }
+
+}
@@ -0,0 +1,23 @@
+package com.mybatis.plugin.tenant;
+
+/**
+ * MappedStatement的改写决策
+ */
+public enum TenantDecision {
+
+    /**
+     * 忽略的mapper类或mapper方法
+     */
+    IGNORE_MAPPER,
+
+    /**
+     * 静态sql中的表都被忽略, 改写不会产生租户条件
+     */
+    NO_TENANT_TABLES,
+
+    /**
+     * 需要改写
+     */
+    REWRITE
+
+}
@@ -0,0 +1,419 @@
+package com.mybatis.plugin.tenant;
+
+import java.util.*;
+
+/**
+ * 简单sql的词法改写
+ * <p>
+ * 只处理以下三种没有子查询和join的单表语句, 直接在词法位置拼接租户条件, 不构建语法树:
+ * 1. SELECT ... FROM t [alias] [WHERE ...] [GROUP BY|ORDER BY|LIMIT ...]
+ * 2. UPDATE t [alias] SET ... [WHERE ...] [ORDER BY|LIMIT ...]
+ * 3. DELETE FROM t [alias] [WHERE ...] [ORDER BY|LIMIT ...]
+ * 条件的位置和OR的括号与语法树改写一致, 无法确认是简单语句时返回null, 由语法树改写处理
+ * </p>
+ */
+public class TenantFastPathRewriter {
+
+    /*出现即放弃快速改写的关键字*/
+    private static final Set<String> REJECT_KEYWORDS = keywords("SELECT", "JOIN", "UNION", "INTERSECT", "EXCEPT", "MINUS",
+            "WITH", "INTO", "STRAIGHT_JOIN", "LATERAL", "XOR", "VALUES", "RECURSIVE");
+
+    /*SELECT中WHERE之后的子句*/
+    private static final Set<String> SELECT_TAIL_KEYWORDS = keywords("GROUP", "ORDER", "LIMIT", "HAVING", "FOR", "LOCK", "OFFSET", "FETCH", "WINDOW");
+
+    /*UPDATE,DELETE中WHERE之后的子句*/
+    private static final Set<String> DML_TAIL_KEYWORDS = keywords("ORDER", "LIMIT", "RETURNING");
+
+    /*出现在子句关键字之前时, 说明该单词是列名或表达式的一部分*/
+    private static final Set<String> OPERAND_KEYWORDS = keywords("AND", "OR", "NOT", "WHERE", "SET", "BY", "IS", "LIKE", "IN",
+            "BETWEEN", "ON", "AS", "ESCAPE", "DISTINCT", "CASE", "WHEN", "THEN", "ELSE", "INTERVAL", "REGEXP", "RLIKE");
+
+    /*不能作为表名和别名的关键字*/
+    private static final Set<String> NON_ALIAS_KEYWORDS = keywords("WHERE", "SET", "GROUP", "ORDER", "LIMIT", "HAVING", "FOR", "LOCK",
+            "OFFSET", "FETCH", "WINDOW", "RETURNING", "LEFT", "RIGHT", "INNER", "OUTER", "FULL", "CROSS", "NATURAL", "USE", "FORCE",
+            "IGNORE", "PARTITION", "USING", "ON", "TABLESAMPLE", "AS", "LOW_PRIORITY", "QUICK", "ONLY");
+
+    /*允许出现的符号*/
+    private static final String ALLOWED_SYMBOLS = "(),.=<>!+-*/%";
+
+    /**
+     * 改写简单sql
+     *
+     * @param sql 原sql
+     * @return 带 {@link TenantSql#TENANT_CONDITION} 标记的sql, 不是简单语句时返回null
+     */
+    public String rewrite(String sql) {
+        List<Token> tokens = tokenize(sql);
+        if (tokens == null || tokens.isEmpty()) {
+            return null;
+        }
+        Token first = tokens.get(0);
+        if (first.is("SELECT")) {
+            return rewriteSelect(sql, tokens);
+        } else if (first.is("UPDATE")) {
+            return rewriteUpdate(sql, tokens);
+        } else if (first.is("DELETE")) {
+            return rewriteDelete(sql, tokens);
+        }
+        return null;
+    }
+
+    private String rewriteSelect(String sql, List<Token> tokens) {
+        if (containsRejectKeyword(tokens, 1)) {
+            return null;
+        }
+        int from = indexOfTopLevel(tokens, 1, "FROM");
+        if (from < 0) {
+            return null;
+        }
+        TableRef table = tableRef(tokens, from + 1);
+        if (table == null) {
+            return null;
+        }
+        int next = table.end;
+        if (next < tokens.size() && !tokens.get(next).is("WHERE") && !isClauseStart(tokens, next, SELECT_TAIL_KEYWORDS)) {
+            return null;
+        }
+        if (TenantPluginContext.getTableRoute(table.name) != null) {
+            //路由的表由语法树改写表名
+            return null;
+        }
+        if (TenantPluginContext.willIgnoreTable(table.name)) {
+            return sql;
+        }
+        //租户条件追加在where之后, 与builderExpression一致
+        return appendCondition(sql, tokens, next, table, SELECT_TAIL_KEYWORDS, false);
+    }
+
+    private String rewriteUpdate(String sql, List<Token> tokens) {
+        if (containsRejectKeyword(tokens, 1)) {
+            return null;
+        }
+        TableRef table = tableRef(tokens, 1);
+        if (table == null || table.end >= tokens.size() || !tokens.get(table.end).is("SET")) {
+            return null;
+        }
+        if (TenantPluginContext.getTableRoute(table.name) != null) {
+            //路由的表由语法树改写表名
+            return null;
+        }
+        if (TenantPluginContext.willIgnoreTable(table.name)) {
+            return sql;
+        }
+        int where = indexOfTopLevel(tokens, table.end + 1, "WHERE");
+        if (where < 0) {
+            int tail = indexOfTopLevel(tokens, table.end + 1, DML_TAIL_KEYWORDS);
+            if (tail >= 0 && !isClauseStart(tokens, tail, DML_TAIL_KEYWORDS)) {
+                return null;
+            }
+            return appendCondition(sql, tokens, tail < 0 ? tokens.size() : tail, table, DML_TAIL_KEYWORDS, true);
+        }
+        return appendCondition(sql, tokens, where, table, DML_TAIL_KEYWORDS, true);
+    }
+
+    private String rewriteDelete(String sql, List<Token> tokens) {
+        if (tokens.size() < 3 || !tokens.get(1).is("FROM") || containsRejectKeyword(tokens, 1)) {
+            return null;
+        }
+        TableRef table = tableRef(tokens, 2);
+        if (table == null) {
+            return null;
+        }
+        int next = table.end;
+        if (next < tokens.size() && !tokens.get(next).is("WHERE") && !isClauseStart(tokens, next, DML_TAIL_KEYWORDS)) {
+            return null;
+        }
+        if (TenantPluginContext.getTableRoute(table.name) != null) {
+            //路由的表由语法树改写表名
+            return null;
+        }
+        if (TenantPluginContext.willIgnoreTable(table.name)) {
+            return sql;
+        }
+        return appendCondition(sql, tokens, next, table, DML_TAIL_KEYWORDS, true);
+    }
+
+    /**
+     * 拼接租户条件
+     *
+     * @param sql           原sql
+     * @param tokens        词法单元
+     * @param position      WHERE 或其后子句的下标, 等于tokens.size()表示sql末尾
+     * @param table         表
+     * @param tailKeywords  WHERE之后的子句
+     * @param conditionHead 租户条件放在原条件之前(andExpression)还是之后(builderExpression)
+     * @return 带租户ID标记的sql
+     */
+    private String appendCondition(String sql, List<Token> tokens, int position, TableRef table, Set<String> tailKeywords, boolean conditionHead) {
+        String condition = table.alias + StringPool.DOT + TenantPluginContext.getTenantColumn() + StringPool.SPACE + TenantSql.TENANT_CONDITION;
+        StringBuilder sb = new StringBuilder(sql.length() + condition.length() + 16);
+
+        if (position >= tokens.size() || !tokens.get(position).is("WHERE")) {
+            //没有where条件
+            int insertAt = position >= tokens.size() ? trimEnd(sql) : tokens.get(position).start;
+            sb.append(sql, 0, insertAt);
+            if (insertAt > 0 && !Character.isWhitespace(sql.charAt(insertAt - 1))) {
+                sb.append(StringPool.SPACE);
+            }
+            sb.append("WHERE ").append(condition);
+            if (insertAt < sql.length()) {
+                sb.append(StringPool.SPACE);
+            }
+            sb.append(sql, insertAt, sql.length());
+            return sb.toString();
+        }
+
+        int whereStart = position + 1;
+        int whereEnd = indexOfTopLevel(tokens, whereStart, tailKeywords);
+        if (whereEnd < 0) {
+            whereEnd = tokens.size();
+        } else if (!isClauseStart(tokens, whereEnd, tailKeywords)) {
+            //与子句关键字同名的列, 无法确定where的结束位置
+            return null;
+        }
+        if (whereEnd == whereStart) {
+            return null;
+        }
+        int exprStart = tokens.get(whereStart).start;
+        int exprEnd = tokens.get(whereEnd - 1).end;
+        boolean or = indexOfTopLevel(tokens, whereStart, whereEnd, "OR") >= 0;
+
+        sb.append(sql, 0, exprStart);
+        if (conditionHead) {
+            sb.append(condition).append(" AND ");
+        }
+        if (or) {
+            sb.append(StringPool.LEFT_BRACKET);
+        }
+        sb.append(sql, exprStart, exprEnd);
+        if (or) {
+            sb.append(StringPool.RIGHT_BRACKET);
+        }
+        if (!conditionHead) {
+            sb.append(" AND ").append(condition);
+        }
+        sb.append(sql, exprEnd, sql.length());
+        return sb.toString();
+    }
+
+    /**
+     * 解析表名和别名: name[.name]* [[AS] alias]
+     * <p>
+     * 表名位置出现关键字(UPDATE IGNORE t, UPDATE LOW_PRIORITY t, FROM ONLY t 等)时返回null
+     * </p>
+     */
+    private TableRef tableRef(List<Token> tokens, int index) {
+        if (index >= tokens.size() || !tokens.get(index).isName() || NON_ALIAS_KEYWORDS.contains(tokens.get(index).upper)) {
+            return null;
+        }
+        String name = tokens.get(index).text;
+        int i = index + 1;
+        while (i + 1 < tokens.size() && tokens.get(i).isSymbol('.') && tokens.get(i + 1).isName()) {
+            name = tokens.get(i + 1).text;
+            i += 2;
+        }
+        if (i < tokens.size() && tokens.get(i).isSymbol('.')) {
+            return null;
+        }
+
+        String alias = null;
+        if (i < tokens.size() && tokens.get(i).is("AS")) {
+            if (i + 1 >= tokens.size() || !tokens.get(i + 1).isName() || NON_ALIAS_KEYWORDS.contains(tokens.get(i + 1).upper)) {
+                return null;
+            }
+            alias = tokens.get(i + 1).text;
+            i += 2;
+        } else if (i < tokens.size() && tokens.get(i).isName() && !NON_ALIAS_KEYWORDS.contains(tokens.get(i).upper)) {
+            alias = tokens.get(i).text;
+            i++;
+        }
+        return new TableRef(name, alias == null ? name : alias, i);
+    }
+
+    /**
+     * 子句关键字是否处于关键字位置, 而不是与关键字同名的列
+     * <p>
+     * 前一个单元必须是表达式的结尾(名称,值或右括号, 不能是运算符和AND,OR等), 后一个单元必须符合子句的写法:
+     * ORDER BY, GROUP BY, FOR UPDATE|SHARE|NO KEY|KEY SHARE, LOCK IN, FETCH FIRST|NEXT, WINDOW w AS,
+     * 其它子句之后不能是运算符
+     * </p>
+     */
+    private static boolean isClauseStart(List<Token> tokens, int index, Set<String> clauseKeywords) {
+        Token token = tokens.get(index);
+        if (token.type != TokenType.WORD || !clauseKeywords.contains(token.upper) || index == 0 || index + 1 >= tokens.size()) {
+            return false;
+        }
+        Token previous = tokens.get(index - 1);
+        if ((previous.type == TokenType.SYMBOL && !previous.isSymbol(')')) || (previous.type == TokenType.WORD && OPERAND_KEYWORDS.contains(previous.upper))) {
+            return false;
+        }
+        Token next = tokens.get(index + 1);
+        switch (token.upper) {
+            case "ORDER":
+            case "GROUP":
+                return next.is("BY");
+            case "FOR":
+                return next.is("UPDATE") || next.is("SHARE") || next.is("NO") || next.is("KEY");
+            case "LOCK":
+                return next.is("IN");
+            case "FETCH":
+                return next.is("FIRST") || next.is("NEXT");
+            case "WINDOW":
+                return next.isName() && index + 2 < tokens.size() && tokens.get(index + 2).is("AS");
+            default:
+                return next.type != TokenType.SYMBOL || next.isSymbol('(');
+        }
+    }
+
+    private static boolean containsRejectKeyword(List<Token> tokens, int from) {
+        for (int i = from; i < tokens.size(); i++) {
+            if (tokens.get(i).type == TokenType.WORD && REJECT_KEYWORDS.contains(tokens.get(i).upper)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOfTopLevel(List<Token> tokens, int from, String keyword) {
+        return indexOfTopLevel(tokens, from, tokens.size(), keyword);
+    }
+
+    private static int indexOfTopLevel(List<Token> tokens, int from, int to, String keyword) {
+        return indexOfTopLevel(tokens, from, to, Collections.singleton(keyword));
+    }
+
+    private static int indexOfTopLevel(List<Token> tokens, int from, Set<String> keywords) {
+        return indexOfTopLevel(tokens, from, tokens.size(), keywords);
+    }
+
+    private static int indexOfTopLevel(List<Token> tokens, int from, int to, Set<String> keywords) {
+        int depth = 0;
+        for (int i = from; i < to; i++) {
+            Token token = tokens.get(i);
+            if (token.isSymbol('(')) {
+                depth++;
+            } else if (token.isSymbol(')')) {
+                depth--;
+            } else if (depth == 0 && token.type == TokenType.WORD && keywords.contains(token.upper)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int trimEnd(String sql) {
+        int end = sql.length();
+        while (end > 0 && Character.isWhitespace(sql.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * 词法分析, 遇到注释,分号或无法识别的字符时返回null
+     */
+    static List<Token> tokenize(String sql) {
+        List<Token> tokens = new ArrayList<>();
+        int length = sql.length();
+        int depth = 0;
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '\'') {
+                int end = TenantSql.skipQuoted(sql, i, c);
+                tokens.add(new Token(TokenType.STRING, sql, i, end));
+                i = end;
+            } else if (c == '`' || c == '"') {
+                int end = TenantSql.skipQuoted(sql, i, c);
+                tokens.add(new Token(TokenType.QUOTED_NAME, sql, i, end));
+                i = end;
+            } else if (c == '?') {
+                tokens.add(new Token(TokenType.PARAMETER, sql, i, i + 1));
+                i++;
+            } else if (Character.isLetter(c) || c == '_' || c == '$') {
+                int end = i + 1;
+                while (end < length && isWordPart(sql.charAt(end))) {
+                    end++;
+                }
+                tokens.add(new Token(TokenType.WORD, sql, i, end));
+                i = end;
+            } else if (Character.isDigit(c)) {
+                int end = i + 1;
+                while (end < length && (isWordPart(sql.charAt(end)) || sql.charAt(end) == '.')) {
+                    end++;
+                }
+                tokens.add(new Token(TokenType.NUMBER, sql, i, end));
+                i = end;
+            } else if ((c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') || (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*')) {
+                //注释
+                return null;
+            } else if (ALLOWED_SYMBOLS.indexOf(c) >= 0) {
+                if (c == '(') {
+                    depth++;
+                } else if (c == ')' && --depth < 0) {
+                    return null;
+                }
+                tokens.add(new Token(TokenType.SYMBOL, sql, i, i + 1));
+                i++;
+            } else {
+                return null;
+            }
+        }
+        return depth == 0 ? tokens : null;
+    }
+
+    private static boolean isWordPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    private static Set<String> keywords(String... keywords) {
+        return new HashSet<>(Arrays.asList(keywords));
+    }
+
+    enum TokenType {
+        WORD, QUOTED_NAME, STRING, NUMBER, PARAMETER, SYMBOL
+    }
+
+    static final class Token {
+        final TokenType type;
+        final String text;
+        final String upper;
+        final int start;
+        final int end;
+
+        Token(TokenType type, String sql, int start, int end) {
+            this.type = type;
+            this.text = sql.substring(start, end);
+            this.upper = type == TokenType.WORD ? text.toUpperCase(Locale.ROOT) : text;
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean is(String keyword) {
+            return type == TokenType.WORD && upper.equals(keyword);
+        }
+
+        boolean isSymbol(char symbol) {
+            return type == TokenType.SYMBOL && text.charAt(0) == symbol;
+        }
+
+        boolean isName() {
+            return type == TokenType.WORD || type == TokenType.QUOTED_NAME;
+        }
+    }
+
+    private static final class TableRef {
+        private final String name;
+        private final String alias;
+        private final int end;
+
+        TableRef(String name, String alias, int end) {
+            this.name = name;
+            this.alias = alias;
+            this.end = end;
+        }
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.mybatis.plugin.tenant;
+
+import net.sf.jsqlparser.expression.JdbcParameter;
+
+/**
+ * 租户ID占位表达式
+ * <p>
+ * 改写时代替具体的租户ID写入语法树, 输出为 {@link TenantSql#TENANT_ID}, 由 {@link TenantSql} 在执行时替换为租户ID或 ?
+ * </p>
+ */
+public class TenantIdParameter extends JdbcParameter {
+
+    @Override
+    public String toString() {
+        return TenantSql.TENANT_ID;
+    }
+
+}
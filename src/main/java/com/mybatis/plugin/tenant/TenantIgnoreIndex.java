@@ -0,0 +1,124 @@
+package com.mybatis.plugin.tenant;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * {@link IgnoreTenant} 编译期索引
+ * <p>
+ * 由 {@link IgnoreTenantProcessor} 生成, 每行一条记录:
+ * 1. C 类的二进制名: 该类经过了索引生成器编译, 只有这些类的索引结果可信, 其它类仍需扫描
+ * 2. T 类名: 忽略的mapper类
+ * 3. M 类名.方法名: 忽略的mapper方法
+ * </p>
+ */
+public class TenantIgnoreIndex {
+
+    public static final String INDEX_LOCATION = "META-INF/mybatis-tenant/ignore-tenant.index";
+
+    static final String CLASS = "C ";
+    static final String TYPE = "T ";
+    static final String METHOD = "M ";
+
+    private final Set<String> classes = new HashSet<>();
+    private final Set<String> types = new HashSet<>();
+    private final Set<String> methods = new HashSet<>();
+
+    private TenantIgnoreIndex() {
+    }
+
+    /**
+     * 读取classpath下所有的索引文件
+     *
+     * @param classLoader ClassLoader
+     * @return 没有索引文件时返回null
+     */
+    public static TenantIgnoreIndex load(ClassLoader classLoader) {
+        try {
+            Enumeration<URL> urls = classLoader.getResources(INDEX_LOCATION);
+            if (!urls.hasMoreElements()) {
+                return null;
+            }
+            TenantIgnoreIndex index = new TenantIgnoreIndex();
+            while (urls.hasMoreElements()) {
+                index.read(urls.nextElement());
+            }
+            return index;
+        } catch (IOException e) {
+            throw TenantPluginException.tenantPluginException("Failed to load %s", e, INDEX_LOCATION);
+        }
+    }
+
+    private void read(URL url) throws IOException {
+        try (InputStream in = url.openStream();
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(CLASS)) {
+                    classes.add(line.substring(CLASS.length()).trim());
+                } else if (line.startsWith(TYPE)) {
+                    types.add(line.substring(TYPE.length()).trim());
+                } else if (line.startsWith(METHOD)) {
+                    methods.add(line.substring(METHOD.length()).trim());
+                }
+            }
+        }
+    }
+
+    /**
+     * 类是否经过了索引生成器编译
+     *
+     * @param binaryName 类的二进制名, 内部类为 a.B$C
+     * @return 索引中记录了该类
+     */
+    public boolean contains(String binaryName) {
+        return classes.contains(binaryName);
+    }
+
+    /**
+     * 包及其子包下经过索引生成器编译的类
+     *
+     * @param packageName 包名
+     * @return 类名, 内部类为 a.B.C
+     */
+    public Set<String> classesIn(String packageName) {
+        String prefix = packageName.isEmpty() ? packageName : packageName + ".";
+        Set<String> result = new HashSet<>();
+        classes.stream()
+                .filter(c -> c.startsWith(prefix))
+                .forEach(c -> result.add(c.replace('$', '.')));
+        return result;
+    }
+
+    /**
+     * mapper类是否被忽略
+     *
+     * @param className 类名
+     */
+    public boolean isIgnoredType(String className) {
+        return types.contains(className);
+    }
+
+    /**
+     * mapper类中忽略的方法
+     *
+     * @param className 类名
+     * @return 类名.方法名
+     */
+    public Set<String> ignoredMethods(String className) {
+        Set<String> result = new HashSet<>();
+        int length = className.length();
+        methods.stream()
+                .filter(m -> m.startsWith(className) && m.length() > length + 1 && m.charAt(length) == '.' && m.indexOf('.', length + 1) < 0)
+                .forEach(result::add);
+        return result;
+    }
+
+}
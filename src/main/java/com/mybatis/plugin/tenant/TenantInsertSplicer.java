@@ -0,0 +1,232 @@
+package com.mybatis.plugin.tenant;
+
+import java.util.Arrays;
+
+/**
+ * 多行insert的拼接改写
+ * <p>
+ * 1. 只处理 INSERT [IGNORE] INTO t (c1, c2, ...) VALUES (...), (...), ... 形式的单条语句
+ * 2. 一次扫描VALUES部分, 在列名和每行的结束括号前拼接租户字段和 {@link TenantSql#TENANT_ID} 标记, 不构建语法树
+ * 3. 忽略的表,不给列名或已给出租户列的insert与语法树改写一致返回原sql; 路由的表,行内有子查询,注释或其它子句时返回null, 由语法树改写处理
+ * </p>
+ */
+public class TenantInsertSplicer {
+
+    private static final String TENANT_VALUE = ", " + TenantSql.TENANT_ID;
+
+    /**
+     * 改写多行insert
+     *
+     * @param sql     原sql
+     * @param minRows 最少行数, 行数不足时返回null
+     * @return 带 {@link TenantSql#TENANT_ID} 标记的sql, 不能拼接时返回null
+     */
+    public String rewrite(String sql, int minRows) {
+        int length = sql.length();
+        int i = skipWhitespace(sql, 0);
+        if (!keywordAt(sql, i, "INSERT")) {
+            return null;
+        }
+        i = skipWhitespace(sql, i + 6);
+        if (keywordAt(sql, i, "IGNORE")) {
+            i = skipWhitespace(sql, i + 6);
+        }
+        if (!keywordAt(sql, i, "INTO")) {
+            return null;
+        }
+        i = skipWhitespace(sql, i + 4);
+
+        //表名
+        int tableStart = i;
+        i = skipName(sql, i);
+        if (i < 0 || i == tableStart) {
+            return null;
+        }
+        String table = lastPart(sql.substring(tableStart, i));
+        if (table == null) {
+            return null;
+        }
+        i = skipWhitespace(sql, i);
+
+        //列名
+        int columnsEnd = -1;
+        boolean tenantColumnGiven = false;
+        String tenantIdColumn = TenantPluginContext.getTenantColumn();
+        if (i < length && sql.charAt(i) == '(') {
+            i++;
+            while (true) {
+                i = skipWhitespace(sql, i);
+                int columnStart = i;
+                i = skipName(sql, i);
+                if (i < 0 || i == columnStart) {
+                    return null;
+                }
+                String column = lastPart(sql.substring(columnStart, i));
+                if (column == null) {
+                    return null;
+                }
+                tenantColumnGiven |= column.equalsIgnoreCase(tenantIdColumn);
+                i = skipWhitespace(sql, i);
+                if (i < length && sql.charAt(i) == ',') {
+                    i++;
+                } else if (i < length && sql.charAt(i) == ')') {
+                    columnsEnd = i;
+                    i = skipWhitespace(sql, i + 1);
+                    break;
+                } else {
+                    return null;
+                }
+            }
+        }
+        if (!keywordAt(sql, i, "VALUES")) {
+            return null;
+        }
+        i = skipWhitespace(sql, i + 6);
+
+        //每行的结束括号位置
+        int[] rowEnds = new int[Math.max(16, minRows)];
+        int rows = 0;
+        while (true) {
+            if (i >= length || sql.charAt(i) != '(') {
+                return null;
+            }
+            int end = rowEnd(sql, i);
+            if (end < 0) {
+                return null;
+            }
+            if (rows == rowEnds.length) {
+                rowEnds = Arrays.copyOf(rowEnds, rows * 2);
+            }
+            rowEnds[rows++] = end;
+            i = skipWhitespace(sql, end + 1);
+            if (i < length && sql.charAt(i) == ',') {
+                i = skipWhitespace(sql, i + 1);
+            } else {
+                break;
+            }
+        }
+        if (i < length || rows < minRows) {
+            //ON DUPLICATE KEY UPDATE, RETURNING 等子句或行数不足
+            return null;
+        }
+
+        //与 processInsert 的判断顺序一致
+        if (TenantPluginContext.willIgnoreTable(table)) {
+            return sql;
+        }
+        if (TenantPluginContext.getTableRoute(table) != null) {
+            return null;
+        }
+        if (columnsEnd < 0 || tenantColumnGiven) {
+            return sql;
+        }
+
+        StringBuilder sb = new StringBuilder(length + 2 + tenantIdColumn.length() + rows * TENANT_VALUE.length());
+        sb.append(sql, 0, columnsEnd).append(", ").append(tenantIdColumn);
+        int last = columnsEnd;
+        for (int r = 0; r < rows; r++) {
+            sb.append(sql, last, rowEnds[r]).append(TENANT_VALUE);
+            last = rowEnds[r];
+        }
+        return sb.append(sql, last, length).toString();
+    }
+
+    /**
+     * 一行的结束括号位置
+     *
+     * @return 行为空,括号不完整或包含子查询,注释时返回-1
+     */
+    private static int rowEnd(String sql, int start) {
+        int length = sql.length();
+        int depth = 0;
+        boolean empty = true;
+        int i = start;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"' || c == '`') {
+                int end = TenantSql.skipQuoted(sql, i, c);
+                if (end >= length) {
+                    return -1;
+                }
+                empty = false;
+                i = end;
+                continue;
+            }
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                if (--depth == 0) {
+                    return empty ? -1 : i;
+                }
+            } else if ((c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') || (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') || c == '#') {
+                return -1;
+            } else if ((c == 's' || c == 'S') && keywordAt(sql, i, "SELECT") && (i == 0 || !isIdentifierPart(sql.charAt(i - 1)))) {
+                return -1;
+            } else if (!Character.isWhitespace(c)) {
+                empty = false;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * 跳过表名或列名, 支持 a.b 和引号
+     *
+     * @return 名称之后的位置, 引号不完整时返回-1
+     */
+    private static int skipName(String sql, int i) {
+        int length = sql.length();
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '"' || c == '`') {
+                int end = TenantSql.skipQuoted(sql, i, c);
+                if (end > length || sql.charAt(end - 1) != c) {
+                    return -1;
+                }
+                i = end;
+            } else if (isIdentifierPart(c)) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * 最后一段名称, 同 Table.getName()/Column.getColumnName() 保留引号
+     *
+     * @return 带引号的名称中包含 . 时返回null
+     */
+    private static String lastPart(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return name;
+        }
+        if (name.indexOf('"') >= 0 || name.indexOf('`') >= 0) {
+            String part = name.substring(dot + 1);
+            boolean quoted = part.length() >= 2 && (part.charAt(0) == '"' || part.charAt(0) == '`') && part.charAt(part.length() - 1) == part.charAt(0);
+            boolean plain = part.indexOf('"') < 0 && part.indexOf('`') < 0;
+            return quoted || plain ? part : null;
+        }
+        return name.substring(dot + 1);
+    }
+
+    private static boolean keywordAt(String sql, int i, String keyword) {
+        int end = i + keyword.length();
+        return sql.regionMatches(true, i, keyword, 0, keyword.length()) && (end >= sql.length() || !isIdentifierPart(sql.charAt(end)));
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.';
+    }
+
+    private static int skipWhitespace(String sql, int i) {
+        while (i < sql.length() && Character.isWhitespace(sql.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+}
@@ -1,5 +1,9 @@
 package com.mybatis.plugin.tenant;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.SmartInitializingSingleton;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
@@ -7,6 +11,7 @@ import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
 
 @Configuration
 @EnableConfigurationProperties(TenantProperties.class)
@@ -17,10 +22,63 @@ public class TenantPluginAutoConfiguration {
     @Autowired
     private TenantProperties tenantProperties;
 
-    @Bean
+    @Bean(destroyMethod = "close")
     @ConditionalOnMissingBean(ITenantDefine.class)
     public TenantPluginContext tenantPluginContext() {
         return new TenantPluginContext(tenantProperties);
     }
 
+    /**
+     * 配置刷新时重建忽略的表,mapper等配置
+     */
+    @Bean
+    public TenantPluginRefreshListener tenantPluginRefreshListener(Environment environment) {
+        return new TenantPluginRefreshListener(environment);
+    }
+
+    /**
+     * 启动时预编译静态sql
+     */
+    @Configuration
+    @ConditionalOnClass(SqlSessionFactory.class)
+    @ConditionalOnProperty(prefix = "mybatis.tenant.plugin", name = "precompile-enable", havingValue = "true")
+    static class TenantSqlPrecompileConfiguration {
+
+        @Bean
+        public SmartInitializingSingleton tenantSqlPrecompileInitializer(ObjectProvider<TenantPluginContext> tenantPluginContext,
+                                                                         ObjectProvider<TenantPluginInterceptor> interceptor,
+                                                                         ObjectProvider<SqlSessionFactory> sqlSessionFactories) {
+            return () -> {
+                tenantPluginContext.getIfAvailable();
+                TenantPluginInterceptor tenantPluginInterceptor = interceptor.getIfAvailable();
+                if (tenantPluginInterceptor == null) {
+                    return;
+                }
+                TenantSqlPrecompiler precompiler = new TenantSqlPrecompiler(tenantPluginInterceptor);
+                sqlSessionFactories.orderedStream().forEach(factory -> precompiler.precompile(factory.getConfiguration()));
+            };
+        }
+
+    }
+
+    /**
+     * micrometer监控指标, 由actuator绑定到MeterRegistry
+     */
+    @Configuration
+    @ConditionalOnClass(MeterRegistry.class)
+    @ConditionalOnProperty(prefix = "mybatis.tenant.plugin", name = "metrics-enable", havingValue = "true", matchIfMissing = true)
+    static class TenantPluginMetricsConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean(MicrometerTenantPluginMetrics.class)
+        public MicrometerTenantPluginMetrics tenantPluginMetrics(ObjectProvider<TenantPluginContext> tenantPluginContext, TenantProperties tenantProperties) {
+            //确保缓存先于指标初始化
+            tenantPluginContext.getIfAvailable();
+            MicrometerTenantPluginMetrics metrics = new MicrometerTenantPluginMetrics(tenantProperties.getMetricsMaxMapperTags());
+            TenantPluginContext.setMetrics(metrics);
+            return metrics;
+        }
+
+    }
+
 }
@@ -2,13 +2,19 @@ package com.mybatis.plugin.tenant;
 
 import net.sf.jsqlparser.schema.Column;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.ibatis.io.ResolverUtil;
-import org.springframework.core.annotation.AnnotationUtils;
+import org.apache.ibatis.builder.StaticSqlSource;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.scripting.defaults.RawSqlSource;
 
-import java.lang.reflect.Method;
-import java.util.HashSet;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.apache.commons.lang3.StringUtils.substringBeforeLast;
 
@@ -16,73 +22,190 @@ import static org.apache.commons.lang3.StringUtils.substringBeforeLast;
  * 多租户插件的上下文
  * <p>
  * 1. 扫描多租户插件的配置
- * 2. 扫描mapper文件
+ * 2. 读取 {@link IgnoreTenant} 编译期索引, 索引未覆盖的mapper包再扫描mapper文件
+ * 3. 配置保存在不可变快照中, {@link #refresh(TenantProperties)} 时整体替换, 读取只有一次volatile读
  * </p>
  */
 public class TenantPluginContext {
 
-    /*忽略的mapper类*/
-    private static Set<String> TENANT_IGNORE_MAPPER_CLASS_CACHE = new HashSet<>();
-    /*忽略的mapper方法*/
-    private static Set<String> TENANT_IGNORE_MAPPER_METHOD_CACHE = new HashSet<>();
-    /*忽略的表*/
-    private static Set<String> TENANT_IGNORE_TABLE_CACHE = new HashSet<>();
+    /*路由模板中的租户占位符*/
+    public static final String TABLE_ROUTE_TENANT = "{tenant}";
 
-    private static TenantProperties tenantProperties;
+    /*路由模板中的原表名占位符*/
+    public static final String TABLE_ROUTE_TABLE = "{table}";
 
-    public TenantPluginContext(TenantProperties tenantProperties) {
+    /*配置快照*/
+    private static volatile TenantPluginSnapshot snapshot = TenantPluginSnapshot.EMPTY;
 
-        TenantPluginContext.tenantProperties = tenantProperties;
+    /*sql改写缓存,未启用时为null*/
+    private static volatile TenantSqlCache sqlCache;
 
-        if (!tenantProperties.getEnable()) {
-            return;
-        }
+    /*sql改写缓存的磁盘快照,未启用时为null*/
+    private static volatile TenantSqlCacheStore sqlCacheStore;
 
-        //扫描需要忽略的mapper类或mapper方法
-        String[] basePackages = StringUtils.split(tenantProperties.getMapperLocations(), ",");
-        for (String packageName : basePackages) {
-            ResolverUtil<Class<?>> resolverUtil = new ResolverUtil<>();
-            resolverUtil.find(new ResolverUtil.IsA(Object.class), packageName);
+    /*租户ID接口, 由拦截器注册*/
+    private static volatile ITenantDefine tenantDefine;
 
-            //mapper类集合
-            Set<Class<? extends Class<?>>> mapperSet = resolverUtil.getClasses();
-            for (Class<?> mapperClass : mapperSet) {
+    /*sql解析入口*/
+    private static volatile TenantSqlParser sqlParser = new TenantSqlParser(TenantSqlParser.ParseMode.CALLER, 0);
 
-                //判断是否忽略该mapper类
-                if (AnnotationUtils.findAnnotation(mapperClass, IgnoreTenant.class) != null) {
-                    TENANT_IGNORE_MAPPER_CLASS_CACHE.add(mapperClass.getCanonicalName());
-                }
+    /*MappedStatement的改写决策, 记录得到决策时的快照代数*/
+    private static final Map<MappedStatement, LearnedDecision> TENANT_DECISION_CACHE = new ConcurrentHashMap<>();
 
-                //mapper方法集合
-                Method[] mapperMethods = mapperClass.getMethods();
-                for (Method method : mapperMethods) {
+    /*监控指标*/
+    private static volatile ITenantPluginMetrics metrics = ITenantPluginMetrics.NOOP;
 
-                    //判断是否忽略该mapper方法
-                    if (AnnotationUtils.findAnnotation(method, IgnoreTenant.class) != null) {
-                        TENANT_IGNORE_MAPPER_METHOD_CACHE.add(mapperClass.getCanonicalName() + "." + method.getName());
-                    }
-                }
+    /*拦截器创建的影子模式记录器, 关闭时停止后台线程*/
+    private static final Set<TenantShadowRecorder> SHADOW_RECORDERS = ConcurrentHashMap.newKeySet();
 
-                //忽略主键查询的mapper方法
-                TENANT_IGNORE_MAPPER_METHOD_CACHE.add(mapperClass.getCanonicalName() + ".selectByPrimaryKey");
+    public TenantPluginContext(TenantProperties tenantProperties) {
+        refresh(tenantProperties);
+    }
 
-                //忽略主键删除的mapper方法
-                TENANT_IGNORE_MAPPER_METHOD_CACHE.add(mapperClass.getCanonicalName() + ".deleteByPrimaryKey");
+    /**
+     * 刷新配置, 构建新的快照后整体替换
+     * <p>
+     * 1. mapper包路径不变时复用已扫描的忽略mapper
+     * 2. 解析方式变化时重建解析入口, 改写缓存清空后继续使用
+     * 3. 清空改写决策, 预编译的sql在下次执行时按新配置重新改写
+     * </p>
+     *
+     * @param tenantProperties 新配置
+     */
+    public static synchronized void refresh(TenantProperties tenantProperties) {
+        TenantPluginSnapshot previous = snapshot;
+        TenantPluginSnapshot next = TenantPluginSnapshot.build(tenantProperties, previous);
 
-                //忽略主键更新的mapper方法
-                TENANT_IGNORE_MAPPER_METHOD_CACHE.add(mapperClass.getCanonicalName() + ".updateByPrimaryKeySelective");
+        if (Boolean.TRUE.equals(tenantProperties.getEnable())) {
+            //sql解析入口
+            TenantSqlParser.ParseMode parseMode = tenantProperties.getParseMode();
+            long parseTimeout = tenantProperties.getParseTimeout() == null ? 0 : tenantProperties.getParseTimeout().toMillis();
+            int scriptParallelism = tenantProperties.getScriptParallelism() == null ? 0 : tenantProperties.getScriptParallelism();
+            if (!sqlParser.isSame(parseMode, parseTimeout, scriptParallelism)) {
+                TenantSqlParser old = sqlParser;
+                sqlParser = new TenantSqlParser(parseMode, parseTimeout, scriptParallelism);
+                old.shutdown();
+            }
 
+            //sql改写缓存, 已创建的缓存只清空, 容量变化需要重启(监控指标绑定在缓存实例上)
+            if (Boolean.TRUE.equals(tenantProperties.getCacheEnable())) {
+                if (sqlCache == null) {
+                    sqlCache = new TenantSqlCache(tenantProperties.getCacheMaxEntries(), tenantProperties.getCacheMaxMemory().toBytes());
+                }
+            } else {
+                sqlCache = null;
+            }
+        }
+
+        publish(next);
+
+        //发布快照之后再加载磁盘快照, 以新配置校验文件指纹
+        refreshSqlCacheStore(tenantProperties);
+    }
+
+    /**
+     * 启用磁盘快照时, 首次创建或文件变化时加载快照并开始定期写入
+     */
+    private static void refreshSqlCacheStore(TenantProperties tenantProperties) {
+        TenantSqlCacheStore current = sqlCacheStore;
+        String file = tenantProperties.getCacheSnapshotFile();
+        if (sqlCache == null || !Boolean.TRUE.equals(tenantProperties.getEnable()) || StringUtils.isBlank(file)) {
+            if (current != null) {
+                current.close();
+                sqlCacheStore = null;
             }
+            return;
         }
+        Path path = Paths.get(file.trim());
+        if (current != null && current.getFile().equals(path)) {
+            return;
+        }
+        if (current != null) {
+            current.close();
+        }
+        Duration interval = tenantProperties.getCacheSnapshotInterval();
+        TenantSqlCacheStore store = new TenantSqlCacheStore(path, interval == null ? 0 : interval.toMillis());
+        store.load(sqlCache);
+        store.start();
+        sqlCacheStore = store;
+    }
 
-        //扫描需要忽略的表
-        if (StringUtils.isNotBlank(tenantProperties.getIgnoreTables())) {
-            String[] Tables = StringUtils.split(tenantProperties.getIgnoreTables(), ",");
-            for (String table : Tables) {
-                TENANT_IGNORE_TABLE_CACHE.add(table);
+    /**
+     * 关闭时写入改写缓存的磁盘快照, 输出影子模式剩余的记录并停止后台线程
+     * <p>
+     * 解析线程池关闭后解析入口恢复为初始的调用线程解析, 再次 {@link #refresh(TenantProperties)} 时按配置重建
+     * </p>
+     */
+    public void close() {
+        synchronized (TenantPluginContext.class) {
+            TenantSqlCacheStore current = sqlCacheStore;
+            if (current != null) {
+                current.close();
+                sqlCacheStore = null;
             }
+            TenantSqlParser parser = sqlParser;
+            sqlParser = new TenantSqlParser(TenantSqlParser.ParseMode.CALLER, 0);
+            parser.shutdown();
         }
+        for (TenantShadowRecorder recorder : SHADOW_RECORDERS) {
+            recorder.close();
+            SHADOW_RECORDERS.remove(recorder);
+        }
+    }
 
+    /**
+     * 登记影子模式记录器, 由 {@link #close()} 关闭
+     *
+     * @param recorder 记录器
+     */
+    static void registerShadowRecorder(TenantShadowRecorder recorder) {
+        SHADOW_RECORDERS.add(recorder);
+    }
+
+    /**
+     * 替换忽略的表, 用于不重启时临时增减忽略的表
+     *
+     * @param tables 忽略的表, 替换原有配置
+     */
+    public static synchronized void refreshIgnoreTables(Collection<String> tables) {
+        publish(snapshot.withIgnoreTables(tables));
+    }
+
+    /**
+     * 发布快照, 并清除按旧配置得到的改写结果
+     */
+    private static void publish(TenantPluginSnapshot next) {
+        snapshot = next;
+        TenantSqlCache current = sqlCache;
+        if (current != null) {
+            current.clear();
+        }
+        TENANT_DECISION_CACHE.clear();
+    }
+
+    /**
+     * 当前配置快照, 预编译的sql以快照是否变化判断是否需要重新改写
+     */
+    static TenantPluginSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * 当前生效的配置
+     *
+     * @return 未初始化时返回null
+     */
+    public static TenantProperties getTenantProperties() {
+        return snapshot.properties;
+    }
+
+    /**
+     * 当前忽略的表
+     *
+     * @return 忽略的表
+     */
+    public static List<String> getIgnoreTables() {
+        return Arrays.asList(snapshot.ignoreTables.clone());
     }
 
     /**
@@ -92,7 +215,43 @@ public class TenantPluginContext {
      * @return
      */
     public static boolean willIgnoreMapper(String mapperId) {
-        return TENANT_IGNORE_MAPPER_METHOD_CACHE.contains(mapperId) || TENANT_IGNORE_MAPPER_CLASS_CACHE.contains(substringBeforeLast(mapperId, "."));
+        return willIgnoreMapper(snapshot, mapperId);
+    }
+
+    private static boolean willIgnoreMapper(TenantPluginSnapshot current, String mapperId) {
+        return current.ignoreMapperMethods.contains(mapperId)
+                || current.ignoreMapperClasses.contains(substringBeforeLast(mapperId, "."));
+    }
+
+    /**
+     * 获取MappedStatement的改写决策, 首次调用时根据忽略的mapper计算
+     *
+     * @param ms MappedStatement
+     * @return 改写决策
+     */
+    public static TenantDecision getDecision(MappedStatement ms) {
+        TenantPluginSnapshot current = snapshot;
+        LearnedDecision learned = TENANT_DECISION_CACHE.get(ms);
+        if (learned == null || learned.generation != current.generation) {
+            //首次调用或决策属于刷新前的配置
+            TenantDecision decision = willIgnoreMapper(current, ms.getId()) ? TenantDecision.IGNORE_MAPPER : TenantDecision.REWRITE;
+            learned = new LearnedDecision(decision, current.generation);
+            TENANT_DECISION_CACHE.put(ms, learned);
+        }
+        return learned.decision;
+    }
+
+    /**
+     * 记录改写结果, 静态sql改写后没有租户条件时, 后续不再解析
+     *
+     * @param ms         MappedStatement
+     * @param tenantSql  改写后的sql模板
+     * @param generation 改写开始时的快照代数, 改写期间配置已刷新时不记录
+     */
+    public static void learnDecision(MappedStatement ms, TenantSql tenantSql, long generation) {
+        if (tenantSql.getTenantCount() == 0 && (ms.getSqlSource() instanceof RawSqlSource || ms.getSqlSource() instanceof StaticSqlSource)) {
+            TENANT_DECISION_CACHE.put(ms, new LearnedDecision(TenantDecision.NO_TENANT_TABLES, generation));
+        }
     }
 
     /**
@@ -102,7 +261,27 @@ public class TenantPluginContext {
      * @return
      */
     public static boolean willIgnoreTable(String tableName) {
-        return TENANT_IGNORE_TABLE_CACHE.stream().anyMatch(t -> t.equalsIgnoreCase(tableName));
+        for (String table : snapshot.ignoreTables) {
+            if (table.equalsIgnoreCase(tableName)) {
+                metrics.ignoredTable(table);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 获取表的路由模板, 路由的表按租户改写库名/表名, 不追加租户条件
+     *
+     * @param tableName 表名, 可以带引号
+     * @return 不是路由表时返回null
+     */
+    public static String getTableRoute(String tableName) {
+        Map<String, String> tableRoutes = snapshot.tableRoutes;
+        if (tableRoutes.isEmpty() || tableName == null) {
+            return null;
+        }
+        return tableRoutes.get(StringUtils.strip(tableName, "`\"").toLowerCase());
     }
 
     /**
@@ -122,7 +301,150 @@ public class TenantPluginContext {
      * @return 租户字段名
      */
     public static String getTenantColumn() {
-        return tenantProperties.getColumn();
+        return snapshot.properties.getColumn();
+    }
+
+    /**
+     * 租户ID是否以参数绑定的方式写入sql
+     *
+     * @return
+     */
+    public static boolean isBindParameter() {
+        TenantProperties properties = snapshot.properties;
+        return properties != null && Boolean.TRUE.equals(properties.getBindParameter());
+    }
+
+    /**
+     * 脚本并行处理的语句条数阈值
+     *
+     * @return 不大于0时不并行
+     */
+    public static int getScriptParallelThreshold() {
+        TenantProperties properties = snapshot.properties;
+        return properties == null || properties.getScriptParallelThreshold() == null ? 0 : properties.getScriptParallelThreshold();
+    }
+
+    /**
+     * 多行insert跳过语法树直接拼接的最少行数
+     *
+     * @return 不大于0时不启用
+     */
+    public static int getInsertSpliceRows() {
+        TenantProperties properties = snapshot.properties;
+        return properties == null || properties.getInsertSpliceRows() == null ? 0 : properties.getInsertSpliceRows();
+    }
+
+    /**
+     * 缓存前是否折叠sql形状
+     *
+     * @return
+     */
+    public static boolean isCacheNormalizeEnable() {
+        TenantProperties properties = snapshot.properties;
+        return properties != null && Boolean.TRUE.equals(properties.getCacheNormalizeEnable());
+    }
+
+    /**
+     * 是否启用简单语句的词法改写
+     *
+     * @return
+     */
+    public static boolean isFastPathEnable() {
+        TenantProperties properties = snapshot.properties;
+        return properties != null && Boolean.TRUE.equals(properties.getFastPathEnable());
+    }
+
+    /**
+     * 获取注册的租户ID接口
+     *
+     * @return 未创建拦截器时返回null
+     */
+    public static ITenantDefine getTenantDefine() {
+        return tenantDefine;
+    }
+
+    /**
+     * 注册租户ID接口, 供 {@link TenantContextHolder#capture()} 使用
+     *
+     * @param define 租户ID接口
+     */
+    public static void setTenantDefine(ITenantDefine define) {
+        tenantDefine = define;
+    }
+
+    /**
+     * 获取sql解析入口
+     *
+     * @return
+     */
+    public static TenantSqlParser getSqlParser() {
+        return sqlParser;
+    }
+
+    /**
+     * 是否对派生表和cte追加租户条件
+     *
+     * @return
+     */
+    public static boolean isPredicatePushdownEnable() {
+        TenantProperties properties = snapshot.properties;
+        return properties != null && Boolean.TRUE.equals(properties.getPredicatePushdownEnable());
+    }
+
+    /**
+     * 是否为影子模式, 影子模式下不改写sql
+     *
+     * @return
+     */
+    public static boolean isShadowEnable() {
+        TenantProperties properties = snapshot.properties;
+        return properties != null && Boolean.TRUE.equals(properties.getShadowEnable());
+    }
+
+    /**
+     * 影子模式采样率
+     *
+     * @return 0~1
+     */
+    public static double getShadowSampleRate() {
+        TenantProperties properties = snapshot.properties;
+        return properties == null || properties.getShadowSampleRate() == null ? 0D : properties.getShadowSampleRate();
+    }
+
+    /**
+     * 获取sql改写缓存
+     *
+     * @return 未启用缓存时返回null
+     */
+    public static TenantSqlCache getSqlCache() {
+        return sqlCache;
+    }
+
+    /**
+     * 获取监控指标
+     *
+     * @return 未配置时返回 {@link ITenantPluginMetrics#NOOP}
+     */
+    public static ITenantPluginMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 是否配置了监控指标, 未配置时不计时
+     *
+     * @return 监控指标不是 {@link ITenantPluginMetrics#NOOP}
+     */
+    public static boolean isMetricsEnable() {
+        return metrics != ITenantPluginMetrics.NOOP;
+    }
+
+    /**
+     * 设置监控指标
+     *
+     * @param tenantPluginMetrics 监控指标, 为null时不记录
+     */
+    public static void setMetrics(ITenantPluginMetrics tenantPluginMetrics) {
+        metrics = tenantPluginMetrics == null ? ITenantPluginMetrics.NOOP : tenantPluginMetrics;
     }
 
     /**
@@ -131,7 +453,21 @@ public class TenantPluginContext {
      * @return
      */
     public static boolean isTenantPluginEnable() {
-        return tenantProperties != null && tenantProperties.getEnable();
+        TenantProperties properties = snapshot.properties;
+        return properties != null && Boolean.TRUE.equals(properties.getEnable());
+    }
+
+    /**
+     * 改写决策及其对应的快照代数
+     */
+    private static final class LearnedDecision {
+        private final TenantDecision decision;
+        private final long generation;
+
+        LearnedDecision(TenantDecision decision, long generation) {
+            this.decision = decision;
+            this.generation = generation;
+        }
     }
 
 }
@@ -5,21 +5,23 @@ import net.sf.jsqlparser.expression.*;
 import net.sf.jsqlparser.expression.operators.conditional.AndExpression;
 import net.sf.jsqlparser.expression.operators.conditional.OrExpression;
 import net.sf.jsqlparser.expression.operators.relational.*;
-import net.sf.jsqlparser.parser.CCJSqlParserUtil;
 import net.sf.jsqlparser.schema.Column;
 import net.sf.jsqlparser.schema.Table;
 import net.sf.jsqlparser.statement.Statement;
 import net.sf.jsqlparser.statement.Statements;
+import net.sf.jsqlparser.statement.values.ValuesStatement;
 import net.sf.jsqlparser.statement.delete.Delete;
 import net.sf.jsqlparser.statement.insert.Insert;
 import net.sf.jsqlparser.statement.select.*;
 import net.sf.jsqlparser.statement.update.Update;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.executor.BatchExecutor;
 import org.apache.ibatis.executor.Executor;
 import org.apache.ibatis.executor.statement.StatementHandler;
 import org.apache.ibatis.mapping.BoundSql;
 import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ParameterMapping;
 import org.apache.ibatis.mapping.SqlCommandType;
 import org.apache.ibatis.plugin.*;
 import org.apache.ibatis.session.ResultHandler;
@@ -27,6 +29,10 @@ import org.apache.ibatis.session.RowBounds;
 
 import java.sql.Connection;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -34,17 +40,36 @@ import java.util.stream.Collectors;
  */
 @Intercepts({
         @Signature(type = StatementHandler.class, method = "prepare", args = {Connection.class, Integer.class}),
-        @Signature(type = StatementHandler.class, method = "getBoundSql", args = {}),
+        @Signature(type = StatementHandler.class, method = "parameterize", args = {java.sql.Statement.class}),
         @Signature(type = Executor.class, method = "update", args = {MappedStatement.class, Object.class}),
         @Signature(type = Executor.class, method = "query", args = {MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class}),
         @Signature(type = Executor.class, method = "query", args = {MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class, CacheKey.class, BoundSql.class}),
+        @Signature(type = Executor.class, method = "queryCursor", args = {MappedStatement.class, Object.class, RowBounds.class}),
 })
 public class TenantPluginInterceptor implements Interceptor {
 
+    /*绑定参数模式下租户ID的参数名*/
+    public static final String TENANT_PARAMETER = "__tenantId";
+
+    private static final String PARAMETERIZE = "parameterize";
+
+    /*谓词下推时当前查询中cte名称(小写)与是否输出租户字段*/
+    private static final ThreadLocal<Map<String, Boolean>> WITH_TENANT_COLUMNS = new ThreadLocal<>();
+
     private ITenantDefine tenantDefine;
 
+    private final SubSelectVisitor subSelectVisitor = new SubSelectVisitor();
+
+    private final TenantFastPathRewriter fastPathRewriter = new TenantFastPathRewriter();
+
+    private final TenantInsertSplicer insertSplicer = new TenantInsertSplicer();
+
+    /*影子模式记录器, 首次采样时创建*/
+    private volatile TenantShadowRecorder shadowRecorder;
+
     public TenantPluginInterceptor(ITenantDefine tenantDefine) {
         this.tenantDefine = tenantDefine;
+        TenantPluginContext.setTenantDefine(tenantDefine);
     }
 
     @Override
@@ -63,6 +88,24 @@ public class TenantPluginInterceptor implements Interceptor {
             Object parameter = args[1];
             boolean isUpdate = args.length == 2;
             MappedStatement ms = (MappedStatement) args[0];
+            boolean precompiled = isPrecompiled(ms);
+            if (precompiled) {
+                //预编译的sql在getBoundSql时已改写, 只有二级缓存的查询需要在这里写入租户分区
+                if (isUpdate || args.length == 3 || ms.getCache() == null || ms.getSqlCommandType() != SqlCommandType.SELECT || TenantPluginContext.isShadowEnable()) {
+                    return invocation.proceed();
+                }
+            } else if (!willRewrite(ms)) {
+                return invocation.proceed();
+            }
+            if (!isUpdate && ms.getSqlCommandType() == SqlCommandType.SELECT && TenantPluginContext.isShadowEnable()) {
+                //query和queryCursor的影子模式, 采样命中后才生成BoundSql
+                shadow(ms, () -> (args.length == 6 ? (BoundSql) args[5] : ms.getBoundSql(parameter)).getSql(), false);
+                return invocation.proceed();
+            }
+            if (args.length == 3) {
+                //queryCursor内部重新生成BoundSql, 在StatementHandler.prepare时改写
+                return invocation.proceed();
+            }
             if (!isUpdate && ms.getSqlCommandType() == SqlCommandType.SELECT) {
                 RowBounds rowBounds = (RowBounds) args[2];
                 ResultHandler resultHandler = (ResultHandler) args[3];
@@ -74,26 +117,53 @@ public class TenantPluginInterceptor implements Interceptor {
                     boundSql = (BoundSql) args[5];
                 }
 
-                if (!TenantPluginContext.willIgnoreMapper(ms.getId())) {
-                    TenantPluginUtils.MPBoundSql mpBs = TenantPluginUtils.mpBoundSql(boundSql);
-                    mpBs.sql(parserSingle(mpBs.sql(), null));
+                TenantPluginUtils.MPBoundSql mpBs = TenantPluginUtils.mpBoundSql(boundSql);
+                //同一个BoundSql只改写一次
+                if (!precompiled && !mpBs.rewritten()) {
+                    applyTenantSql(ms, mpBs, parserWithDecision(ms, mpBs.sql(), false));
                 }
 
                 CacheKey cacheKey = executor.createCacheKey(ms, parameter, rowBounds, boundSql);
+                if (ms.getCache() != null) {
+                    //二级缓存的key显式包含改写时的租户, 由TenantCache从key中读取分区, 不再重新获取租户
+                    cacheKey.update(TenantCache.partitionKey(mpBs.tenantIds()));
+                }
                 return executor.query(ms, parameter, rowBounds, resultHandler, cacheKey, boundSql);
             }
         } else {
             final StatementHandler statementHandler = (StatementHandler) target;
 
+            //BatchExecutor复用Statement时只调用parameterize
+            if (PARAMETERIZE.equals(invocation.getMethod().getName())) {
+                rewriteReusedBatchStatement(statementHandler);
+                return invocation.proceed();
+            }
+
             if (args != null) {
                 TenantPluginUtils.MPStatementHandler mpStatementHandler = TenantPluginUtils.mpStatementHandler(statementHandler);
                 MappedStatement ms = mpStatementHandler.mappedStatement();
                 SqlCommandType sct = ms.getSqlCommandType();
 
-                if (sct == SqlCommandType.INSERT || sct == SqlCommandType.UPDATE || sct == SqlCommandType.DELETE) {
-                    if (!TenantPluginContext.willIgnoreMapper(ms.getId())) {
+                if (!isPrecompiled(ms) && sct == SqlCommandType.SELECT) {
+                    //Executor.query已改写的查询不再处理; queryCursor等未经过Executor.query的查询在这里改写
+                    //忽略的mapper已在Executor分支计入指标, 这里直接读取决策
+                    if (!TenantPluginContext.isShadowEnable() && TenantPluginContext.getDecision(ms) == TenantDecision.REWRITE) {
                         TenantPluginUtils.MPBoundSql mpBs = mpStatementHandler.mPBoundSql();
-                        mpBs.sql(parserMulti(mpBs.sql(), null));
+                        if (!mpBs.rewritten()) {
+                            applyTenantSql(ms, mpBs, parserWithDecision(ms, mpBs.sql(), false));
+                        }
+                    }
+                } else if (!isPrecompiled(ms) && (sct == SqlCommandType.INSERT || sct == SqlCommandType.UPDATE || sct == SqlCommandType.DELETE) && willRewrite(ms)) {
+                    TenantPluginUtils.MPBoundSql mpBs = mpStatementHandler.mPBoundSql();
+                    if (TenantPluginContext.isShadowEnable()) {
+                        shadow(ms, mpBs::sql, true);
+                    } else if (!mpBs.rewritten()) {
+                        Executor executor = mpStatementHandler.executor();
+                        if (executor instanceof BatchExecutor) {
+                            applyBatchTenantSql(executor, ms, mpBs);
+                        } else {
+                            applyTenantSql(ms, mpBs, parserWithDecision(ms, mpBs.sql(), true));
+                        }
                     }
                 }
             }
@@ -103,6 +173,132 @@ public class TenantPluginInterceptor implements Interceptor {
         return invocation.proceed();
     }
 
+    /**
+     * 影子模式: 不改写sql, 按采样率记录原sql, 由后台线程改写和输出
+     *
+     * @param ms    MappedStatement
+     * @param sql   原sql, 采样命中时才获取
+     * @param multi 是否按多条语句解析
+     */
+    void shadow(MappedStatement ms, Supplier<String> sql, boolean multi) {
+        if (TenantShadowRecorder.sampled(TenantPluginContext.getShadowSampleRate())) {
+            shadowRecorder().record(ms.getId(), sql.get(), multi);
+        }
+    }
+
+    /**
+     * 影子模式记录器
+     *
+     * @return 首次调用时创建
+     */
+    public TenantShadowRecorder shadowRecorder() {
+        TenantShadowRecorder recorder = shadowRecorder;
+        if (recorder == null) {
+            synchronized (this) {
+                recorder = shadowRecorder;
+                if (recorder == null) {
+                    TenantProperties properties = TenantPluginContext.getTenantProperties();
+                    recorder = new TenantShadowRecorder(this, properties == null || properties.getShadowBufferSize() == null ? 1024 : properties.getShadowBufferSize());
+                    TenantPluginContext.registerShadowRecorder(recorder);
+                    shadowRecorder = recorder;
+                }
+            }
+        }
+        return recorder;
+    }
+
+    /**
+     * 启动时已预编译的静态sql, 由 {@link TenantPrecompiledSqlSource} 完成改写
+     */
+    private static boolean isPrecompiled(MappedStatement ms) {
+        return ms.getSqlSource() instanceof TenantPrecompiledSqlSource;
+    }
+
+    /**
+     * BatchExecutor下同一MappedStatement的相同sql只改写一次, 整个批次复用同一个模板
+     */
+    private TenantSql batchTenantSql(Executor executor, MappedStatement ms, String sql) {
+        TenantBatchMemo memo = TenantBatchMemo.of(executor);
+        TenantSql tenantSql = memo.get(ms, sql);
+        if (tenantSql == null) {
+            tenantSql = parserWithDecision(ms, sql, true);
+            memo.put(ms, sql, tenantSql);
+        }
+        return tenantSql;
+    }
+
+    /**
+     * BatchExecutor下改写新预编译的Statement, 字面量模式下记录写入Statement的租户
+     */
+    private void applyBatchTenantSql(Executor executor, MappedStatement ms, TenantPluginUtils.MPBoundSql mpBs) {
+        String sql = mpBs.sql();
+        TenantSql tenantSql = batchTenantSql(executor, ms, sql);
+        List<Expression> tenantIds = tenantSql.getTenantCount() == 0 ? Collections.emptyList() : tenantIds();
+        applyTenantSql(ms, mpBs, tenantSql, tenantIds);
+        if (!TenantPluginContext.isBindParameter()) {
+            TenantBatchMemo.of(executor).prepared(ms, sql, tenantIds.isEmpty() ? null : TenantCache.tenantKey(tenantIds));
+        }
+    }
+
+    /**
+     * BatchExecutor复用已改写的Statement时, 新的BoundSql没有经过prepare, 按记录的模板补齐租户参数
+     * <p>
+     * 字面量模式下复用的Statement中已写入预编译时的租户ID, 只能用于同一个租户;
+     * 批次中途切换租户(TenantContextHolder, ITenantDefine返回不同租户)时抛出异常, 需要先 flushStatements 或启用绑定参数模式
+     * </p>
+     */
+    private void rewriteReusedBatchStatement(StatementHandler statementHandler) {
+        TenantBatchMemo memo = TenantBatchMemo.current();
+        if (memo == null) {
+            return;
+        }
+        TenantPluginUtils.MPStatementHandler mpStatementHandler = TenantPluginUtils.mpStatementHandler(statementHandler);
+        if (!memo.owns(mpStatementHandler.executor())) {
+            return;
+        }
+        TenantPluginUtils.MPBoundSql mpBs = mpStatementHandler.mPBoundSql();
+        if (mpBs.rewritten()) {
+            return;
+        }
+        MappedStatement ms = mpStatementHandler.mappedStatement();
+        if (!TenantPluginContext.isBindParameter()) {
+            String preparedTenantKey = memo.preparedTenantKey(ms, mpBs.sql());
+            if (preparedTenantKey != null) {
+                String tenantKey = TenantCache.tenantKey(tenantIds());
+                if (!preparedTenantKey.equals(tenantKey)) {
+                    throw TenantPluginException.tenantPluginException("Tenant changed from %s to %s within a batch of %s, flush statements before switching tenant or enable bind-parameter",
+                            preparedTenantKey, tenantKey, ms.getId());
+                }
+            }
+            return;
+        }
+        TenantSql tenantSql = memo.get(ms, mpBs.sql());
+        if (tenantSql != null) {
+            applyTenantSql(ms, mpBs, tenantSql);
+        }
+    }
+
+    /**
+     * 根据缓存的改写决策判断是否需要改写, 忽略的mapper和只涉及忽略表的静态sql直接放行
+     */
+    private static boolean willRewrite(MappedStatement ms) {
+        TenantDecision decision = TenantPluginContext.getDecision(ms);
+        if (decision == TenantDecision.IGNORE_MAPPER) {
+            TenantPluginContext.getMetrics().ignoredMapper(ms.getId());
+        }
+        return decision == TenantDecision.REWRITE;
+    }
+
+    /**
+     * 改写sql, 并记录静态sql的改写决策
+     */
+    private TenantSql parserWithDecision(MappedStatement ms, String sql, boolean multi) {
+        long generation = TenantPluginContext.snapshot().generation;
+        TenantSql tenantSql = parserWithCache(sql, ms.getId(), multi);
+        TenantPluginContext.learnDecision(ms, tenantSql, generation);
+        return tenantSql;
+    }
+
     @Override
     public Object plugin(Object target) {
         if (target instanceof Executor || target instanceof StatementHandler) {
@@ -116,16 +312,105 @@ public class TenantPluginInterceptor implements Interceptor {
         //do nothing
     }
 
+    /**
+     * 将改写结果写回 BoundSql
+     * <p>
+     * 1. 绑定参数模式: 租户ID替换为 ?, 并在对应位置追加租户参数
+     * 2. 默认模式: 租户ID以字面量写入sql
+     * </p>
+     *
+     * @param ms        MappedStatement
+     * @param mpBs      BoundSql
+     * @param tenantSql 改写后的sql模板
+     */
+    public void applyTenantSql(MappedStatement ms, TenantPluginUtils.MPBoundSql mpBs, TenantSql tenantSql) {
+        //每条语句只获取一次租户ID
+        applyTenantSql(ms, mpBs, tenantSql, tenantSql.getTenantCount() == 0 ? Collections.emptyList() : tenantIds());
+    }
+
+    /**
+     * 将改写结果写回 BoundSql
+     *
+     * @param ms        MappedStatement
+     * @param mpBs      BoundSql
+     * @param tenantSql 改写后的sql模板
+     * @param tenantIds 调用方已获取的租户ID, sql中没有租户时可以为空
+     */
+    public void applyTenantSql(MappedStatement ms, TenantPluginUtils.MPBoundSql mpBs, TenantSql tenantSql, List<Expression> tenantIds) {
+        if (tenantSql.getTenantCount() == 0) {
+            mpBs.sql(tenantSql.getParameterizedSql());
+            mpBs.markRewritten(tenantIds);
+            return;
+        }
+        if (!TenantPluginContext.isBindParameter()) {
+            mpBs.sql(tenantSql.getSql(tenantIds));
+            mpBs.markRewritten(tenantIds);
+            return;
+        }
+
+        int tenantCount = tenantIds.size();
+        int[] parameterIndexes = tenantSql.getParameterIndexes(tenantCount);
+        String parameterizedSql = tenantSql.getParameterizedSql(tenantIds);
+        ParameterMapping[] tenantMappings = new ParameterMapping[tenantCount];
+        for (int i = 0; i < tenantCount; i++) {
+            Object tenantId = TenantPluginUtils.tenantIdValue(tenantIds.get(i));
+            String property = tenantParameter(i);
+            tenantMappings[i] = TenantPluginUtils.tenantParameterMapping(ms.getConfiguration(), property, tenantId);
+            mpBs.additionalParameters().put(property, tenantId);
+        }
+        //下标升序, 一次合并, 多行insert时避免逐个插入的移动
+        List<ParameterMapping> original = mpBs.parameterMappings();
+        List<ParameterMapping> parameterMappings = new ArrayList<>(original.size() + parameterIndexes.length);
+        int next = 0;
+        for (int i = 0; i < parameterIndexes.length; i++) {
+            int index = parameterIndexes[i];
+            while (parameterMappings.size() < index && next < original.size()) {
+                parameterMappings.add(original.get(next++));
+            }
+            if (parameterMappings.size() < index) {
+                throw TenantPluginException.tenantPluginException("Tenant parameter index %s out of bounds, mapperId: %s", index, ms.getId());
+            }
+            parameterMappings.add(tenantMappings[i % tenantCount]);
+        }
+        parameterMappings.addAll(original.subList(next, original.size()));
+        mpBs.sql(parameterizedSql);
+        mpBs.parameterMappings(parameterMappings);
+        mpBs.markRewritten(tenantIds);
+    }
+
+    /**
+     * 绑定参数模式下第 index 个租户ID的参数名
+     */
+    private static String tenantParameter(int index) {
+        return index == 0 ? TENANT_PARAMETER : TENANT_PARAMETER + index;
+    }
+
     /**
      * SQL解析
+     * <p>
+     * 租户ID和租户条件以 {@link TenantSql#TENANT_ID}, {@link TenantSql#TENANT_CONDITION} 标记输出, 由 {@link TenantSql} 替换
+     * </p>
      *
      * @param statement JsqlParser Statement
      * @param index     Statement index
      * @param sql       原sql
      * @param obj       mapperId
-     * @return 解析后的sql
+     * @return 解析后带租户ID标记的sql
      */
     public String processParser(Statement statement, int index, String sql, Object obj) {
+        processStatement(statement, index, sql, obj);
+        return statement.toString();
+    }
+
+    /**
+     * 改写语法树, 不输出sql
+     *
+     * @param statement JsqlParser Statement
+     * @param index     Statement index
+     * @param sql       原sql
+     * @param obj       mapperId
+     */
+    public void processStatement(Statement statement, int index, String sql, Object obj) {
         if (statement instanceof Insert) {
             processInsert((Insert) statement, index, sql, obj);
         } else if (statement instanceof Select) {
@@ -135,10 +420,6 @@ public class TenantPluginInterceptor implements Interceptor {
         } else if (statement instanceof Delete) {
             processDelete((Delete) statement, index, sql, obj);
         }
-        sql = statement.toString();
-
-
-        return sql;
     }
 
     /**
@@ -153,6 +434,13 @@ public class TenantPluginInterceptor implements Interceptor {
         if (TenantPluginContext.willIgnoreTable(insert.getTable().getName())) {
             return;
         }
+        if (routeTable(insert.getTable(), false)) {
+            //路由的表不写入租户字段, insert select 的查询部分按查询处理
+            if (insert.getSelect() != null) {
+                processSelectBody(insert.getSelect().getSelectBody());
+            }
+            return;
+        }
         List<Column> columns = insert.getColumns();
         if (CollectionUtils.isEmpty(columns)) {
             //不给列名的insert不处理
@@ -169,7 +457,7 @@ public class TenantPluginInterceptor implements Interceptor {
         if (CollectionUtils.isNotEmpty(duplicateUpdateColumns)) {
             EqualsTo equalsTo = new EqualsTo();
             equalsTo.setLeftExpression(new StringValue(tenantIdColumn));
-            equalsTo.setRightExpression(tenantDefine.getTenantId());
+            equalsTo.setRightExpression(new TenantIdParameter());
             duplicateUpdateColumns.add(equalsTo);
         }
 
@@ -179,9 +467,9 @@ public class TenantPluginInterceptor implements Interceptor {
         } else if (insert.getItemsList() != null) {
             ItemsList itemsList = insert.getItemsList();
             if (itemsList instanceof MultiExpressionList) {
-                ((MultiExpressionList) itemsList).getExpressionLists().forEach(el -> el.getExpressions().add(tenantDefine.getTenantId()));
+                ((MultiExpressionList) itemsList).getExpressionLists().forEach(el -> el.getExpressions().add(new TenantIdParameter()));
             } else {
-                ((ExpressionList) itemsList).getExpressions().add(tenantDefine.getTenantId());
+                ((ExpressionList) itemsList).getExpressions().add(new TenantIdParameter());
             }
         } else {
             throw TenantPluginException.tenantPluginException("Failed to process multiple-table update, please exclude the tableName or statementId");
@@ -197,7 +485,7 @@ public class TenantPluginInterceptor implements Interceptor {
      * @param obj
      */
     public void processDelete(Delete delete, int index, String sql, Object obj) {
-        if (TenantPluginContext.willIgnoreTable(delete.getTable().getName())) {
+        if (TenantPluginContext.willIgnoreTable(delete.getTable().getName()) || routeTable(delete.getTable(), false)) {
             return;
         }
         delete.setWhere(andExpression(delete.getTable(), delete.getWhere()));
@@ -213,7 +501,7 @@ public class TenantPluginInterceptor implements Interceptor {
      */
     public void processUpdate(Update update, int index, String sql, Object obj) {
         final Table table = update.getTable();
-        if (TenantPluginContext.willIgnoreTable(table.getName())) {
+        if (TenantPluginContext.willIgnoreTable(table.getName()) || routeTable(table, true)) {
             return;
         }
         update.setWhere(this.andExpression(table, update.getWhere()));
@@ -228,41 +516,319 @@ public class TenantPluginInterceptor implements Interceptor {
      * @param obj
      */
     public void processSelect(Select select, int index, String sql, Object obj) {
-        processSelectBody(select.getSelectBody());
         List<WithItem> withItemsList = select.getWithItemsList();
-        if (!CollectionUtils.isEmpty(withItemsList)) {
-            withItemsList.forEach(this::processSelectBody);
+        //谓词下推时记录cte是否输出租户字段
+        boolean withScope = TenantPluginContext.isPredicatePushdownEnable() && !CollectionUtils.isEmpty(withItemsList);
+        if (withScope) {
+            Map<String, Boolean> withTenantColumns = new HashMap<>();
+            withItemsList.forEach(withItem -> withTenantColumns.put(withItem.getName().toLowerCase(), projectsTenantColumn(withItem)));
+            WITH_TENANT_COLUMNS.set(withTenantColumns);
+        }
+        try {
+            processSelectBody(select.getSelectBody());
+            if (!CollectionUtils.isEmpty(withItemsList)) {
+                withItemsList.forEach(this::processSelectBody);
+            }
+        } finally {
+            if (withScope) {
+                WITH_TENANT_COLUMNS.remove();
+            }
         }
     }
 
     public String parserSingle(String sql, Object obj) {
+        return renderSql(rewriteSingle(sql, obj));
+    }
+
+    public String parserMulti(String sql, Object obj) {
+        return renderSql(rewriteMulti(sql, obj));
+    }
+
+    /**
+     * 单条sql改写
+     *
+     * @param sql 原sql
+     * @param obj mapperId
+     * @return 改写后的sql模板
+     */
+    public TenantSql rewriteSingle(String sql, Object obj) {
+        TenantSql fastPathSql = rewriteFastPath(sql);
+        if (fastPathSql != null) {
+            return fastPathSql;
+        }
         try {
-            Statement statement = CCJSqlParserUtil.parse(sql);
-            return processParser(statement, 0, sql, obj);
+            boolean timed = TenantPluginContext.isMetricsEnable();
+            long start = nanoTime(timed);
+            Statement statement = TenantPluginContext.getSqlParser().parse(sql);
+            long parsed = nanoTime(timed);
+            processStatement(statement, 0, sql, obj);
+            long rewritten = nanoTime(timed);
+            String parsedSql = statement.toString();
+            long deparsed = nanoTime(timed);
+
+            TenantPluginContext.getMetrics().recordRewrite(commandType(statement), mapperId(obj), parsed - start, rewritten - parsed, deparsed - rewritten);
+            return TenantSql.compile(parsedSql);
         } catch (JSQLParserException e) {
+            TenantPluginContext.getMetrics().parseFailure(mapperId(obj));
             throw TenantPluginException.tenantPluginException("SQL解析失败: %s", e.getCause(), sql);
         }
     }
 
-    public String parserMulti(String sql, Object obj) {
+    /**
+     * 多条sql改写
+     *
+     * @param sql 原sql
+     * @param obj mapperId
+     * @return 改写后的sql模板
+     */
+    public TenantSql rewriteMulti(String sql, Object obj) {
+        TenantSql fastPathSql = rewriteFastPath(sql);
+        if (fastPathSql != null) {
+            return fastPathSql;
+        }
+        TenantSql parallelSql = rewriteParallel(sql, obj);
+        if (parallelSql != null) {
+            return parallelSql;
+        }
         try {
             StringBuilder sb = new StringBuilder();
-            Statements statements = CCJSqlParserUtil.parseStatements(sql);
+            boolean timed = TenantPluginContext.isMetricsEnable();
+            long start = nanoTime(timed);
+            Statements statements = TenantPluginContext.getSqlParser().parseStatements(sql);
+            long parseNanos = nanoTime(timed) - start;
+            long rewriteNanos = 0;
+            long deparseNanos = 0;
             int i = 0;
             for (Statement statement : statements.getStatements()) {
                 if (i > 0) {
                     sb.append(StringPool.SEMICOLON);
                 }
-                sb.append(processParser(statement, i, sql, obj));
+                long rewriteStart = nanoTime(timed);
+                processStatement(statement, i, sql, obj);
+                long rewritten = nanoTime(timed);
+                sb.append(statement.toString());
+                rewriteNanos += rewritten - rewriteStart;
+                deparseNanos += nanoTime(timed) - rewritten;
                 i++;
             }
 
-            return sb.toString();
+            SqlCommandType commandType = statements.getStatements().isEmpty() ? SqlCommandType.UNKNOWN : commandType(statements.getStatements().get(0));
+            TenantPluginContext.getMetrics().recordRewrite(commandType, mapperId(obj), parseNanos, rewriteNanos, deparseNanos);
+            return TenantSql.compile(sb.toString());
         } catch (JSQLParserException e) {
+            TenantPluginContext.getMetrics().parseFailure(mapperId(obj));
             throw TenantPluginException.tenantPluginException("SQL解析失败: %s", e.getCause(), sql);
         }
     }
 
+    /**
+     * 语句条数达到阈值的脚本拆分后并行改写, 按原顺序拼接, 结果与逐条改写相同
+     *
+     * @param sql 原sql
+     * @param obj mapperId
+     * @return 未启用,不能拆分或有语句解析失败时返回null, 由调用方按整个脚本改写
+     */
+    private TenantSql rewriteParallel(String sql, Object obj) {
+        int threshold = TenantPluginContext.getScriptParallelThreshold();
+        if (threshold <= 0 || sql.indexOf(';') < 0) {
+            return null;
+        }
+        TenantSqlParser parser = TenantPluginContext.getSqlParser();
+        if (parser.getScriptParallelism() <= 1) {
+            return null;
+        }
+        List<String> scripts = TenantSqlScript.split(sql);
+        if (scripts == null || scripts.size() < threshold) {
+            return null;
+        }
+
+        boolean timed = TenantPluginContext.isMetricsEnable();
+        List<Future<RewrittenStatement>> futures = new ArrayList<>(scripts.size());
+        try {
+            for (int i = 0; i < scripts.size(); i++) {
+                int index = i;
+                String script = scripts.get(i);
+                futures.add(parser.scriptPool().submit(() -> rewriteStatement(parser, script, index, sql, obj, timed)));
+            }
+
+            StringBuilder sb = new StringBuilder(sql.length() + 64);
+            SqlCommandType commandType = SqlCommandType.UNKNOWN;
+            long parseNanos = 0;
+            long rewriteNanos = 0;
+            long deparseNanos = 0;
+            for (int i = 0; i < futures.size(); i++) {
+                RewrittenStatement statement = await(futures.get(i));
+                if (statement == null) {
+                    //单条解析失败时按整个脚本解析, 保证异常信息与逐条改写一致
+                    return null;
+                }
+                if (i > 0) {
+                    sb.append(StringPool.SEMICOLON);
+                } else {
+                    commandType = statement.commandType;
+                }
+                sb.append(statement.sql);
+                parseNanos += statement.parseNanos;
+                rewriteNanos += statement.rewriteNanos;
+                deparseNanos += statement.deparseNanos;
+            }
+            TenantPluginContext.getMetrics().recordRewrite(commandType, mapperId(obj), parseNanos, rewriteNanos, deparseNanos);
+            return TenantSql.compile(sb.toString());
+        } catch (RejectedExecutionException e) {
+            //配置刷新时线程池已关闭
+            return null;
+        } finally {
+            for (Future<RewrittenStatement> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * 解析和改写脚本中的一条语句
+     *
+     * @return 解析失败时返回null
+     */
+    private RewrittenStatement rewriteStatement(TenantSqlParser parser, String script, int index, String sql, Object obj, boolean timed) {
+        long start = nanoTime(timed);
+        Statement statement;
+        try {
+            statement = parser.parse(script);
+        } catch (JSQLParserException e) {
+            return null;
+        }
+        long parsed = nanoTime(timed);
+        processStatement(statement, index, sql, obj);
+        long rewritten = nanoTime(timed);
+        String parsedSql = statement.toString();
+        return new RewrittenStatement(parsedSql, commandType(statement), parsed - start, rewritten - parsed, nanoTime(timed) - rewritten);
+    }
+
+    /**
+     * 等待并行改写的结果, 改写时的异常原样抛出
+     */
+    private static RewrittenStatement await(Future<RewrittenStatement> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw TenantPluginException.tenantPluginException("Interrupted while rewriting sql script", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw TenantPluginException.tenantPluginException("Failed to rewrite sql script", cause);
+        }
+    }
+
+    /**
+     * 带缓存的sql改写, 未启用缓存时直接改写
+     * <p>
+     * 启用形状折叠时以 {@link TenantSqlShape} 为key, 不同长度的 IN 列表只解析一次, 再按原长度展开;
+     * 改写结果中找不到对应的列表时退回按原sql缓存
+     * </p>
+     *
+     * @param sql      原sql
+     * @param mapperId mapperId
+     * @param multi    是否按多条语句解析
+     * @return 改写后的sql模板
+     */
+    public TenantSql parserWithCache(String sql, String mapperId, boolean multi) {
+        TenantSqlCache sqlCache = TenantPluginContext.getSqlCache();
+        if (sqlCache == null) {
+            return multi ? rewriteMulti(sql, mapperId) : rewriteSingle(sql, mapperId);
+        }
+
+        if (TenantPluginContext.isCacheNormalizeEnable()) {
+            TenantSqlShape shape = TenantSqlShape.of(sql);
+            if (shape != null) {
+                TenantSql tenantSql = cached(sqlCache, shape.getSql(), mapperId, multi).expand(shape.getInListSizes());
+                if (tenantSql != null) {
+                    return tenantSql;
+                }
+            }
+        }
+        return cached(sqlCache, sql, mapperId, multi);
+    }
+
+    private TenantSql cached(TenantSqlCache sqlCache, String sql, String mapperId, boolean multi) {
+        //改写前确定快照代数, 改写期间配置刷新时结果只记在旧代数下
+        TenantPluginSnapshot current = TenantPluginContext.snapshot();
+        TenantSqlCache.Key key = new TenantSqlCache.Key(mapperId, sql, current.properties.getColumn(), current.generation);
+        TenantSql tenantSql = sqlCache.get(key);
+        if (tenantSql == null) {
+            tenantSql = multi ? rewriteMulti(sql, mapperId) : rewriteSingle(sql, mapperId);
+            sqlCache.put(key, tenantSql);
+        }
+        return tenantSql;
+    }
+
+    /**
+     * 简单单表语句和多行insert的词法改写, 未启用或不是简单语句时返回null
+     */
+    private TenantSql rewriteFastPath(String sql) {
+        int insertSpliceRows = TenantPluginContext.getInsertSpliceRows();
+        if (insertSpliceRows > 0) {
+            String splicedSql = insertSplicer.rewrite(sql, insertSpliceRows);
+            if (splicedSql != null) {
+                return TenantSql.compile(splicedSql);
+            }
+        }
+        if (!TenantPluginContext.isFastPathEnable()) {
+            return null;
+        }
+        String parsedSql = fastPathRewriter.rewrite(sql);
+        return parsedSql == null ? null : TenantSql.compile(parsedSql);
+    }
+
+    /**
+     * 配置了监控指标时才取当前时间, 否则返回0
+     */
+    private static long nanoTime(boolean timed) {
+        return timed ? System.nanoTime() : 0L;
+    }
+
+    private static SqlCommandType commandType(Statement statement) {
+        if (statement instanceof Select) {
+            return SqlCommandType.SELECT;
+        } else if (statement instanceof Insert) {
+            return SqlCommandType.INSERT;
+        } else if (statement instanceof Update) {
+            return SqlCommandType.UPDATE;
+        } else if (statement instanceof Delete) {
+            return SqlCommandType.DELETE;
+        }
+        return SqlCommandType.UNKNOWN;
+    }
+
+    private static String mapperId(Object obj) {
+        return obj == null ? null : obj.toString();
+    }
+
+    /**
+     * 按当前模式输出sql, 绑定参数模式下由调用方绑定租户参数
+     */
+    private String renderSql(TenantSql tenantSql) {
+        boolean bindParameter = TenantPluginContext.isBindParameter();
+        if (tenantSql.getTenantCount() == 0 || (bindParameter && !tenantSql.isRouted())) {
+            return tenantSql.getParameterizedSql();
+        }
+        //路由的库名/表名不能绑定参数, 绑定参数模式下也按租户输出
+        return bindParameter ? tenantSql.getParameterizedSql(tenantIds()) : tenantSql.getSql(tenantIds());
+    }
+
+    /**
+     * 当前租户ID, 优先使用 {@link TenantContextHolder} 中设置的租户
+     */
+    private List<Expression> tenantIds() {
+        List<Expression> tenantIds = TenantContextHolder.resolve(tenantDefine);
+        return tenantIds == null ? Collections.emptyList() : tenantIds;
+    }
+
     /**
      * 处理 insert into select,进入这里表示需要insert的表启用了多租户,则select的表都启动了
      *
@@ -296,9 +862,7 @@ public class TenantPluginInterceptor implements Interceptor {
 
     public BinaryExpression andExpression(Table table, Expression where) {
         //获得where条件表达式
-        EqualsTo equalsTo = new EqualsTo();
-        equalsTo.setLeftExpression(this.getAliasColumn(table));
-        equalsTo.setRightExpression(tenantDefine.getTenantId());
+        EqualsTo equalsTo = new TenantCondition(this.getAliasColumn(table));
         if (null != where) {
             if (where instanceof OrExpression) {
                 return new AndExpression(equalsTo, new Parenthesis(where));
@@ -313,18 +877,7 @@ public class TenantPluginInterceptor implements Interceptor {
         if (selectBody == null) {
             return;
         }
-        if (selectBody instanceof PlainSelect) {
-            processPlainSelect((PlainSelect) selectBody);
-        } else if (selectBody instanceof WithItem) {
-            WithItem withItem = (WithItem) selectBody;
-            processSelectBody(withItem.getSubSelect().getSelectBody());
-        } else {
-            SetOperationList operationList = (SetOperationList) selectBody;
-            List<SelectBody> selectBodys = operationList.getSelects();
-            if (CollectionUtils.isNotEmpty(selectBodys)) {
-                selectBodys.forEach(this::processSelectBody);
-            }
-        }
+        selectBody.accept(subSelectVisitor);
     }
 
     /**
@@ -336,9 +889,10 @@ public class TenantPluginInterceptor implements Interceptor {
             selectItems.forEach(this::processSelectItem);
         }
 
-        //处理where中的子查询
+        //处理where和having中的子查询
         Expression where = plainSelect.getWhere();
         processWhereSubSelect(where);
+        processWhereSubSelect(plainSelect.getHaving());
 
         //处理fromItem
         FromItem fromItem = plainSelect.getFromItem();
@@ -363,14 +917,7 @@ public class TenantPluginInterceptor implements Interceptor {
      * @param selectItem
      */
     public void processSelectItem(SelectItem selectItem) {
-        if (selectItem instanceof SelectExpressionItem) {
-            SelectExpressionItem selectExpressionItem = (SelectExpressionItem) selectItem;
-            if (selectExpressionItem.getExpression() instanceof SubSelect) {
-                processSelectBody(((SubSelect) selectExpressionItem.getExpression()).getSelectBody());
-            } else if (selectExpressionItem.getExpression() instanceof Function) {
-                processFunction((Function) selectExpressionItem.getExpression());
-            }
-        }
+        selectItem.accept(subSelectVisitor);
     }
 
     /**
@@ -384,35 +931,18 @@ public class TenantPluginInterceptor implements Interceptor {
      * @param function
      */
     public void processFunction(Function function) {
-        ExpressionList parameters = function.getParameters();
-        if (parameters != null) {
-            parameters.getExpressions().forEach(expression -> {
-                if (expression instanceof SubSelect) {
-                    processSelectBody(((SubSelect) expression).getSelectBody());
-                } else if (expression instanceof Function) {
-                    processFunction((Function) expression);
-                }
-            });
-        }
+        function.accept(subSelectVisitor);
     }
 
     /**
      * 处理where条件内的子查询
      * <p>
-     * 支持如下:
-     * 1. in
-     * 2. =
-     * 3. >
-     * 4. <
-     * 5. >=
-     * 6. <=
-     * 7. <>
-     * 8. EXISTS
-     * 9. NOT EXISTS
+     * 一次遍历表达式树, 子查询可以出现在任意位置:
+     * 1. in, exists, not exists
+     * 2. 比较操作符的任意一边
+     * 3. case when, between, is null 的操作数
+     * 4. 函数参数
      * <p>
-     * 前提条件:
-     * 1. 子查询必须放在小括号中
-     * 2. 子查询一般放在比较操作符的右边
      *
      * @param where where 条件
      */
@@ -420,37 +950,7 @@ public class TenantPluginInterceptor implements Interceptor {
         if (where == null) {
             return;
         }
-        if (where instanceof FromItem) {
-            processOtherFromItem((FromItem) where);
-            return;
-        }
-        if (where.toString().indexOf("SELECT") > 0) {
-            //有子查询
-            if (where instanceof BinaryExpression) {
-                //比较符号and,or等等
-                BinaryExpression expression = (BinaryExpression) where;
-                processWhereSubSelect(expression.getLeftExpression());
-                processWhereSubSelect(expression.getRightExpression());
-            } else if (where instanceof InExpression) {
-                //in
-                InExpression expression = (InExpression) where;
-                Expression inExpression = expression.getRightExpression();
-                if (inExpression instanceof SubSelect) {
-                    processSelectBody(((SubSelect) inExpression).getSelectBody());
-                }
-            } else if (where instanceof ExistsExpression) {
-                //exists
-                ExistsExpression expression = (ExistsExpression) where;
-                processWhereSubSelect(expression.getRightExpression());
-            } else if (where instanceof NotExpression) {
-                //not exists
-                NotExpression expression = (NotExpression) where;
-                processWhereSubSelect(expression.getExpression());
-            } else if (where instanceof Parenthesis) {
-                Parenthesis expression = (Parenthesis) where;
-                processWhereSubSelect(expression.getExpression());
-            }
-        }
+        where.accept(subSelectVisitor);
     }
 
     /**
@@ -459,27 +959,10 @@ public class TenantPluginInterceptor implements Interceptor {
      * @param fromItem
      */
     public void processOtherFromItem(FromItem fromItem) {
-        //去除括号
-        while (fromItem instanceof ParenthesisFromItem) {
-            fromItem = ((ParenthesisFromItem) fromItem).getFromItem();
-        }
-
-        if (fromItem instanceof SubSelect) {
-            SubSelect subSelect = (SubSelect) fromItem;
-            if (subSelect.getSelectBody() != null) {
-                processSelectBody(subSelect.getSelectBody());
-            }
-        } else if (fromItem instanceof ValuesList) {
-            //do nothing
-        } else if (fromItem instanceof LateralSubSelect) {
-            LateralSubSelect lateralSubSelect = (LateralSubSelect) fromItem;
-            if (lateralSubSelect.getSubSelect() != null) {
-                SubSelect subSelect = lateralSubSelect.getSubSelect();
-                if (subSelect.getSelectBody() != null) {
-                    processSelectBody(subSelect.getSelectBody());
-                }
-            }
+        if (fromItem == null) {
+            return;
         }
+        fromItem.accept(subSelectVisitor);
     }
 
     /**
@@ -498,7 +981,7 @@ public class TenantPluginInterceptor implements Interceptor {
         //无join时的处理逻辑
         if (fromItem instanceof Table) {
             Table fromTable = (Table) fromItem;
-            if (!TenantPluginContext.willIgnoreTable(fromTable.getName())) {
+            if (!ignoreTable(fromTable)) {
                 mainTables.add(fromTable);
             }
         } else if (fromItem instanceof SubJoin) {
@@ -508,6 +991,10 @@ public class TenantPluginInterceptor implements Interceptor {
         } else {
             //处理下fromItem
             processOtherFromItem(fromItem);
+            Table derivedTable = derivedTable(fromItem);
+            if (derivedTable != null) {
+                mainTables.add(derivedTable);
+            }
         }
         return mainTables;
     }
@@ -562,6 +1049,14 @@ public class TenantPluginInterceptor implements Interceptor {
                 joinTables.add((Table) joinItem);
             } else if (joinItem instanceof SubJoin) {
                 joinTables = processSubJoin((SubJoin) joinItem);
+            } else {
+                //输出租户字段的派生表, 处理完子查询后按表处理
+                Table derivedTable = derivedTable(joinItem);
+                if (derivedTable != null) {
+                    processOtherFromItem(joinItem);
+                    joinTables = new ArrayList<>();
+                    joinTables.add(derivedTable);
+                }
             }
 
             if (joinTables != null) {
@@ -574,7 +1069,7 @@ public class TenantPluginInterceptor implements Interceptor {
 
                 //当前表是否忽略
                 Table joinTable = joinTables.get(0);
-                boolean joinTableNeedIgnore = TenantPluginContext.willIgnoreTable(joinTable.getName());
+                boolean joinTableNeedIgnore = !(joinTable instanceof DerivedTable) && ignoreTable(joinTable);
 
                 List<Table> onTables = null;
                 //如果不要忽略,且是右连接,则记录下当前表
@@ -602,6 +1097,7 @@ public class TenantPluginInterceptor implements Interceptor {
 
                 //获取join尾缀的on表达式列表
                 Collection<Expression> originOnExpressions = join.getOnExpressions();
+                originOnExpressions.forEach(this::processWhereSubSelect);
                 //正常join on表达式只有一个,立刻处理
                 if (originOnExpressions.size() == 1 && onTables != null) {
                     List<Expression> onExpressions = new LinkedList<>();
@@ -648,11 +1144,9 @@ public class TenantPluginInterceptor implements Interceptor {
         if (CollectionUtils.isEmpty(tables)) {
             return currentExpression;
         }
-        //租户
-        Expression tenantId = tenantDefine.getTenantId();
         //构造每张表的条件
         List<EqualsTo> equalsTos = tables.stream()
-                .map(item -> new EqualsTo(getAliasColumn(item), tenantId))
+                .map(item -> new TenantCondition(getAliasColumn(item)))
                 .collect(Collectors.toList());
         //注入的表达式
         Expression injectExpression = equalsTos.get(0);
@@ -691,4 +1185,265 @@ public class TenantPluginInterceptor implements Interceptor {
         return new Column(column.toString());
     }
 
+    /**
+     * 表是否忽略, 谓词下推时不输出租户字段的cte也忽略, 按租户路由的表改写表名后也不再追加租户条件
+     */
+    private boolean ignoreTable(Table table) {
+        if (TenantPluginContext.willIgnoreTable(table.getName()) || routeTable(table, true)) {
+            return true;
+        }
+        Map<String, Boolean> withTenantColumns = WITH_TENANT_COLUMNS.get();
+        if (withTenantColumns == null || table.getSchemaName() != null) {
+            return false;
+        }
+        return Boolean.FALSE.equals(withTenantColumns.get(table.getName().toLowerCase()));
+    }
+
+    /**
+     * 按租户路由的表, 将库名/表名改写为带 {@link TenantSql#TENANT_NAME} 标记的名称
+     * <p>
+     * 1. 路由模板中的 {tenant} 替换为租户标记, {table} 替换为原表名, 模板带 . 时前半部分作为库名
+     * 2. 查询和update中表名改变且没有别名时以原表名作为别名, 保证 原表名.字段 的引用仍然有效
+     * 3. 已改写的表(同一语法树被多次访问)直接返回
+     * </p>
+     *
+     * @param table    表
+     * @param addAlias 是否补充别名, insert和delete的目标表不支持别名
+     * @return 是否为路由的表
+     */
+    private static boolean routeTable(Table table, boolean addAlias) {
+        String name = table.getName();
+        if (name == null) {
+            return false;
+        }
+        if (name.contains(TenantSql.TENANT_NAME) || (table.getSchemaName() != null && table.getSchemaName().contains(TenantSql.TENANT_NAME))) {
+            return true;
+        }
+        String route = TenantPluginContext.getTableRoute(name);
+        if (route == null) {
+            return false;
+        }
+        String tableName = unquote(name);
+        String quote = tableName.length() == name.length() ? "" : name.substring(0, 1);
+        String routed = route.replace(TenantPluginContext.TABLE_ROUTE_TABLE, tableName)
+                .replace(TenantPluginContext.TABLE_ROUTE_TENANT, TenantSql.TENANT_NAME);
+        int dot = routed.lastIndexOf('.');
+        String routedName = routed.substring(dot + 1);
+        if (dot >= 0) {
+            table.setSchemaName(quote + routed.substring(0, dot) + quote);
+        }
+        table.setName(quote + routedName + quote);
+        if (addAlias && table.getAlias() == null && !routedName.equals(tableName)) {
+            table.setAlias(new Alias(name, false));
+        }
+        return true;
+    }
+
+    /**
+     * 谓词下推: 有别名且输出租户字段的派生表, 以别名作为表追加租户条件
+     *
+     * @param fromItem from或join中的子查询
+     * @return 不需要下推时返回null
+     */
+    private Table derivedTable(FromItem fromItem) {
+        if (!TenantPluginContext.isPredicatePushdownEnable() || !(fromItem instanceof SubSelect) || fromItem.getAlias() == null) {
+            return null;
+        }
+        SubSelect subSelect = (SubSelect) fromItem;
+        if (!projectsTenantColumn(subSelect.getSelectBody())) {
+            return null;
+        }
+        return new DerivedTable(fromItem.getAlias().getName());
+    }
+
+    private boolean projectsTenantColumn(WithItem withItem) {
+        if (CollectionUtils.isNotEmpty(withItem.getWithItemList())) {
+            return withItem.getWithItemList().stream().anyMatch(item -> isTenantColumn(item.toString()));
+        }
+        return withItem.getSubSelect() != null && projectsTenantColumn(withItem.getSubSelect().getSelectBody());
+    }
+
+    /**
+     * 子查询的输出列是否包含租户字段
+     * <p>
+     * 1. 显式输出租户字段, 或以租户字段为别名
+     * 2. 单表 * 或 表.*, 且该表需要租户条件
+     * </p>
+     */
+    private boolean projectsTenantColumn(SelectBody selectBody) {
+        if (selectBody instanceof SetOperationList) {
+            List<SelectBody> selects = ((SetOperationList) selectBody).getSelects();
+            //union的列名由第一个查询决定, 但每个分支都需要输出租户字段
+            return CollectionUtils.isNotEmpty(selects) && selects.stream().allMatch(this::projectsTenantColumn);
+        }
+        if (!(selectBody instanceof PlainSelect)) {
+            return false;
+        }
+        PlainSelect plainSelect = (PlainSelect) selectBody;
+        if (CollectionUtils.isEmpty(plainSelect.getSelectItems())) {
+            return false;
+        }
+        for (SelectItem selectItem : plainSelect.getSelectItems()) {
+            if (selectItem instanceof SelectExpressionItem) {
+                SelectExpressionItem item = (SelectExpressionItem) selectItem;
+                if (item.getAlias() != null) {
+                    if (isTenantColumn(item.getAlias().getName())) {
+                        return true;
+                    }
+                } else if (item.getExpression() instanceof Column && isTenantColumn(((Column) item.getExpression()).getColumnName())) {
+                    return true;
+                }
+            } else if (selectItem instanceof AllColumns) {
+                if (CollectionUtils.isEmpty(plainSelect.getJoins()) && plainSelect.getFromItem() instanceof Table
+                        && !ignoreTable((Table) plainSelect.getFromItem())) {
+                    return true;
+                }
+            } else if (selectItem instanceof AllTableColumns) {
+                if (isTenantTable(plainSelect, ((AllTableColumns) selectItem).getTable())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 表.* 中的表(按别名或表名匹配)是否需要租户条件
+     */
+    private boolean isTenantTable(PlainSelect plainSelect, Table reference) {
+        List<FromItem> fromItems = new ArrayList<>();
+        fromItems.add(plainSelect.getFromItem());
+        if (CollectionUtils.isNotEmpty(plainSelect.getJoins())) {
+            plainSelect.getJoins().forEach(join -> fromItems.add(join.getRightItem()));
+        }
+        for (FromItem fromItem : fromItems) {
+            if (!(fromItem instanceof Table)) {
+                continue;
+            }
+            Table table = (Table) fromItem;
+            String name = table.getAlias() != null ? table.getAlias().getName() : table.getName();
+            if (name.equalsIgnoreCase(reference.getName())) {
+                return !ignoreTable(table);
+            }
+        }
+        return false;
+    }
+
+    private static boolean isTenantColumn(String name) {
+        return unquote(name).equalsIgnoreCase(TenantPluginContext.getTenantColumn());
+    }
+
+    private static String unquote(String name) {
+        if (name.length() > 1) {
+            char first = name.charAt(0);
+            char last = name.charAt(name.length() - 1);
+            if ((first == '`' && last == '`') || (first == '"' && last == '"')) {
+                return name.substring(1, name.length() - 1);
+            }
+        }
+        return name;
+    }
+
+    /**
+     * 派生表的别名, 只用于生成 别名.租户字段 条件
+     */
+    private static final class DerivedTable extends Table {
+        DerivedTable(String alias) {
+            super(alias);
+        }
+    }
+
+    /**
+     * 子查询访问器
+     * <p>
+     * 单次遍历语法树, 遇到子查询时进入 {@link #processSelectBody(SelectBody)}, 不依赖sql字符串判断
+     * </p>
+     */
+    private class SubSelectVisitor extends ExpressionVisitorAdapter implements SelectVisitor, FromItemVisitor {
+
+        SubSelectVisitor() {
+            setSelectVisitor(this);
+        }
+
+        @Override
+        public void visit(PlainSelect plainSelect) {
+            processPlainSelect(plainSelect);
+        }
+
+        @Override
+        public void visit(SetOperationList setOpList) {
+            List<SelectBody> selectBodys = setOpList.getSelects();
+            if (CollectionUtils.isNotEmpty(selectBodys)) {
+                selectBodys.forEach(selectBody -> selectBody.accept(this));
+            }
+        }
+
+        @Override
+        public void visit(WithItem withItem) {
+            if (withItem.getSubSelect() != null) {
+                processSelectBody(withItem.getSubSelect().getSelectBody());
+            }
+        }
+
+        @Override
+        public void visit(ValuesStatement valuesStatement) {
+            //do nothing
+        }
+
+        @Override
+        public void visit(Table table) {
+            //表由processFromItem处理
+        }
+
+        @Override
+        public void visit(SubJoin subJoin) {
+            //由processSubJoin处理
+        }
+
+        @Override
+        public void visit(LateralSubSelect lateralSubSelect) {
+            if (lateralSubSelect.getSubSelect() != null) {
+                lateralSubSelect.getSubSelect().accept((ExpressionVisitor) this);
+            }
+        }
+
+        @Override
+        public void visit(ValuesList valuesList) {
+            //do nothing
+        }
+
+        @Override
+        public void visit(TableFunction tableFunction) {
+            if (tableFunction.getFunction() != null) {
+                tableFunction.getFunction().accept(this);
+            }
+        }
+
+        @Override
+        public void visit(ParenthesisFromItem parenthesisFromItem) {
+            if (parenthesisFromItem.getFromItem() != null) {
+                parenthesisFromItem.getFromItem().accept(this);
+            }
+        }
+    }
+
+    /**
+     * 并行改写的单条语句
+     */
+    private static final class RewrittenStatement {
+        private final String sql;
+        private final SqlCommandType commandType;
+        private final long parseNanos;
+        private final long rewriteNanos;
+        private final long deparseNanos;
+
+        RewrittenStatement(String sql, SqlCommandType commandType, long parseNanos, long rewriteNanos, long deparseNanos) {
+            this.sql = sql;
+            this.commandType = commandType;
+            this.parseNanos = parseNanos;
+            this.rewriteNanos = rewriteNanos;
+            this.deparseNanos = deparseNanos;
+        }
+    }
+
 }
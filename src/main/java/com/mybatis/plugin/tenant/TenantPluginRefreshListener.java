@@ -0,0 +1,71 @@
+package com.mybatis.plugin.tenant;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.core.env.Environment;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+
+/**
+ * 配置刷新监听
+ * <p>
+ * 收到 spring cloud 的 EnvironmentChangeEvent 且变更的key包含插件配置时, 从 {@link Environment} 重新绑定配置并刷新
+ * {@link TenantPluginContext}, 不依赖 spring cloud, 按事件类名判断
+ * </p>
+ */
+public class TenantPluginRefreshListener implements ApplicationListener<ApplicationEvent> {
+
+    private static final Log log = LogFactory.getLog(TenantPluginRefreshListener.class);
+
+    private static final String ENVIRONMENT_CHANGE_EVENT = "org.springframework.cloud.context.environment.EnvironmentChangeEvent";
+
+    private final Environment environment;
+
+    public TenantPluginRefreshListener(Environment environment) {
+        this.environment = environment;
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationEvent event) {
+        if (!ENVIRONMENT_CHANGE_EVENT.equals(event.getClass().getName()) || !changesTenantProperties(event)) {
+            return;
+        }
+        try {
+            TenantProperties tenantProperties = Binder.get(environment).bind(TenantProperties.PREFIX, TenantProperties.class).orElseGet(TenantProperties::new);
+            TenantPluginContext.refresh(tenantProperties);
+            log.info(String.format("Tenant plugin configuration refreshed, ignore tables: %s", TenantPluginContext.getIgnoreTables()));
+        } catch (Exception e) {
+            //刷新失败时保留原配置
+            log.error("Failed to refresh tenant plugin configuration", e);
+        }
+    }
+
+    /**
+     * 变更的key是否包含插件配置, 无法获取时视为包含
+     */
+    private static boolean changesTenantProperties(ApplicationEvent event) {
+        Collection<?> keys;
+        try {
+            Method getKeys = event.getClass().getMethod("getKeys");
+            keys = (Collection<?>) getKeys.invoke(event);
+        } catch (Exception e) {
+            return true;
+        }
+        if (keys == null) {
+            return true;
+        }
+        for (Object key : keys) {
+            //兼容环境变量形式的key, 如 MYBATIS_TENANT_PLUGIN_IGNORE_TABLES
+            String name = String.valueOf(key).toLowerCase().replace('_', '.');
+            if (name.startsWith(TenantProperties.PREFIX)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
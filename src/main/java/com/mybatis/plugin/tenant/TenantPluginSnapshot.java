@@ -0,0 +1,235 @@
+package com.mybatis.plugin.tenant;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.ibatis.io.ResolverUtil;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.util.ClassUtils;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多租户插件配置的不可变快照
+ * <p>
+ * 1. 忽略的mapper类,mapper方法,表和路由的表在构建时一次性计算, 之后不再修改, 读取时不需要加锁
+ * 2. 配置刷新时构建新的快照整体替换, mapper包路径不变时复用已扫描的mapper
+ * </p>
+ */
+final class TenantPluginSnapshot {
+
+    /*默认忽略的主键查询,删除,更新方法*/
+    static final Set<String> DEFAULT_IGNORE_METHODS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("selectByPrimaryKey", "deleteByPrimaryKey", "updateByPrimaryKeySelective")));
+
+    /*快照代数的计数器*/
+    private static final AtomicLong GENERATIONS = new AtomicLong();
+
+    /*插件未初始化时的快照*/
+    static final TenantPluginSnapshot EMPTY = new TenantPluginSnapshot(null, null, Collections.emptySet(), Collections.emptySet(),
+            new String[0], Collections.emptyMap());
+
+    /*快照代数, 每个快照唯一; 改写缓存和改写决策记录改写开始时的代数, 配置刷新后旧代数的结果不再使用*/
+    final long generation = GENERATIONS.incrementAndGet();
+
+    /*配置*/
+    final TenantProperties properties;
+
+    /*扫描mapper时的包路径*/
+    final String mapperLocations;
+
+    /*忽略的mapper类*/
+    final Set<String> ignoreMapperClasses;
+
+    /*忽略的mapper方法*/
+    final Set<String> ignoreMapperMethods;
+
+    /*忽略的表*/
+    final String[] ignoreTables;
+
+    /*按租户路由的表: 小写表名 -> 路由模板*/
+    final Map<String, String> tableRoutes;
+
+    private TenantPluginSnapshot(TenantProperties properties, String mapperLocations, Set<String> ignoreMapperClasses, Set<String> ignoreMapperMethods,
+                                 String[] ignoreTables, Map<String, String> tableRoutes) {
+        this.properties = properties;
+        this.mapperLocations = mapperLocations;
+        this.ignoreMapperClasses = ignoreMapperClasses;
+        this.ignoreMapperMethods = ignoreMapperMethods;
+        this.ignoreTables = ignoreTables;
+        this.tableRoutes = tableRoutes;
+    }
+
+    /**
+     * 根据配置构建快照
+     *
+     * @param properties 配置
+     * @param previous   上一个快照, mapper包路径相同时复用扫描结果
+     * @return 快照
+     */
+    static TenantPluginSnapshot build(TenantProperties properties, TenantPluginSnapshot previous) {
+        if (!Boolean.TRUE.equals(properties.getEnable())) {
+            return new TenantPluginSnapshot(properties, null, Collections.emptySet(), Collections.emptySet(),
+                    new String[0], Collections.emptyMap());
+        }
+
+        Set<String> ignoreMapperClasses;
+        Set<String> ignoreMapperMethods;
+        String mapperLocations = properties.getMapperLocations();
+        boolean ignoreIndexOnly = Boolean.TRUE.equals(properties.getIgnoreIndexOnly());
+        if (previous.properties != null && previous.mapperLocations != null && previous.mapperLocations.equals(mapperLocations)
+                && ignoreIndexOnly == Boolean.TRUE.equals(previous.properties.getIgnoreIndexOnly())) {
+            ignoreMapperClasses = previous.ignoreMapperClasses;
+            ignoreMapperMethods = previous.ignoreMapperMethods;
+        } else {
+            ignoreMapperClasses = new HashSet<>();
+            ignoreMapperMethods = new HashSet<>();
+            //需要忽略的mapper类或mapper方法, 编译期索引中记录的类直接读取索引, 其它类加载后反射
+            TenantIgnoreIndex ignoreIndex = TenantIgnoreIndex.load(ClassUtils.getDefaultClassLoader());
+            String[] basePackages = StringUtils.split(mapperLocations, ",");
+            if (basePackages != null) {
+                for (String packageName : basePackages) {
+                    scanMapperPackage(packageName.trim(), ignoreIndex, ignoreIndexOnly, ignoreMapperClasses, ignoreMapperMethods);
+                }
+            }
+            ignoreMapperClasses = Collections.unmodifiableSet(ignoreMapperClasses);
+            ignoreMapperMethods = Collections.unmodifiableSet(ignoreMapperMethods);
+        }
+
+        return new TenantPluginSnapshot(properties, mapperLocations, ignoreMapperClasses, ignoreMapperMethods,
+                ignoreTables(properties.getIgnoreTables()), tableRoutes(properties.getRouteTables()));
+    }
+
+    /**
+     * 替换忽略的表, 其它配置不变
+     *
+     * @param tables 忽略的表
+     * @return 新快照
+     */
+    TenantPluginSnapshot withIgnoreTables(Collection<String> tables) {
+        return new TenantPluginSnapshot(properties, mapperLocations, ignoreMapperClasses, ignoreMapperMethods,
+                ignoreTables(String.join(",", tables)), tableRoutes);
+    }
+
+    /**
+     * 扫描mapper包, 记录需要忽略的mapper类或mapper方法
+     *
+     * @param packageName     mapper包路径
+     * @param ignoreIndex     编译期索引, 没有时为null
+     * @param ignoreIndexOnly 有索引时只读取索引, 不列出包下的类
+     */
+    private static void scanMapperPackage(String packageName, TenantIgnoreIndex ignoreIndex, boolean ignoreIndexOnly,
+                                          Set<String> ignoreMapperClasses, Set<String> ignoreMapperMethods) {
+        Set<String> indexedClasses;
+        Set<Class<? extends Class<?>>> mapperSet;
+        if (ignoreIndex != null && ignoreIndexOnly) {
+            indexedClasses = ignoreIndex.classesIn(packageName);
+            mapperSet = Collections.emptySet();
+        } else {
+            IndexedResolverUtil resolverUtil = new IndexedResolverUtil(ignoreIndex);
+            resolverUtil.find(new ResolverUtil.IsA(Object.class), packageName);
+            indexedClasses = resolverUtil.indexedClasses;
+            mapperSet = resolverUtil.getClasses();
+        }
+
+        //索引中记录的mapper类, 不加载
+        for (String className : indexedClasses) {
+            if (ignoreIndex.isIgnoredType(className)) {
+                ignoreMapperClasses.add(className);
+            }
+            ignoreMapperMethods.addAll(ignoreIndex.ignoredMethods(className));
+            for (String defaultIgnoreMethod : DEFAULT_IGNORE_METHODS) {
+                ignoreMapperMethods.add(className + "." + defaultIgnoreMethod);
+            }
+        }
+
+        //索引之外的mapper类, 加载后反射
+        for (Class<?> mapperClass : mapperSet) {
+
+            //判断是否忽略该mapper类
+            if (AnnotationUtils.findAnnotation(mapperClass, IgnoreTenant.class) != null) {
+                ignoreMapperClasses.add(mapperClass.getCanonicalName());
+            }
+
+            //mapper方法集合
+            Method[] mapperMethods = mapperClass.getMethods();
+            for (Method method : mapperMethods) {
+
+                //判断是否忽略该mapper方法
+                if (AnnotationUtils.findAnnotation(method, IgnoreTenant.class) != null) {
+                    ignoreMapperMethods.add(mapperClass.getCanonicalName() + "." + method.getName());
+                }
+            }
+
+            //忽略主键的mapper方法
+            for (String defaultIgnoreMethod : DEFAULT_IGNORE_METHODS) {
+                ignoreMapperMethods.add(mapperClass.getCanonicalName() + "." + defaultIgnoreMethod);
+            }
+        }
+    }
+
+    /**
+     * 跳过编译期索引中记录的类, 只加载索引之外的类(其它编译批次,未开启索引的模块或jar)
+     */
+    private static final class IndexedResolverUtil extends ResolverUtil<Class<?>> {
+
+        private final TenantIgnoreIndex ignoreIndex;
+
+        /*索引中记录的类名*/
+        private final Set<String> indexedClasses = new HashSet<>();
+
+        IndexedResolverUtil(TenantIgnoreIndex ignoreIndex) {
+            this.ignoreIndex = ignoreIndex;
+        }
+
+        @Override
+        protected void addIfMatching(Test test, String fqn) {
+            if (ignoreIndex != null && fqn.endsWith(".class")) {
+                String binaryName = fqn.substring(0, fqn.length() - ".class".length()).replace('/', '.');
+                if (ignoreIndex.contains(binaryName)) {
+                    indexedClasses.add(binaryName.replace('$', '.'));
+                    return;
+                }
+            }
+            super.addIfMatching(test, fqn);
+        }
+
+    }
+
+    /**
+     * 忽略的表以,分割, 去掉空白和重复
+     */
+    private static String[] ignoreTables(String ignoreTables) {
+        if (StringUtils.isBlank(ignoreTables)) {
+            return new String[0];
+        }
+        Set<String> tables = new LinkedHashSet<>();
+        for (String table : StringUtils.split(ignoreTables, ",")) {
+            if (StringUtils.isNotBlank(table)) {
+                tables.add(table.trim());
+            }
+        }
+        return tables.toArray(StringPool.EMPTY_ARRAY);
+    }
+
+    private static Map<String, String> tableRoutes(Map<String, String> routeTables) {
+        if (routeTables == null || routeTables.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> routes = new HashMap<>();
+        routeTables.forEach((table, route) -> {
+            if (StringUtils.isBlank(route) || !route.contains(TenantPluginContext.TABLE_ROUTE_TENANT)) {
+                throw TenantPluginException.tenantPluginException("Route of table %s must contain %s, got: %s", table, TenantPluginContext.TABLE_ROUTE_TENANT, route);
+            }
+            routes.put(table.trim().toLowerCase(), route.trim());
+        });
+        return Collections.unmodifiableMap(routes);
+    }
+
+}
@@ -1,15 +1,32 @@
 package com.mybatis.plugin.tenant;
 
+import net.sf.jsqlparser.expression.DoubleValue;
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.LongValue;
+import net.sf.jsqlparser.expression.NullValue;
+import net.sf.jsqlparser.expression.StringValue;
+import org.apache.ibatis.cache.CacheKey;
 import org.apache.ibatis.executor.Executor;
 import org.apache.ibatis.executor.parameter.ParameterHandler;
+import org.apache.ibatis.executor.statement.BaseStatementHandler;
+import org.apache.ibatis.executor.statement.RoutingStatementHandler;
 import org.apache.ibatis.executor.statement.StatementHandler;
 import org.apache.ibatis.mapping.BoundSql;
 import org.apache.ibatis.mapping.MappedStatement;
 import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.mapping.SqlSource;
+import org.apache.ibatis.plugin.Plugin;
+import org.apache.ibatis.reflection.DefaultReflectorFactory;
 import org.apache.ibatis.reflection.MetaObject;
+import org.apache.ibatis.reflection.ReflectorFactory;
 import org.apache.ibatis.reflection.SystemMetaObject;
 import org.apache.ibatis.session.Configuration;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -21,45 +38,172 @@ import java.util.Map;
  */
 public class TenantPluginUtils {
 
+    /*BoundSql中记录已改写sql的附加参数名*/
+    public static final String REWRITTEN_PARAMETER = "__tenantRewrittenSql";
+
+    /*BoundSql中记录改写时所用租户ID的附加参数名*/
+    public static final String TENANT_IDS_PARAMETER = "__tenantIds";
+
+    /*SystemMetaObject每次都会新建ReflectorFactory, 这里共用一个以缓存反射信息*/
+    private static final ReflectorFactory REFLECTOR_FACTORY = new DefaultReflectorFactory();
+
+    /*改写路径上的字段访问, 类加载时解析一次, 执行时不再创建MetaObject*/
+    private static final MethodHandle PLUGIN_TARGET = getter(Plugin.class, "target");
+    private static final MethodHandle ROUTING_DELEGATE = getter(RoutingStatementHandler.class, "delegate");
+    private static final MethodHandle HANDLER_PARAMETER_HANDLER = getter(BaseStatementHandler.class, "parameterHandler");
+    private static final MethodHandle HANDLER_MAPPED_STATEMENT = getter(BaseStatementHandler.class, "mappedStatement");
+    private static final MethodHandle HANDLER_EXECUTOR = getter(BaseStatementHandler.class, "executor");
+    private static final MethodHandle HANDLER_BOUND_SQL = getter(BaseStatementHandler.class, "boundSql");
+    private static final MethodHandle HANDLER_CONFIGURATION = getter(BaseStatementHandler.class, "configuration");
+    private static final MethodHandle BOUND_SQL_ADDITIONAL_PARAMETERS = getter(BoundSql.class, "additionalParameters");
+    private static final MethodHandle BOUND_SQL_SET_SQL = setter(BoundSql.class, "sql");
+    private static final MethodHandle BOUND_SQL_SET_PARAMETER_MAPPINGS = setter(BoundSql.class, "parameterMappings");
+    private static final MethodHandle CACHE_KEY_UPDATE_LIST = getter(CacheKey.class, "updateList");
+
     public static <T> T realTarget(Object target) {
-        if (Proxy.isProxyClass(target.getClass())) {
-            MetaObject metaObject = SystemMetaObject.forObject(target);
-            return realTarget(metaObject.getValue("h.target"));
+        while (Proxy.isProxyClass(target.getClass())) {
+            InvocationHandler h = Proxy.getInvocationHandler(target);
+            target = h instanceof Plugin ? invokeGetter(PLUGIN_TARGET, h) : metaObject(h).getValue("target");
         }
         return (T) target;
     }
 
+    private static MethodHandle getter(Class<?> type, String name) {
+        try {
+            return MethodHandles.lookup().unreflectGetter(field(type, name)).asType(MethodType.methodType(Object.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw TenantPluginException.tenantPluginException("Failed to access %s.%s", e, type.getName(), name);
+        }
+    }
+
+    private static MethodHandle setter(Class<?> type, String name) {
+        try {
+            return MethodHandles.lookup().unreflectSetter(field(type, name)).asType(MethodType.methodType(void.class, Object.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw TenantPluginException.tenantPluginException("Failed to access %s.%s", e, type.getName(), name);
+        }
+    }
+
+    private static Field field(Class<?> type, String name) throws NoSuchFieldException {
+        Field field = type.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+
+    private static <T> T invokeGetter(MethodHandle getter, Object target) {
+        try {
+            return (T) (Object) getter.invokeExact(target);
+        } catch (Throwable e) {
+            throw TenantPluginException.tenantPluginException("Failed to read field of %s", e, target.getClass().getName());
+        }
+    }
+
+    private static void invokeSetter(MethodHandle setter, Object target, Object value) {
+        try {
+            setter.invokeExact(target, value);
+        } catch (Throwable e) {
+            throw TenantPluginException.tenantPluginException("Failed to write field of %s", e, target.getClass().getName());
+        }
+    }
+
+    private static MetaObject metaObject(Object object) {
+        return MetaObject.forObject(object, SystemMetaObject.DEFAULT_OBJECT_FACTORY, SystemMetaObject.DEFAULT_OBJECT_WRAPPER_FACTORY, REFLECTOR_FACTORY);
+    }
+
+    /**
+     * CacheKey中依次写入的值
+     *
+     * @param cacheKey CacheKey
+     * @return 只读
+     */
+    public static List<Object> cacheKeyUpdates(CacheKey cacheKey) {
+        List<Object> updateList = invokeGetter(CACHE_KEY_UPDATE_LIST, cacheKey);
+        return updateList == null ? Collections.emptyList() : Collections.unmodifiableList(updateList);
+    }
+
     public static void setAdditionalParameter(BoundSql boundSql, Map<String, Object> additionalParameters) {
         additionalParameters.forEach(boundSql::setAdditionalParameter);
     }
 
+    /**
+     * 租户ID表达式转换为可绑定的参数值
+     *
+     * @param tenantId 租户ID表达式
+     * @return 参数值
+     */
+    public static Object tenantIdValue(Expression tenantId) {
+        if (tenantId == null || tenantId instanceof NullValue) {
+            return null;
+        }
+        if (tenantId instanceof StringValue) {
+            return ((StringValue) tenantId).getValue();
+        }
+        if (tenantId instanceof LongValue) {
+            return ((LongValue) tenantId).getValue();
+        }
+        if (tenantId instanceof DoubleValue) {
+            return ((DoubleValue) tenantId).getValue();
+        }
+        throw TenantPluginException.tenantPluginException("Tenant id %s can not be bound as a parameter", tenantId);
+    }
+
+    /**
+     * 构建租户参数映射
+     *
+     * @param configuration Configuration
+     * @param property      参数名
+     * @param tenantId      租户ID
+     * @return ParameterMapping
+     */
+    public static ParameterMapping tenantParameterMapping(Configuration configuration, String property, Object tenantId) {
+        Class<?> javaType = tenantId == null ? Object.class : tenantId.getClass();
+        if (!configuration.getTypeHandlerRegistry().hasTypeHandler(javaType)) {
+            javaType = Object.class;
+        }
+        return new ParameterMapping.Builder(configuration, property, javaType).build();
+    }
+
+    /**
+     * 替换 MappedStatement 的 SqlSource
+     *
+     * @param ms        MappedStatement
+     * @param sqlSource SqlSource
+     */
+    public static void setSqlSource(MappedStatement ms, SqlSource sqlSource) {
+        metaObject(ms).setValue("sqlSource", sqlSource);
+    }
+
     public static MPBoundSql mpBoundSql(BoundSql boundSql) {
         return new MPBoundSql(boundSql);
     }
 
     public static MPStatementHandler mpStatementHandler(StatementHandler statementHandler) {
         statementHandler = realTarget(statementHandler);
-        MetaObject object = SystemMetaObject.forObject(statementHandler);
-        return new MPStatementHandler(SystemMetaObject.forObject(object.getValue("delegate")));
+        Object delegate = statementHandler instanceof RoutingStatementHandler
+                ? invokeGetter(ROUTING_DELEGATE, statementHandler) : metaObject(statementHandler).getValue("delegate");
+        return new MPStatementHandler(delegate);
     }
 
     public static class MPStatementHandler {
+        private final Object delegate;
+        /*非BaseStatementHandler时通过MetaObject访问*/
         private final MetaObject statementHandler;
 
-        MPStatementHandler(MetaObject statementHandler) {
-            this.statementHandler = statementHandler;
+        MPStatementHandler(Object delegate) {
+            this.delegate = delegate;
+            this.statementHandler = delegate instanceof BaseStatementHandler ? null : metaObject(delegate);
         }
 
         public ParameterHandler parameterHandler() {
-            return get("parameterHandler");
+            return get(HANDLER_PARAMETER_HANDLER, "parameterHandler");
         }
 
         public MappedStatement mappedStatement() {
-            return get("mappedStatement");
+            return get(HANDLER_MAPPED_STATEMENT, "mappedStatement");
         }
 
         public Executor executor() {
-            return get("executor");
+            return get(HANDLER_EXECUTOR, "executor");
         }
 
         public MPBoundSql mPBoundSql() {
@@ -67,25 +211,26 @@ public class TenantPluginUtils {
         }
 
         public BoundSql boundSql() {
-            return get("boundSql");
+            return get(HANDLER_BOUND_SQL, "boundSql");
         }
 
         public Configuration configuration() {
-            return get("configuration");
+            return get(HANDLER_CONFIGURATION, "configuration");
         }
 
-        private <T> T get(String property) {
+        private <T> T get(MethodHandle getter, String property) {
+            if (statementHandler == null) {
+                return invokeGetter(getter, delegate);
+            }
             return (T) statementHandler.getValue(property);
         }
     }
 
     public static class MPBoundSql {
-        private final MetaObject boundSql;
         private final BoundSql delegate;
 
         MPBoundSql(BoundSql boundSql) {
             this.delegate = boundSql;
-            this.boundSql = SystemMetaObject.forObject(boundSql);
         }
 
         public String sql() {
@@ -93,7 +238,7 @@ public class TenantPluginUtils {
         }
 
         public void sql(String sql) {
-            boundSql.setValue("sql", sql);
+            invokeSetter(BOUND_SQL_SET_SQL, delegate, sql);
         }
 
         public List<ParameterMapping> parameterMappings() {
@@ -102,19 +247,49 @@ public class TenantPluginUtils {
         }
 
         public void parameterMappings(List<ParameterMapping> parameterMappings) {
-            boundSql.setValue("parameterMappings", Collections.unmodifiableList(parameterMappings));
+            invokeSetter(BOUND_SQL_SET_PARAMETER_MAPPINGS, delegate, Collections.unmodifiableList(parameterMappings));
         }
 
-        public Object parameterObject() {
-            return get("parameterObject");
+        /**
+         * 是否已被租户插件改写
+         * <p>
+         * 记录的是改写后的sql, 其它插件复制附加参数但替换了sql时, 仍会被重新改写
+         * </p>
+         *
+         * @return 当前sql是否为已改写的sql
+         */
+        public boolean rewritten() {
+            Object rewrittenSql = delegate.hasAdditionalParameter(REWRITTEN_PARAMETER) ? delegate.getAdditionalParameter(REWRITTEN_PARAMETER) : null;
+            return rewrittenSql != null && rewrittenSql.equals(delegate.getSql());
         }
 
-        public Map<String, Object> additionalParameters() {
-            return get("additionalParameters");
+        /**
+         * 标记当前sql已被改写
+         *
+         * @param tenantIds 改写时写入的租户ID, sql中没有租户时为空
+         */
+        public void markRewritten(List<Expression> tenantIds) {
+            Map<String, Object> additionalParameters = additionalParameters();
+            additionalParameters.put(REWRITTEN_PARAMETER, delegate.getSql());
+            additionalParameters.put(TENANT_IDS_PARAMETER, tenantIds);
+        }
+
+        /**
+         * 改写时写入的租户ID
+         *
+         * @return 未改写或sql中没有租户时为空
+         */
+        public List<Expression> tenantIds() {
+            Object tenantIds = rewritten() ? additionalParameters().get(TENANT_IDS_PARAMETER) : null;
+            return tenantIds instanceof List ? (List<Expression>) tenantIds : Collections.emptyList();
         }
 
-        private <T> T get(String property) {
-            return (T) boundSql.getValue(property);
+        public Object parameterObject() {
+            return delegate.getParameterObject();
+        }
+
+        public Map<String, Object> additionalParameters() {
+            return invokeGetter(BOUND_SQL_ADDITIONAL_PARAMETERS, delegate);
         }
     }
     
@@ -0,0 +1,92 @@
+package com.mybatis.plugin.tenant;
+
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.mapping.SqlSource;
+
+/**
+ * 预编译的静态sql
+ * <p>
+ * 启动时已完成改写的 RawSqlSource/StaticSqlSource, 执行时只替换租户ID, 拦截器不再解析;
+ * 插件配置刷新后, 下次执行时按新配置重新改写一次
+ * </p>
+ */
+public class TenantPrecompiledSqlSource implements SqlSource {
+
+    private final SqlSource delegate;
+    private final MappedStatement mappedStatement;
+    private final TenantPluginInterceptor interceptor;
+    private volatile Compiled compiled;
+
+    public TenantPrecompiledSqlSource(SqlSource delegate, MappedStatement mappedStatement, TenantSql tenantSql, TenantPluginInterceptor interceptor) {
+        this.delegate = delegate;
+        this.mappedStatement = mappedStatement;
+        this.interceptor = interceptor;
+        this.compiled = new Compiled(TenantPluginContext.snapshot(), tenantSql);
+    }
+
+    @Override
+    public BoundSql getBoundSql(Object parameterObject) {
+        BoundSql boundSql = delegate.getBoundSql(parameterObject);
+        if (TenantPluginContext.isShadowEnable()) {
+            //影子模式不改写
+            interceptor.shadow(mappedStatement, boundSql::getSql, mappedStatement.getSqlCommandType() != SqlCommandType.SELECT);
+            return boundSql;
+        }
+        TenantSql tenantSql = tenantSql(boundSql.getSql());
+        if (tenantSql != null) {
+            interceptor.applyTenantSql(mappedStatement, TenantPluginUtils.mpBoundSql(boundSql), tenantSql);
+        }
+        return boundSql;
+    }
+
+    /**
+     * 当前配置下的改写模板
+     *
+     * @param sql 原sql
+     * @return 插件已停用或mapper已忽略时返回null
+     */
+    private TenantSql tenantSql(String sql) {
+        Compiled current = compiled;
+        TenantPluginSnapshot snapshot = TenantPluginContext.snapshot();
+        if (current.snapshot != snapshot) {
+            TenantSql tenantSql = null;
+            String mapperId = mappedStatement.getId();
+            if (TenantPluginContext.isTenantPluginEnable() && !TenantPluginContext.willIgnoreMapper(mapperId)) {
+                SqlCommandType sct = mappedStatement.getSqlCommandType();
+                tenantSql = sct == SqlCommandType.SELECT ? interceptor.rewriteSingle(sql, mapperId) : interceptor.rewriteMulti(sql, mapperId);
+            }
+            current = new Compiled(snapshot, tenantSql);
+            compiled = current;
+        }
+        return current.tenantSql;
+    }
+
+    public SqlSource getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * 当前配置下的改写模板
+     *
+     * @return 插件已停用或mapper已忽略时返回null
+     */
+    public TenantSql getTenantSql() {
+        return tenantSql(delegate.getBoundSql(null).getSql());
+    }
+
+    /**
+     * 改写模板及其对应的配置快照
+     */
+    private static final class Compiled {
+        private final TenantPluginSnapshot snapshot;
+        private final TenantSql tenantSql;
+
+        Compiled(TenantPluginSnapshot snapshot, TenantSql tenantSql) {
+            this.snapshot = snapshot;
+            this.tenantSql = tenantSql;
+        }
+    }
+
+}
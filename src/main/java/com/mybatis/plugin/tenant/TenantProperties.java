@@ -2,11 +2,20 @@ package com.mybatis.plugin.tenant;
 
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.convert.DurationUnit;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 @Data
-@ConfigurationProperties(prefix = "mybatis.tenant.plugin")
+@ConfigurationProperties(prefix = TenantProperties.PREFIX)
 public class TenantProperties {
 
+    public static final String PREFIX = "mybatis.tenant.plugin";
+
     //插件是否启用
     private Boolean enable = false;
 
@@ -16,7 +25,77 @@ public class TenantProperties {
     //忽略的表以,分割
     private String ignoreTables;
 
+    //按租户路由的表: 表名 -> 路由模板, {tenant}为租户ID, {table}为原表名, 如 tenant_{tenant}.{table} 或 {table}_{tenant}
+    private Map<String, String> routeTables = new LinkedHashMap<>();
+
     //mapper文件位置以,分割
     private String mapperLocations;
 
+    //存在忽略租户的编译期索引时只读取索引,不再列出mapper包下的类; 仅在mapper都由开启索引的编译生成时使用
+    private Boolean ignoreIndexOnly = false;
+
+    //租户ID是否以参数绑定(?)的方式写入sql,默认以字面量写入
+    private Boolean bindParameter = false;
+
+    //简单单表语句是否跳过语法树,直接按词法拼接租户条件
+    private Boolean fastPathEnable = false;
+
+    //多行insert达到该行数时跳过语法树,直接在每行末尾拼接租户ID,0不启用
+    private Integer insertSpliceRows = 0;
+
+    //输出租户字段的派生表和cte是否在外层追加租户条件
+    private Boolean predicatePushdownEnable = false;
+
+    //启动时是否预编译静态sql(RawSqlSource/StaticSqlSource)
+    private Boolean precompileEnable = false;
+
+    //sql解析方式: CALLER在调用线程解析; EXECUTOR配置超时时在共享线程池解析
+    private TenantSqlParser.ParseMode parseMode = TenantSqlParser.ParseMode.CALLER;
+
+    //sql解析超时时间,仅EXECUTOR方式生效,默认不超时
+    @DurationUnit(ChronoUnit.MILLIS)
+    private Duration parseTimeout = Duration.ZERO;
+
+    //多条语句的脚本达到该条数时拆分后并行解析和改写,0不启用
+    private Integer scriptParallelThreshold = 0;
+
+    //并行处理脚本的线程数,默认cpu核数
+    private Integer scriptParallelism;
+
+    //影子模式: 不改写sql,按采样率在后台输出改写结果,用于启用前核对
+    private Boolean shadowEnable = false;
+
+    //影子模式采样率,0~1
+    private Double shadowSampleRate = 0.01;
+
+    //影子模式缓冲区大小,写满时丢弃最旧的记录
+    private Integer shadowBufferSize = 1024;
+
+    //影子模式输出文件,为空时输出到日志
+    private String shadowLogFile;
+
+    //是否启用sql改写缓存
+    private Boolean cacheEnable = false;
+
+    //sql改写缓存最大条数
+    private Integer cacheMaxEntries = 4096;
+
+    //sql改写缓存最大内存
+    private DataSize cacheMaxMemory = DataSize.ofMegabytes(32);
+
+    //缓存前是否折叠空白和 IN (?, ?, ...) 列表,不同长度的列表共用一条缓存
+    private Boolean cacheNormalizeEnable = true;
+
+    //sql改写缓存的磁盘快照文件,启动时加载,定期和关闭时写入,为空时不启用
+    private String cacheSnapshotFile;
+
+    //sql改写缓存快照的写入间隔,不大于0时只在关闭时写入
+    private Duration cacheSnapshotInterval = Duration.ofMinutes(5);
+
+    //存在micrometer时是否记录监控指标
+    private Boolean metricsEnable = true;
+
+    //监控指标中mapperId标签的最大数量,超出的记为OTHER
+    private Integer metricsMaxMapperTags = 200;
+
 }
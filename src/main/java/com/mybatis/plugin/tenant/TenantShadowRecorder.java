@@ -0,0 +1,317 @@
+package com.mybatis.plugin.tenant;
+
+import net.sf.jsqlparser.statement.Statement;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 影子模式记录器
+ * <p>
+ * 1. 影子模式下插件不改写sql, 按采样率记录原sql到无锁环形缓冲区, 未采样的语句只有一次随机数判断
+ * 2. 缓冲区写满时覆盖最旧的记录并计为丢弃, 请求线程不会阻塞
+ * 3. 后台线程定期取出记录, 在后台解析和改写, 按 (mapperId, sql) 去重后输出原sql,改写后sql和差异到日志或文件
+ * 4. 影子模式关闭后后台线程取完剩余记录即退出, 再次采样时重新启动; {@link #close()} 输出剩余记录并停止线程
+ * </p>
+ */
+public class TenantShadowRecorder {
+
+    private static final Log log = LogFactory.getLog(TenantShadowRecorder.class);
+
+    /*后台线程的检查间隔*/
+    private static final long DRAIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    /*去重记录的最大条数*/
+    private static final int MAX_SEEN = 10000;
+
+    private final TenantPluginInterceptor interceptor;
+
+    private final AtomicReferenceArray<Sample> buffer;
+
+    private final int mask;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    /*已输出的 (mapperId, sql), 只在输出时访问*/
+    private final Map<Sample, Boolean> seen = new LinkedHashMap<Sample, Boolean>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sample, Boolean> eldest) {
+            return size() > MAX_SEEN;
+        }
+    };
+
+    private final LongAdder sampled = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+
+    /*输出时持有, 与启停线程的锁分开, 请求线程启动后台线程时不等待输出*/
+    private final Object drainLock = new Object();
+
+    private volatile Thread drainer;
+
+    private volatile boolean closed;
+
+    /**
+     * @param interceptor 拦截器, 后台线程用于改写
+     * @param bufferSize  缓冲区大小, 向上取2的幂
+     */
+    public TenantShadowRecorder(TenantPluginInterceptor interceptor, int bufferSize) {
+        this.interceptor = interceptor;
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize) - 1) << 1;
+        this.buffer = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * 是否采样, 未采样的语句只有这一次随机数判断
+     *
+     * @param sampleRate 采样率 0~1
+     * @return
+     */
+    public static boolean sampled(double sampleRate) {
+        return sampleRate >= 1 || (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+    }
+
+    /**
+     * 记录采样的sql, 不阻塞
+     *
+     * @param mapperId mapperId
+     * @param sql      原sql
+     * @param multi    是否按多条语句解析
+     */
+    public void record(String mapperId, String sql, boolean multi) {
+        if (closed) {
+            return;
+        }
+        sampled.increment();
+        int index = (int) (sequence.getAndIncrement() & mask);
+        if (buffer.getAndSet(index, new Sample(mapperId, sql, multi)) != null) {
+            dropped.increment();
+        }
+        if (drainer == null) {
+            startDrainer();
+        }
+    }
+
+    public long getSampledCount() {
+        return sampled.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    /**
+     * 停止后台线程并输出缓冲区中剩余的记录, 关闭后不再记录
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            thread = drainer;
+            drainer = null;
+        }
+        if (thread != null) {
+            //不中断线程, 中断会关闭正在写入的文件通道
+            LockSupport.unpark(thread);
+            try {
+                thread.join(TimeUnit.NANOSECONDS.toMillis(DRAIN_INTERVAL_NANOS) * 2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        drainQuietly();
+    }
+
+    private synchronized void startDrainer() {
+        if (drainer != null || closed) {
+            return;
+        }
+        Thread thread = new Thread(this::drainLoop, "tenant-shadow-recorder");
+        thread.setDaemon(true);
+        drainer = thread;
+        thread.start();
+    }
+
+    private void drainLoop() {
+        while (true) {
+            LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+            if (closed) {
+                return;
+            }
+            drainQuietly();
+            if (!TenantPluginContext.isShadowEnable() && stopDrainer()) {
+                //先清除线程再取一次, record在清除前写入的记录由这里输出, 之后写入的由record重新启动线程
+                drainQuietly();
+                return;
+            }
+        }
+    }
+
+    private synchronized boolean stopDrainer() {
+        if (drainer != Thread.currentThread()) {
+            return false;
+        }
+        drainer = null;
+        return true;
+    }
+
+    private void drainQuietly() {
+        try {
+            drain();
+        } catch (Throwable e) {
+            log.warn("Tenant shadow recorder failed to drain samples", e);
+        }
+    }
+
+    /**
+     * 取出缓冲区中的记录, 去重后输出
+     */
+    void drain() throws IOException {
+        synchronized (drainLock) {
+            List<String> records = new ArrayList<>();
+            for (int i = 0; i < buffer.length(); i++) {
+                Sample sample = buffer.getAndSet(i, null);
+                if (sample == null || seen.put(sample, Boolean.TRUE) != null) {
+                    continue;
+                }
+                records.add(record(sample));
+            }
+            if (records.isEmpty()) {
+                return;
+            }
+            write(records);
+            written.add(records.size());
+        }
+    }
+
+    private void write(List<String> records) throws IOException {
+        TenantProperties properties = TenantPluginContext.getTenantProperties();
+        String file = properties == null ? null : properties.getShadowLogFile();
+        if (StringUtils.isBlank(file)) {
+            for (String record : records) {
+                log.info(record);
+            }
+            return;
+        }
+        Path path = Paths.get(file);
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (String record : records) {
+                writer.write(record);
+                writer.write(StringPool.NEWLINE);
+            }
+        }
+    }
+
+    /**
+     * 在后台线程解析和改写, 与未改写的解析结果对比, 避免格式化差异
+     */
+    private String record(Sample sample) {
+        StringBuilder sb = new StringBuilder("[tenant shadow] ").append(sample.mapperId).append(StringPool.NEWLINE);
+        sb.append("  original:  ").append(sample.sql).append(StringPool.NEWLINE);
+        try {
+            List<Statement> statements = sample.multi
+                    ? TenantPluginContext.getSqlParser().parseStatements(sample.sql).getStatements()
+                    : Collections.singletonList(TenantPluginContext.getSqlParser().parse(sample.sql));
+            StringBuilder before = new StringBuilder();
+            StringBuilder after = new StringBuilder();
+            for (int i = 0; i < statements.size(); i++) {
+                Statement statement = statements.get(i);
+                if (i > 0) {
+                    before.append(StringPool.SEMICOLON);
+                    after.append(StringPool.SEMICOLON);
+                }
+                before.append(statement);
+                interceptor.processStatement(statement, i, sample.sql, sample.mapperId);
+                after.append(statement);
+            }
+            sb.append("  rewritten: ").append(after).append(StringPool.NEWLINE);
+            sb.append("  diff:      ").append(diff(before.toString(), after.toString()));
+        } catch (Exception e) {
+            sb.append("  error:     ").append(e.getMessage());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 去掉相同的前缀和后缀, 输出变化的部分
+     */
+    static String diff(String before, String after) {
+        if (before.equals(after)) {
+            return "unchanged";
+        }
+        int prefix = 0;
+        int max = Math.min(before.length(), after.length());
+        while (prefix < max && before.charAt(prefix) == after.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix && before.charAt(before.length() - 1 - suffix) == after.charAt(after.length() - 1 - suffix)) {
+            suffix++;
+        }
+        String removed = before.substring(prefix, before.length() - suffix);
+        String added = after.substring(prefix, after.length() - suffix);
+        StringBuilder sb = new StringBuilder("@").append(prefix).append(StringPool.SPACE);
+        if (!removed.isEmpty()) {
+            sb.append("-[").append(removed).append("] ");
+        }
+        return sb.append("+[").append(added).append(']').toString();
+    }
+
+    /**
+     * 采样的sql, 以 (mapperId, sql) 去重
+     */
+    private static final class Sample {
+        private final String mapperId;
+        private final String sql;
+        private final boolean multi;
+
+        Sample(String mapperId, String sql, boolean multi) {
+            this.mapperId = mapperId;
+            this.sql = sql;
+            this.multi = multi;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Sample)) {
+                return false;
+            }
+            Sample sample = (Sample) o;
+            return Objects.equals(mapperId, sample.mapperId) && sql.equals(sample.sql);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mapperId, sql);
+        }
+    }
+
+}
@@ -0,0 +1,479 @@
+package com.mybatis.plugin.tenant;
+
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.LongValue;
+import net.sf.jsqlparser.expression.StringValue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * 改写后的sql模板
+ * <p>
+ * 1. 改写结果中租户ID的位置以 {@link #TENANT_ID} 标记, 租户条件以 {@link #TENANT_CONDITION} 标记,
+ * 按租户路由的库名/表名中租户部分以 {@link #TENANT_NAME} 标记, 模板本身与租户无关, 可以被所有租户共用
+ * 2. 执行时将标记替换为租户ID字面量, 或替换为 ? 并在对应的参数位置绑定租户ID; 库名/表名不能绑定参数, 始终直接替换
+ * 3. 多个租户时租户条件输出为 IN (...), insert的租户ID和路由的表名无法确定, 不允许执行
+ * 4. 按租户渲染的结果做有限缓存, 同一租户重复执行时返回同一个sql实例
+ * 5. 由 {@link TenantSqlShape} 折叠的sql改写得到的模板记录 IN (?) 列表的位置, 执行时按原列表长度展开, 不同长度共用一次解析
+ * </p>
+ */
+public final class TenantSql {
+
+    /*租户ID标记*/
+    public static final String TENANT_ID = "#{tenantId}";
+
+    /*租户条件标记, 包含比较运算符*/
+    public static final String TENANT_CONDITION = "#{tenantCondition}";
+
+    /*库名/表名中的租户标记*/
+    public static final String TENANT_NAME = "#{tenantName}";
+
+    private static final String TENANT_PREFIX = "#{tenant";
+
+    private static final byte VALUE = 0;
+    private static final byte CONDITION = 1;
+    private static final byte NAME = 2;
+
+    /*每个模板按租户缓存的渲染结果数*/
+    private static final int MAX_RENDERED = 64;
+
+    /*每个模板缓存的展开结果数*/
+    private static final int MAX_EXPANDED = 16;
+
+    /*可以写入库名/表名的租户ID*/
+    private static final Pattern TENANT_NAME_PATTERN = Pattern.compile("[A-Za-z0-9_]+");
+
+    private static final int[] EMPTY_INDEXES = new int[0];
+
+    private static final byte[] EMPTY_KINDS = new byte[0];
+
+    /*被标记分割的sql片段*/
+    private final String[] fragments;
+
+    /*每个标记的类型*/
+    private final byte[] kinds;
+
+    /*每个标记之前原sql中 ? 的个数*/
+    private final int[] placeholders;
+
+    /*单个租户时每个租户ID在参数列表中的下标,升序*/
+    private final int[] parameterIndexes;
+
+    /*单个租户时租户ID替换为 ? 的sql, 路由表名保留标记*/
+    private final String parameterizedSql;
+
+    /*是否包含路由的库名/表名*/
+    private final boolean routed;
+
+    /*按租户缓存的渲染结果*/
+    private final Map<String, String> rendered = new ConcurrentHashMap<>();
+
+    /*带标记的sql中折叠的 IN (?) 列表位置, 首次展开时计算*/
+    private volatile int[] inLists;
+
+    /*按列表长度缓存的展开结果*/
+    private final Map<String, TenantSql> expanded = new ConcurrentHashMap<>();
+
+    private TenantSql(String[] fragments, byte[] kinds, int[] placeholders) {
+        this.fragments = fragments;
+        this.kinds = kinds;
+        this.placeholders = placeholders;
+        this.parameterIndexes = parameterIndexes(1);
+        this.routed = contains(kinds, NAME);
+        this.parameterizedSql = join(StringPool.QUESTION_MARK, "= ?", TENANT_NAME);
+    }
+
+    /**
+     * 由带租户标记的sql构建模板
+     *
+     * @param sql 改写后带租户标记的sql
+     * @return sql模板
+     */
+    public static TenantSql compile(String sql) {
+        if (!sql.contains(TENANT_PREFIX)) {
+            return new TenantSql(new String[]{sql}, EMPTY_KINDS, EMPTY_INDEXES);
+        }
+
+        List<String> fragments = new ArrayList<>();
+        List<Byte> kinds = new ArrayList<>();
+        List<Integer> placeholders = new ArrayList<>();
+        int placeholder = 0;
+        int start = 0;
+        int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"' || c == '`') {
+                //路由的库名/表名可能被引号括起来
+                int end = skipQuoted(sql, i, c);
+                if (c == '\'' || sql.indexOf(TENANT_NAME, i) < 0 || sql.indexOf(TENANT_NAME, i) >= end) {
+                    i = end;
+                } else {
+                    i++;
+                }
+            } else if (c == '?') {
+                placeholder++;
+                i++;
+            } else if (c == '#' && sql.startsWith(TENANT_PREFIX, i)) {
+                byte kind;
+                int markLength;
+                if (sql.startsWith(TENANT_ID, i)) {
+                    kind = VALUE;
+                    markLength = TENANT_ID.length();
+                } else if (sql.startsWith(TENANT_CONDITION, i)) {
+                    kind = CONDITION;
+                    markLength = TENANT_CONDITION.length();
+                } else if (sql.startsWith(TENANT_NAME, i)) {
+                    kind = NAME;
+                    markLength = TENANT_NAME.length();
+                } else {
+                    i++;
+                    continue;
+                }
+                fragments.add(sql.substring(start, i));
+                kinds.add(kind);
+                placeholders.add(placeholder);
+                i += markLength;
+                start = i;
+            } else {
+                i++;
+            }
+        }
+        fragments.add(sql.substring(start));
+
+        byte[] kindArray = new byte[kinds.size()];
+        int[] placeholderArray = new int[placeholders.size()];
+        for (int j = 0; j < kindArray.length; j++) {
+            kindArray[j] = kinds.get(j);
+            placeholderArray[j] = placeholders.get(j);
+        }
+        return new TenantSql(fragments.toArray(StringPool.EMPTY_ARRAY), kindArray, placeholderArray);
+    }
+
+    /**
+     * 跳过引号内的内容, 支持重复引号和反斜杠转义
+     *
+     * @return 结束引号之后的位置
+     */
+    static int skipQuoted(String sql, int start, char quote) {
+        int i = start + 1;
+        int length = sql.length();
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\\' && quote == '\'') {
+                i += 2;
+            } else if (c == quote) {
+                if (i + 1 < length && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                } else {
+                    return i + 1;
+                }
+            } else {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 租户ID以字面量写入的sql
+     *
+     * @param tenantId 租户ID
+     * @return sql
+     */
+    public String getSql(Expression tenantId) {
+        if (fragments.length == 1) {
+            return fragments[0];
+        }
+        String literal = String.valueOf(tenantId);
+        String sql = rendered.get(literal);
+        if (sql == null) {
+            sql = join(literal, "= " + literal, routed ? tenantName(tenantId) : null);
+            cache(literal, sql);
+        }
+        return sql;
+    }
+
+    /**
+     * 多个租户ID以字面量写入的sql
+     *
+     * @param tenantIds 租户ID
+     * @return sql
+     */
+    public String getSql(List<Expression> tenantIds) {
+        if (tenantIds.size() == 1) {
+            return getSql(tenantIds.get(0));
+        }
+        checkTenantCount(tenantIds.size());
+        if (fragments.length == 1) {
+            return fragments[0];
+        }
+        StringBuilder in = new StringBuilder("IN (");
+        for (int i = 0; i < tenantIds.size(); i++) {
+            if (i > 0) {
+                in.append(", ");
+            }
+            in.append(tenantIds.get(i));
+        }
+        return join(null, in.append(')').toString(), null);
+    }
+
+    /**
+     * 将折叠的 IN (?) 列表按原长度展开
+     *
+     * @param inListSizes 每个列表的 ? 个数, 同 {@link TenantSqlShape#getInListSizes()}
+     * @return 展开后的模板, 列表个数与模板不一致时返回null
+     */
+    public TenantSql expand(int[] inListSizes) {
+        int[] offsets = inLists;
+        if (offsets == null) {
+            String marked = getMarkedSql();
+            offsets = TenantSqlShape.inLists(marked);
+            inLists = offsets = offsets == null ? EMPTY_INDEXES : offsets;
+        }
+        if (offsets.length != inListSizes.length * 2) {
+            return null;
+        }
+        boolean folded = false;
+        StringBuilder key = new StringBuilder();
+        for (int size : inListSizes) {
+            folded |= size != 1;
+            key.append(size).append(',');
+        }
+        if (!folded) {
+            return this;
+        }
+        TenantSql sql = expanded.get(key.toString());
+        if (sql == null) {
+            String marked = getMarkedSql();
+            StringBuilder sb = new StringBuilder(marked.length() + inListSizes.length * 8);
+            int last = 0;
+            for (int i = 0; i < inListSizes.length; i++) {
+                sb.append(marked, last, offsets[i * 2]).append("(?");
+                for (int j = 1; j < inListSizes[i]; j++) {
+                    sb.append(", ?");
+                }
+                sb.append(')');
+                last = offsets[i * 2 + 1];
+            }
+            sql = compile(sb.append(marked, last, marked.length()).toString());
+            if (expanded.size() >= MAX_EXPANDED) {
+                expanded.clear();
+            }
+            expanded.put(key.toString(), sql);
+        }
+        return sql;
+    }
+
+    /**
+     * 带租户标记的sql, 可以由 {@link #compile(String)} 重新构建模板
+     *
+     * @return sql
+     */
+    public String getMarkedSql() {
+        return join(TENANT_ID, TENANT_CONDITION, TENANT_NAME);
+    }
+
+    /**
+     * 单个租户时租户ID以 ? 占位的sql, 路由的库名/表名保留 {@link #TENANT_NAME} 标记
+     *
+     * @return sql
+     */
+    public String getParameterizedSql() {
+        return parameterizedSql;
+    }
+
+    /**
+     * 租户ID以 ? 占位的sql, 路由的库名/表名替换为租户
+     *
+     * @param tenantIds 租户ID
+     * @return sql
+     */
+    public String getParameterizedSql(List<Expression> tenantIds) {
+        int tenantCount = tenantIds.size();
+        if (tenantCount == 1) {
+            if (!routed) {
+                return parameterizedSql;
+            }
+            String name = tenantName(tenantIds.get(0));
+            String key = StringPool.QUESTION_MARK + name;
+            String sql = rendered.get(key);
+            if (sql == null) {
+                sql = join(StringPool.QUESTION_MARK, "= ?", name);
+                cache(key, sql);
+            }
+            return sql;
+        }
+        checkTenantCount(tenantCount);
+        StringBuilder in = new StringBuilder("IN (");
+        for (int i = 0; i < tenantCount; i++) {
+            in.append(i == 0 ? "?" : ", ?");
+        }
+        return join(null, in.append(')').toString(), null);
+    }
+
+    /**
+     * 单个租户时租户ID在参数列表中的下标
+     *
+     * @return 升序下标
+     */
+    public int[] getParameterIndexes() {
+        return parameterIndexes;
+    }
+
+    /**
+     * 租户ID在参数列表中的下标, 每个租户ID或租户条件标记依次对应 tenantCount 个参数
+     *
+     * @param tenantCount 租户个数
+     * @return 升序下标
+     */
+    public int[] getParameterIndexes(int tenantCount) {
+        if (tenantCount == 1) {
+            return parameterIndexes;
+        }
+        checkTenantCount(tenantCount);
+        return parameterIndexes(tenantCount);
+    }
+
+    /**
+     * 租户标记出现次数
+     *
+     * @return 次数, 0表示没有需要处理的表
+     */
+    public int getTenantCount() {
+        return kinds.length;
+    }
+
+    /**
+     * 是否可以同时查询多个租户, 包含insert租户ID或路由的库名/表名时不可以
+     *
+     * @return 是否只包含租户条件
+     */
+    public boolean isMultiTenantSupported() {
+        for (byte kind : kinds) {
+            if (kind != CONDITION) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 是否包含按租户路由的库名/表名
+     *
+     * @return
+     */
+    public boolean isRouted() {
+        return routed;
+    }
+
+    /**
+     * 模板字符数, 用于估算缓存占用
+     *
+     * @return 字符数
+     */
+    public int length() {
+        return parameterizedSql.length();
+    }
+
+    /**
+     * 写入库名/表名的租户, 只允许字母,数字和下划线
+     *
+     * @param tenantId 租户ID
+     * @return 租户名
+     */
+    public static String tenantName(Expression tenantId) {
+        String name;
+        if (tenantId instanceof StringValue) {
+            name = ((StringValue) tenantId).getValue();
+        } else if (tenantId instanceof LongValue) {
+            name = ((LongValue) tenantId).getStringValue();
+        } else {
+            name = String.valueOf(tenantId);
+        }
+        if (!TENANT_NAME_PATTERN.matcher(name).matches()) {
+            throw TenantPluginException.tenantPluginException("Tenant id %s can not be used in schema or table name", tenantId);
+        }
+        return name;
+    }
+
+    private void checkTenantCount(int tenantCount) {
+        if (tenantCount < 1) {
+            throw TenantPluginException.tenantPluginException("Tenant id is required, sql: %s", parameterizedSql);
+        }
+        if (tenantCount > 1 && !isMultiTenantSupported()) {
+            throw TenantPluginException.tenantPluginException("Insert or routed table requires exactly one tenant id, got %s, sql: %s", tenantCount, parameterizedSql);
+        }
+    }
+
+    private void cache(String key, String sql) {
+        if (rendered.size() >= MAX_RENDERED) {
+            rendered.clear();
+        }
+        rendered.put(key, sql);
+    }
+
+    private int[] parameterIndexes(int tenantCount) {
+        int parameters = 0;
+        for (byte kind : kinds) {
+            if (kind != NAME) {
+                parameters++;
+            }
+        }
+        if (parameters == 0) {
+            return EMPTY_INDEXES;
+        }
+        int[] indexes = new int[parameters * tenantCount];
+        int slot = 0;
+        for (int i = 0; i < kinds.length; i++) {
+            if (kinds[i] == NAME) {
+                continue;
+            }
+            for (int j = 0; j < tenantCount; j++) {
+                indexes[slot * tenantCount + j] = placeholders[i] + slot * tenantCount + j;
+            }
+            slot++;
+        }
+        return indexes;
+    }
+
+    private String join(String tenantId, String condition, String name) {
+        if (fragments.length == 1) {
+            return fragments[0];
+        }
+        StringBuilder sb = new StringBuilder(length(fragments) + condition.length() * (fragments.length - 1));
+        sb.append(fragments[0]);
+        for (int i = 1; i < fragments.length; i++) {
+            byte kind = kinds[i - 1];
+            sb.append(kind == CONDITION ? condition : kind == NAME ? name : tenantId).append(fragments[i]);
+        }
+        return sb.toString();
+    }
+
+    private static boolean contains(byte[] kinds, byte kind) {
+        for (byte k : kinds) {
+            if (k == kind) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int length(String[] fragments) {
+        int length = 0;
+        for (String fragment : fragments) {
+            length += fragment.length();
+        }
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return parameterizedSql;
+    }
+
+}
@@ -0,0 +1,257 @@
+package com.mybatis.plugin.tenant;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * SQL改写缓存
+ * <p>
+ * 1. 以 (mapperId, 原sql, 租户字段, 配置快照代数) 作为key, 缓存改写后的sql模板, 模板与租户无关;
+ * 配置刷新前开始的改写即使在刷新后才写入缓存, 也不会被新配置命中
+ * 2. 按条数和内存上限做LRU淘汰, 分段加锁以降低并发竞争
+ * </p>
+ */
+public class TenantSqlCache {
+
+    /*分段数*/
+    private static final int SEGMENT_COUNT = 16;
+
+    /*每条缓存的固定开销估算(对象头,引用,hash等)*/
+    private static final long ENTRY_OVERHEAD = 96;
+
+    private final Segment[] segments;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public TenantSqlCache(int maxEntries, long maxMemory) {
+        if (maxEntries <= 0 || maxMemory <= 0) {
+            throw TenantPluginException.tenantPluginException("Invalid sql cache size, maxEntries: %s, maxMemory: %s", maxEntries, maxMemory);
+        }
+        //条数太少时不分段,保证上限准确
+        int segmentCount = maxEntries < SEGMENT_COUNT ? 1 : SEGMENT_COUNT;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(Math.max(1, maxEntries / segmentCount), Math.max(1, maxMemory / segmentCount));
+        }
+    }
+
+    /**
+     * 获取改写后的sql模板
+     *
+     * @param key 缓存key
+     * @return 改写后的sql模板, 未命中返回null
+     */
+    public TenantSql get(Key key) {
+        TenantSql value = segmentFor(key).get(key);
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    /**
+     * 缓存改写后的sql模板
+     *
+     * @param key   缓存key
+     * @param value 改写后的sql模板
+     */
+    public void put(Key key, TenantSql value) {
+        evictions.add(segmentFor(key).put(key, value));
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * 遍历缓存, 每个分段先复制再回调, 不持有锁
+     *
+     * @param action 回调
+     */
+    public void forEach(BiConsumer<Key, TenantSql> action) {
+        for (Segment segment : segments) {
+            segment.entries().forEach(action);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long memory() {
+        long memory = 0;
+        for (Segment segment : segments) {
+            memory += segment.memory();
+        }
+        return memory;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * 命中率
+     *
+     * @return 0~1, 没有请求时为0
+     */
+    public double getHitRatio() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0D : (double) hit / total;
+    }
+
+    private Segment segmentFor(Key key) {
+        int h = key.hash;
+        h ^= (h >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    private static long weight(Key key, TenantSql value) {
+        return ENTRY_OVERHEAD + 2L * (key.sql.length() + key.mapperId.length() + value.length());
+    }
+
+    /**
+     * 缓存分段, 访问顺序的LinkedHashMap实现LRU
+     */
+    private static final class Segment {
+        private final int maxEntries;
+        private final long maxMemory;
+        private final LinkedHashMap<Key, TenantSql> map = new LinkedHashMap<>(16, 0.75F, true);
+        private long memory;
+
+        Segment(int maxEntries, long maxMemory) {
+            this.maxEntries = maxEntries;
+            this.maxMemory = maxMemory;
+        }
+
+        synchronized TenantSql get(Key key) {
+            return map.get(key);
+        }
+
+        synchronized int put(Key key, TenantSql value) {
+            long weight = weight(key, value);
+            if (weight > maxMemory) {
+                //单条超过分段上限的sql不缓存
+                return 0;
+            }
+            TenantSql old = map.put(key, value);
+            if (old != null) {
+                memory -= weight(key, old);
+            }
+            memory += weight;
+
+            int evicted = 0;
+            Iterator<Map.Entry<Key, TenantSql>> iterator = map.entrySet().iterator();
+            while ((map.size() > maxEntries || memory > maxMemory) && iterator.hasNext()) {
+                Map.Entry<Key, TenantSql> eldest = iterator.next();
+                memory -= weight(eldest.getKey(), eldest.getValue());
+                iterator.remove();
+                evicted++;
+            }
+            return evicted;
+        }
+
+        synchronized void clear() {
+            map.clear();
+            memory = 0;
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+
+        synchronized Map<Key, TenantSql> entries() {
+            return new LinkedHashMap<>(map);
+        }
+
+        synchronized long memory() {
+            return memory;
+        }
+    }
+
+    /**
+     * 缓存key
+     */
+    public static final class Key {
+        private final String mapperId;
+        private final String sql;
+        private final String column;
+        private final long generation;
+        private final int hash;
+
+        /**
+         * @param mapperId   mapperId
+         * @param sql        原sql
+         * @param column     租户字段
+         * @param generation 改写开始时的配置快照代数
+         */
+        public Key(String mapperId, String sql, String column, long generation) {
+            this.mapperId = mapperId == null ? StringPool.EMPTY : mapperId;
+            this.sql = sql;
+            this.column = column;
+            this.generation = generation;
+            this.hash = Objects.hash(this.mapperId, sql, column, generation);
+        }
+
+        public String getMapperId() {
+            return mapperId;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public String getColumn() {
+            return column;
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hash == key.hash
+                    && generation == key.generation
+                    && mapperId.equals(key.mapperId)
+                    && sql.equals(key.sql)
+                    && Objects.equals(column, key.column);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+}
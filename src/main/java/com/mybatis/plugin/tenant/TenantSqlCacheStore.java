@@ -0,0 +1,335 @@
+package com.mybatis.plugin.tenant;
+
+import net.sf.jsqlparser.statement.Statement;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * sql改写缓存的磁盘快照
+ * <p>
+ * 1. 定期和关闭时将改写缓存写入本地文件, 启动时以内存映射读取, 新实例不需要重新解析即可命中缓存
+ * 2. 文件头记录插件版本,jsqlparser版本和影响改写结果的配置指纹(租户字段,忽略的表,路由的表等), 与当前不一致时整个文件作废;
+ * 插件版本取自构建时写入的 META-INF/mybatis-plugin-tenant.properties, jsqlparser版本取自jar的 Bundle-Version, 无法确定版本时不加载也不写入
+ * 3. 文件末尾记录CRC32校验, 写入时先写临时文件再原子替换, 不完整或损坏的文件不会被加载
+ * </p>
+ */
+public class TenantSqlCacheStore {
+
+    private static final Log log = LogFactory.getLog(TenantSqlCacheStore.class);
+
+    /*文件标识 "TSQL"*/
+    private static final int MAGIC = 0x5453514C;
+
+    /*文件格式版本*/
+    private static final int FORMAT_VERSION = 1;
+
+    /*构建时写入插件版本的资源*/
+    private static final String VERSION_RESOURCE = "/META-INF/mybatis-plugin-tenant.properties";
+
+    /*插件和jsqlparser版本, 无法确定时为null*/
+    private static final String VERSION = resolveVersion();
+
+    private final Path file;
+
+    private final long intervalMillis;
+
+    private volatile ScheduledExecutorService scheduler;
+
+    /**
+     * @param file           快照文件
+     * @param intervalMillis 定期写入的间隔, 不大于0时只在关闭时写入
+     */
+    public TenantSqlCacheStore(Path file, long intervalMillis) {
+        this.file = file;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * 开始定期写入
+     */
+    public synchronized void start() {
+        if (scheduler != null || intervalMillis <= 0 || version() == null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "tenant-sql-cache-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::saveQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止定期写入并写入最后一次快照
+     */
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+        saveQuietly();
+    }
+
+    /**
+     * 启动时加载快照到改写缓存
+     *
+     * @param sqlCache 改写缓存
+     * @return 加载的条数, 文件不存在或已过期时为0
+     */
+    public int load(TenantSqlCache sqlCache) {
+        if (!Files.isRegularFile(file)) {
+            return 0;
+        }
+        if (version() == null) {
+            log.warn("Cannot determine tenant plugin or jsqlparser version, tenant sql cache snapshot " + file + " is disabled");
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 16 || size > Integer.MAX_VALUE) {
+                log.warn("Tenant sql cache snapshot " + file + " is invalid, size: " + size);
+                return 0;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int payload = (int) size - 8;
+            CRC32 crc = new CRC32();
+            byte[] chunk = new byte[8192];
+            for (int position = 0; position < payload; position += chunk.length) {
+                int length = Math.min(chunk.length, payload - position);
+                buffer.get(chunk, 0, length);
+                crc.update(chunk, 0, length);
+            }
+            if (buffer.getLong() != crc.getValue()) {
+                log.warn("Tenant sql cache snapshot " + file + " is corrupted, ignored");
+                return 0;
+            }
+            buffer.rewind();
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                log.warn("Tenant sql cache snapshot " + file + " has unknown format, ignored");
+                return 0;
+            }
+            String version = readString(buffer);
+            String fingerprint = readString(buffer);
+            TenantPluginSnapshot current = TenantPluginContext.snapshot();
+            if (!version().equals(version) || !fingerprint(current).equals(fingerprint)) {
+                log.info("Tenant sql cache snapshot " + file + " is stale, ignored");
+                return 0;
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                String mapperId = readString(buffer);
+                String sql = readString(buffer);
+                String column = readString(buffer);
+                String markedSql = readString(buffer);
+                sqlCache.put(new TenantSqlCache.Key(mapperId, sql, column, current.generation), TenantSql.compile(markedSql));
+            }
+            log.info("Loaded " + count + " rewritten sql from tenant sql cache snapshot " + file);
+            return count;
+        } catch (IOException | BufferUnderflowException e) {
+            log.warn("Failed to load tenant sql cache snapshot " + file, e);
+            return 0;
+        }
+    }
+
+    /**
+     * 写入当前的改写缓存
+     *
+     * @return 写入的条数, 未启用缓存或无法确定版本时为-1
+     * @throws IOException
+     */
+    public int save() throws IOException {
+        TenantSqlCache sqlCache = TenantPluginContext.getSqlCache();
+        if (sqlCache == null || version() == null) {
+            return -1;
+        }
+        //指纹和缓存条目取自同一个配置快照, 只写入该快照代数下开始的改写结果, 不会把旧配置的结果写到新指纹下
+        TenantPluginSnapshot current = TenantPluginContext.snapshot();
+        String fingerprint = fingerprint(current);
+        List<Map.Entry<TenantSqlCache.Key, TenantSql>> entries = new ArrayList<>();
+        sqlCache.forEach((key, value) -> {
+            if (key.getGeneration() == current.generation) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+            }
+        });
+
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            CRC32 crc = new CRC32();
+            try (OutputStream stream = Files.newOutputStream(temp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+                DataOutputStream checked = new DataOutputStream(new CheckedOutputStream(out, crc));
+                checked.writeInt(MAGIC);
+                checked.writeInt(FORMAT_VERSION);
+                writeString(checked, version());
+                writeString(checked, fingerprint);
+                checked.writeInt(entries.size());
+                for (Map.Entry<TenantSqlCache.Key, TenantSql> entry : entries) {
+                    TenantSqlCache.Key key = entry.getKey();
+                    writeString(checked, key.getMapperId());
+                    writeString(checked, key.getSql());
+                    writeString(checked, key.getColumn());
+                    writeString(checked, entry.getValue().getMarkedSql());
+                }
+                checked.flush();
+                out.writeLong(crc.getValue());
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return entries.size();
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (Exception e) {
+            log.warn("Failed to save tenant sql cache snapshot " + file, e);
+        }
+    }
+
+    /**
+     * 插件和jsqlparser版本, 版本变化时改写结果可能不同
+     *
+     * @return 无法确定任一版本时返回null
+     */
+    static String version() {
+        return VERSION;
+    }
+
+    private static String resolveVersion() {
+        String pluginVersion = null;
+        try (InputStream in = TenantSqlCacheStore.class.getResourceAsStream(VERSION_RESOURCE)) {
+            if (in != null) {
+                Properties properties = new Properties();
+                properties.load(in);
+                pluginVersion = properties.getProperty("version");
+            }
+        } catch (IOException e) {
+            log.warn("Failed to read " + VERSION_RESOURCE, e);
+        }
+        //未经过资源过滤时是占位符
+        if (StringUtils.isBlank(pluginVersion) || pluginVersion.startsWith("${")) {
+            return null;
+        }
+        String parserVersion = bundleVersion(Statement.class);
+        return parserVersion == null ? null : pluginVersion + "/" + parserVersion;
+    }
+
+    /**
+     * 类所在jar的版本, jsqlparser的MANIFEST只有 Bundle-Version
+     */
+    private static String bundleVersion(Class<?> type) {
+        URL url = type.getResource(type.getSimpleName() + ".class");
+        if (url == null || !"jar".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            Manifest manifest = ((JarURLConnection) url.openConnection()).getManifest();
+            if (manifest == null) {
+                return null;
+            }
+            Attributes attributes = manifest.getMainAttributes();
+            String version = attributes.getValue("Bundle-Version");
+            return StringUtils.isNotBlank(version) ? version : attributes.getValue(Attributes.Name.IMPLEMENTATION_VERSION);
+        } catch (IOException | ClassCastException e) {
+            log.warn("Failed to read the manifest of " + url, e);
+            return null;
+        }
+    }
+
+    /**
+     * 影响改写结果的配置指纹
+     */
+    static String fingerprint(TenantPluginSnapshot snapshot) {
+        TenantProperties properties = snapshot.properties;
+        StringBuilder sb = new StringBuilder();
+        if (properties != null) {
+            TreeSet<String> ignoreTables = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+            ignoreTables.addAll(Arrays.asList(snapshot.ignoreTables));
+            Map<String, String> routeTables = properties.getRouteTables() == null ? new TreeMap<>() : new TreeMap<>(properties.getRouteTables());
+            sb.append(properties.getColumn()).append('\n')
+                    .append(ignoreTables).append('\n')
+                    .append(routeTables).append('\n')
+                    .append(properties.getFastPathEnable()).append('\n')
+                    .append(properties.getInsertSpliceRows()).append('\n')
+                    .append(properties.getPredicatePushdownEnable());
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw TenantPluginException.tenantPluginException("SHA-256 is not supported", e);
+        }
+    }
+
+    /**
+     * 长度(-1表示null) + UTF-8字节, 不受 writeUTF 64KB 的限制
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(MappedByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
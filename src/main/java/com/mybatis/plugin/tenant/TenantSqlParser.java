@@ -0,0 +1,352 @@
+package com.mybatis.plugin.tenant;
+
+import net.sf.jsqlparser.JSQLParserException;
+import net.sf.jsqlparser.parser.CCJSqlParser;
+import net.sf.jsqlparser.parser.CCJSqlParserUtil;
+import net.sf.jsqlparser.parser.StringProvider;
+import net.sf.jsqlparser.statement.Statement;
+import net.sf.jsqlparser.statement.Statements;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SQL解析入口
+ * <p>
+ * 1. CALLER: 在调用线程解析, 不支持超时
+ * 2. EXECUTOR: 配置了超时时, 提交到共享的有界线程池解析并等待结果; 未配置超时时仍在调用线程解析
+ * 3. 每个线程复用一个 {@link CCJSqlParser}, 解析失败或sql过长时丢弃, 避免残留状态和缓冲区
+ * 4. 同 {@link CCJSqlParserUtil}, 先按简单模式解析, 失败时再按复杂模式重试
+ * 5. 多条语句的脚本可以在有界的 {@link ForkJoinPool} 中并行解析和改写, 首次使用时创建
+ * </p>
+ */
+public class TenantSqlParser {
+
+    /*复用解析器的sql最大长度, 超过时解析器的字符缓冲区不再保留*/
+    private static final int MAX_REUSE_LENGTH = 16 * 1024;
+
+    /*线程池队列长度(每个线程)*/
+    private static final int QUEUE_CAPACITY_PER_THREAD = 64;
+
+    private static final ThreadLocal<ReusableParser> PARSER = new ThreadLocal<>();
+
+    private final ParseMode parseMode;
+
+    private final long parseTimeout;
+
+    /*并行处理脚本的线程数*/
+    private final int scriptParallelism;
+
+    private volatile ExecutorService executor;
+
+    private volatile ForkJoinPool scriptPool;
+
+    /**
+     * @param parseMode    解析方式
+     * @param parseTimeout 超时时间(毫秒), 小于等于0时不超时
+     */
+    public TenantSqlParser(ParseMode parseMode, long parseTimeout) {
+        this(parseMode, parseTimeout, 0);
+    }
+
+    /**
+     * @param parseMode         解析方式
+     * @param parseTimeout      超时时间(毫秒), 小于等于0时不超时
+     * @param scriptParallelism 并行处理脚本的线程数, 小于等于0时为cpu核数
+     */
+    public TenantSqlParser(ParseMode parseMode, long parseTimeout, int scriptParallelism) {
+        this.parseMode = parseMode == null ? ParseMode.CALLER : parseMode;
+        this.parseTimeout = parseTimeout;
+        this.scriptParallelism = scriptParallelism > 0 ? scriptParallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * 解析单条sql
+     *
+     * @param sql sql
+     * @return Statement
+     * @throws JSQLParserException 解析失败或超时
+     */
+    public Statement parse(String sql) throws JSQLParserException {
+        if (useExecutor()) {
+            return await(() -> parseStatement(sql));
+        }
+        return parseStatement(sql);
+    }
+
+    /**
+     * 解析多条sql
+     *
+     * @param sql sql
+     * @return Statements
+     * @throws JSQLParserException 解析失败或超时
+     */
+    public Statements parseStatements(String sql) throws JSQLParserException {
+        if (useExecutor()) {
+            return await(() -> parseMultiStatements(sql));
+        }
+        return parseMultiStatements(sql);
+    }
+
+    /**
+     * 是否与指定的解析方式相同
+     *
+     * @param parseMode         解析方式
+     * @param parseTimeout      超时时间(毫秒)
+     * @param scriptParallelism 并行处理脚本的线程数
+     * @return
+     */
+    public boolean isSame(ParseMode parseMode, long parseTimeout, int scriptParallelism) {
+        return this.parseMode == (parseMode == null ? ParseMode.CALLER : parseMode) && this.parseTimeout == parseTimeout
+                && this.scriptParallelism == (scriptParallelism > 0 ? scriptParallelism : Runtime.getRuntime().availableProcessors());
+    }
+
+    public int getScriptParallelism() {
+        return scriptParallelism;
+    }
+
+    /**
+     * 并行处理脚本的线程池
+     *
+     * @return 首次调用时创建
+     */
+    public ForkJoinPool scriptPool() {
+        ForkJoinPool current = scriptPool;
+        if (current == null) {
+            synchronized (this) {
+                current = scriptPool;
+                if (current == null) {
+                    current = new ForkJoinPool(scriptParallelism, TenantSqlParser::scriptThread, null, false);
+                    scriptPool = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * 关闭共享线程池, 已提交的解析继续完成
+     */
+    public void shutdown() {
+        ExecutorService current = executor;
+        if (current != null) {
+            current.shutdown();
+        }
+        ForkJoinPool pool = scriptPool;
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private static ForkJoinWorkerThread scriptThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("tenant-sql-script-" + thread.getPoolIndex());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private boolean useExecutor() {
+        return parseMode == ParseMode.EXECUTOR && parseTimeout > 0;
+    }
+
+    private <T> T await(Callable<T> task) throws JSQLParserException {
+        Future<T> future;
+        try {
+            future = executor().submit(task);
+        } catch (RejectedExecutionException e) {
+            //线程池已关闭
+            return call(task);
+        }
+        try {
+            return future.get(parseTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            //JavaCC解析器不响应中断, 这里只是尽力取消
+            future.cancel(true);
+            throw new JSQLParserException("Time out occurred after " + parseTimeout + "ms", e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new JSQLParserException("Interrupted while parsing", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof JSQLParserException) {
+                throw (JSQLParserException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new JSQLParserException(cause);
+        }
+    }
+
+    private static <T> T call(Callable<T> task) throws JSQLParserException {
+        try {
+            return task.call();
+        } catch (JSQLParserException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new JSQLParserException(e);
+        }
+    }
+
+    private ExecutorService executor() {
+        ExecutorService current = executor;
+        if (current == null) {
+            synchronized (this) {
+                current = executor;
+                if (current == null) {
+                    int threads = Runtime.getRuntime().availableProcessors();
+                    current = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<>(threads * QUEUE_CAPACITY_PER_THREAD), new ParserThreadFactory(),
+                            TenantSqlParser::rejected);
+                    ((ThreadPoolExecutor) current).allowCoreThreadTimeOut(true);
+                    executor = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * 队列满时在调用线程执行, 线程池关闭后抛出异常, 由调用方改为直接解析
+     */
+    private static void rejected(Runnable task, ThreadPoolExecutor pool) {
+        if (pool.isShutdown()) {
+            throw new RejectedExecutionException("Tenant sql parser executor has been shut down");
+        }
+        task.run();
+    }
+
+    private static Statement parseStatement(String sql) throws JSQLParserException {
+        return parseSimpleFirst(sql, CCJSqlParser::Statement);
+    }
+
+    private static Statements parseMultiStatements(String sql) throws JSQLParserException {
+        return parseSimpleFirst(sql, CCJSqlParser::Statements);
+    }
+
+    /**
+     * 同 {@link CCJSqlParserUtil#parse(String)}, 先按简单模式解析, 失败后嵌套不超过限制时再按复杂模式解析
+     */
+    private static <T> T parseSimpleFirst(String sql, ParseFunction<T> function) throws JSQLParserException {
+        try {
+            return parse(sql, false, function);
+        } catch (JSQLParserException e) {
+            if (getNestingDepth(sql) > CCJSqlParserUtil.ALLOWED_NESTING_DEPTH) {
+                throw e;
+            }
+            return parse(sql, true, function);
+        }
+    }
+
+    private static <T> T parse(String sql, boolean allowComplexParsing, ParseFunction<T> function) throws JSQLParserException {
+        ReusableParser parser = acquire(sql, allowComplexParsing);
+        try {
+            T result = function.apply(parser);
+            release(parser, sql);
+            return result;
+        } catch (Exception e) {
+            throw new JSQLParserException(e);
+        }
+    }
+
+    /**
+     * 取出当前线程的解析器, 取出后其它调用不会再拿到同一个实例(同线程重入时新建)
+     */
+    private static ReusableParser acquire(String sql, boolean allowComplexParsing) {
+        ReusableParser parser = PARSER.get();
+        if (parser == null) {
+            parser = new ReusableParser(sql);
+        } else {
+            PARSER.remove();
+            parser.reset(sql);
+        }
+        parser.withAllowComplexParsing(allowComplexParsing);
+        return parser;
+    }
+
+    /**
+     * 解析成功后归还解析器, 失败时不归还
+     */
+    private static void release(ReusableParser parser, String sql) {
+        if (sql.length() <= MAX_REUSE_LENGTH) {
+            PARSER.set(parser);
+        }
+    }
+
+    /**
+     * 括号嵌套深度, 同 {@link CCJSqlParserUtil#getNestingDepth(String)}, 但不复制字符数组
+     */
+    static int getNestingDepth(String sql) {
+        int maxLevel = 0;
+        int level = 0;
+        for (int i = 0, length = sql.length(); i < length; i++) {
+            char c = sql.charAt(i);
+            if (c == '(') {
+                level++;
+            } else if (c == ')') {
+                if (maxLevel < level) {
+                    maxLevel = level;
+                }
+                level--;
+            }
+        }
+        return maxLevel;
+    }
+
+    /**
+     * 解析方式
+     */
+    public enum ParseMode {
+
+        /**
+         * 在调用线程解析
+         */
+        CALLER,
+
+        /**
+         * 在共享线程池解析, 支持超时
+         */
+        EXECUTOR
+
+    }
+
+    /**
+     * 可重置的解析器, ReInit不会重置参数序号和错误列表
+     */
+    private static final class ReusableParser extends CCJSqlParser {
+
+        ReusableParser(String sql) {
+            super(new StringProvider(sql));
+        }
+
+        void reset(String sql) {
+            ReInit(new StringProvider(sql));
+            jdbcParameterIndex = 0;
+            errorRecovery = false;
+            parseErrors.clear();
+        }
+    }
+
+    @FunctionalInterface
+    private interface ParseFunction<T> {
+
+        T apply(CCJSqlParser parser) throws Exception;
+    }
+
+    private static final class ParserThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger index = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "tenant-sql-parser-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+package com.mybatis.plugin.tenant;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.ibatis.builder.StaticSqlSource;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.mapping.SqlSource;
+import org.apache.ibatis.scripting.defaults.RawSqlSource;
+import org.apache.ibatis.session.Configuration;
+
+import java.util.*;
+
+/**
+ * 静态sql预编译
+ * <p>
+ * 启动时遍历 MappedStatement, 对 RawSqlSource/StaticSqlSource 这类sql文本不变的语句提前完成改写,
+ * 并替换为 {@link TenantPrecompiledSqlSource}, 执行时拦截器直接跳过
+ * </p>
+ */
+public class TenantSqlPrecompiler {
+
+    private static final Log log = LogFactory.getLog(TenantSqlPrecompiler.class);
+
+    private final TenantPluginInterceptor interceptor;
+
+    public TenantSqlPrecompiler(TenantPluginInterceptor interceptor) {
+        this.interceptor = interceptor;
+    }
+
+    /**
+     * 预编译配置中的静态sql
+     *
+     * @param configuration MyBatis Configuration
+     * @return 预编译成功的语句数
+     */
+    public int precompile(Configuration configuration) {
+        //同一个MappedStatement会以全名和短名各存一次,短名冲突时为Ambiguity对象
+        Set<MappedStatement> mappedStatements = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Object ms : configuration.getMappedStatements()) {
+            if (ms instanceof MappedStatement) {
+                mappedStatements.add((MappedStatement) ms);
+            }
+        }
+
+        int precompiled = 0;
+        Map<String, String> failures = new TreeMap<>();
+        for (MappedStatement ms : mappedStatements) {
+            if (!isStaticSqlSource(ms.getSqlSource()) || TenantPluginContext.willIgnoreMapper(ms.getId())) {
+                continue;
+            }
+            SqlCommandType sct = ms.getSqlCommandType();
+            boolean multi = sct == SqlCommandType.INSERT || sct == SqlCommandType.UPDATE || sct == SqlCommandType.DELETE;
+            if (!multi && sct != SqlCommandType.SELECT) {
+                continue;
+            }
+            try {
+                //静态sql与参数无关
+                BoundSql boundSql = ms.getSqlSource().getBoundSql(null);
+                TenantSql tenantSql = multi ? interceptor.rewriteMulti(boundSql.getSql(), ms.getId()) : interceptor.rewriteSingle(boundSql.getSql(), ms.getId());
+                TenantPluginUtils.setSqlSource(ms, new TenantPrecompiledSqlSource(ms.getSqlSource(), ms, tenantSql, interceptor));
+                precompiled++;
+            } catch (Exception e) {
+                failures.put(ms.getId(), e.getMessage());
+            }
+        }
+
+        log.info(String.format("Tenant plugin precompiled %s static statements", precompiled));
+        if (!failures.isEmpty()) {
+            StringBuilder sb = new StringBuilder(String.format("Tenant plugin failed to precompile %s statements, they will be rewritten at runtime:", failures.size()));
+            failures.forEach((id, message) -> sb.append(StringPool.NEWLINE).append(id).append(StringPool.COLON).append(StringPool.SPACE).append(message));
+            log.warn(sb.toString());
+        }
+        return precompiled;
+    }
+
+    private static boolean isStaticSqlSource(SqlSource sqlSource) {
+        return sqlSource instanceof RawSqlSource || sqlSource instanceof StaticSqlSource;
+    }
+
+}
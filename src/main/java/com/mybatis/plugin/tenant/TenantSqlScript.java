@@ -0,0 +1,94 @@
+package com.mybatis.plugin.tenant;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 多条语句的脚本
+ * <p>
+ * 1. 在引号,注释和括号之外的 ; 处拆分为单条语句, 用于并行解析和改写
+ * 2. 包含 BEGIN 块(存储过程,触发器等)或括号/引号不完整时不拆分, 由调用方按整个脚本解析
+ * </p>
+ */
+public final class TenantSqlScript {
+
+    private TenantSqlScript() {
+    }
+
+    /**
+     * 拆分脚本
+     *
+     * @param sql 脚本
+     * @return 去掉空白语句后的单条语句, 不能安全拆分时返回null
+     */
+    public static List<String> split(String sql) {
+        List<String> statements = new ArrayList<>();
+        int length = sql.length();
+        int depth = 0;
+        int start = 0;
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"' || c == '`') {
+                int end = TenantSql.skipQuoted(sql, i, c);
+                if (end >= length && sql.charAt(length - 1) != c) {
+                    return null;
+                }
+                i = end;
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                int end = sql.indexOf('\n', i);
+                i = end < 0 ? length : end + 1;
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                int end = sql.indexOf("*/", i + 2);
+                if (end < 0) {
+                    return null;
+                }
+                i = end + 2;
+            } else if (c == '(') {
+                depth++;
+                i++;
+            } else if (c == ')') {
+                if (--depth < 0) {
+                    return null;
+                }
+                i++;
+            } else if (c == ';' && depth == 0) {
+                add(statements, sql.substring(start, i));
+                start = ++i;
+            } else if ((c == 'b' || c == 'B') && isBegin(sql, i)) {
+                return null;
+            } else {
+                i++;
+            }
+        }
+        if (depth != 0) {
+            return null;
+        }
+        add(statements, sql.substring(start));
+        return statements;
+    }
+
+    private static void add(List<String> statements, String statement) {
+        if (!statement.trim().isEmpty()) {
+            statements.add(statement);
+        }
+    }
+
+    /**
+     * 当前位置是否为独立的 BEGIN 关键字
+     */
+    private static boolean isBegin(String sql, int i) {
+        if (!sql.regionMatches(true, i, "begin", 0, 5)) {
+            return false;
+        }
+        if (i > 0 && isIdentifierPart(sql.charAt(i - 1))) {
+            return false;
+        }
+        return i + 5 >= sql.length() || !isIdentifierPart(sql.charAt(i + 5));
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.';
+    }
+
+}
@@ -0,0 +1,196 @@
+package com.mybatis.plugin.tenant;
+
+import java.util.Arrays;
+
+/**
+ * sql形状
+ * <p>
+ * 1. 合并引号外的连续空白, 将只包含 ? 的 IN 列表折叠为 IN (?) 并记录每个列表的长度
+ * 2. 同一条 foreach 语句不同长度的 IN 列表得到相同的形状, 共用一条改写缓存, 执行时再按长度展开
+ * 3. 包含注释的sql不处理, 避免改变注释的范围
+ * </p>
+ */
+public final class TenantSqlShape {
+
+    private static final int[] EMPTY_SIZES = new int[0];
+
+    /*折叠后的sql*/
+    private final String sql;
+
+    /*每个 IN 列表折叠前 ? 的个数, 按出现顺序*/
+    private final int[] inListSizes;
+
+    private TenantSqlShape(String sql, int[] inListSizes) {
+        this.sql = sql;
+        this.inListSizes = inListSizes;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public int[] getInListSizes() {
+        return inListSizes;
+    }
+
+    /**
+     * 计算sql形状
+     *
+     * @param sql 原sql
+     * @return 包含注释或形状与原sql相同时返回null
+     */
+    public static TenantSqlShape of(String sql) {
+        int length = sql.length();
+        StringBuilder sb = new StringBuilder(length);
+        int[] sizes = EMPTY_SIZES;
+        int lists = 0;
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"' || c == '`') {
+                int end = TenantSql.skipQuoted(sql, i, c);
+                sb.append(sql, i, end);
+                i = end;
+            } else if ((c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') || (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') || c == '#') {
+                //注释(mysql的#注释也不处理)
+                return null;
+            } else if (Character.isWhitespace(c)) {
+                while (i < length && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+                if (sb.length() > 0 && i < length) {
+                    sb.append(' ');
+                }
+            } else if ((c == 'i' || c == 'I') && isInKeyword(sql, i)) {
+                int end = inListEnd(sql, i + 2);
+                if (end < 0) {
+                    sb.append(c);
+                    i++;
+                    continue;
+                }
+                if (lists == sizes.length) {
+                    sizes = Arrays.copyOf(sizes, Math.max(4, lists * 2));
+                }
+                sizes[lists++] = countPlaceholders(sql, i + 2, end);
+                sb.append(sql, i, i + 2).append(" (?)");
+                i = end;
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        String shape = sb.toString();
+        if (lists == 0 && shape.equals(sql)) {
+            return null;
+        }
+        return new TenantSqlShape(shape, lists == 0 ? EMPTY_SIZES : Arrays.copyOf(sizes, lists));
+    }
+
+    /**
+     * 查找sql中折叠后的 IN (?) 列表
+     *
+     * @param sql 由形状改写得到的sql
+     * @return 每个列表的括号起止位置 [start, end), 依次排列; 列表不止一个 ? 时返回null
+     */
+    static int[] inLists(String sql) {
+        int[] offsets = new int[8];
+        int count = 0;
+        int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"' || c == '`') {
+                i = TenantSql.skipQuoted(sql, i, c);
+            } else if ((c == 'i' || c == 'I') && isInKeyword(sql, i)) {
+                int end = inListEnd(sql, i + 2);
+                if (end < 0) {
+                    i++;
+                    continue;
+                }
+                int start = sql.indexOf('(', i + 2);
+                if (countPlaceholders(sql, start, end) != 1) {
+                    return null;
+                }
+                if (count + 2 > offsets.length) {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                offsets[count++] = start;
+                offsets[count++] = end;
+                i = end;
+            } else {
+                i++;
+            }
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    /**
+     * 当前位置是否为独立的 IN 关键字
+     */
+    private static boolean isInKeyword(String sql, int i) {
+        if (i + 1 >= sql.length() || (sql.charAt(i + 1) != 'n' && sql.charAt(i + 1) != 'N')) {
+            return false;
+        }
+        if (i > 0 && isIdentifierPart(sql.charAt(i - 1))) {
+            return false;
+        }
+        return i + 2 >= sql.length() || !isIdentifierPart(sql.charAt(i + 2));
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.';
+    }
+
+    /**
+     * IN 之后是否为只包含 ? 的列表
+     *
+     * @return 列表结束括号之后的位置, 不是时返回-1
+     */
+    private static int inListEnd(String sql, int start) {
+        int length = sql.length();
+        int i = skipWhitespace(sql, start);
+        if (i >= length || sql.charAt(i) != '(') {
+            return -1;
+        }
+        boolean expectPlaceholder = true;
+        i++;
+        while (true) {
+            i = skipWhitespace(sql, i);
+            if (i >= length) {
+                return -1;
+            }
+            char c = sql.charAt(i);
+            if (expectPlaceholder) {
+                if (c != '?') {
+                    return -1;
+                }
+                expectPlaceholder = false;
+            } else if (c == ',') {
+                expectPlaceholder = true;
+            } else if (c == ')') {
+                return i + 1;
+            } else {
+                return -1;
+            }
+            i++;
+        }
+    }
+
+    private static int countPlaceholders(String sql, int start, int end) {
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (sql.charAt(i) == '?') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int skipWhitespace(String sql, int i) {
+        while (i < sql.length() && Character.isWhitespace(sql.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+}
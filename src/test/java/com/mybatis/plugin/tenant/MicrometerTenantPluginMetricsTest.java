@@ -0,0 +1,52 @@
+package com.mybatis.plugin.tenant;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.sf.jsqlparser.expression.StringValue;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 缓存指标在读取时获取当前的改写缓存
+ */
+public class MicrometerTenantPluginMetricsTest {
+
+    @After
+    public void clear() {
+        TenantPluginContext.setMetrics(null);
+    }
+
+    @Test
+    public void cacheGaugesFollowContext() {
+        TenantProperties tenantProperties = new TenantProperties();
+        tenantProperties.setEnable(true);
+        tenantProperties.setCacheEnable(false);
+        new TenantPluginContext(tenantProperties);
+
+        //绑定时还没有缓存
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        MicrometerTenantPluginMetrics metrics = new MicrometerTenantPluginMetrics(10);
+        metrics.bindTo(registry);
+        TenantPluginContext.setMetrics(metrics);
+        assertEquals(0, registry.get("tenant.plugin.cache.size").gauge().value(), 0);
+        assertTrue(Double.isNaN(registry.get("tenant.plugin.cache.hit.ratio").gauge().value()));
+
+        tenantProperties.setCacheEnable(true);
+        TenantPluginContext.refresh(tenantProperties);
+        TenantPluginInterceptor interceptor = new TenantPluginInterceptor(() -> new StringValue("t1"));
+        interceptor.parserWithCache("select * from a where id = ?", "m.select", false);
+        interceptor.parserWithCache("select * from a where id = ?", "m.select", false);
+        assertEquals(1, registry.get("tenant.plugin.cache.size").gauge().value(), 0);
+        assertEquals(1, registry.get("tenant.plugin.cache.hits").functionCounter().count(), 0);
+        assertEquals(1, registry.get("tenant.plugin.cache.misses").functionCounter().count(), 0);
+        assertEquals(1, registry.get("tenant.plugin.parse").timer().count());
+
+        //关闭缓存后不再引用原缓存
+        tenantProperties.setCacheEnable(false);
+        TenantPluginContext.refresh(tenantProperties);
+        assertEquals(0, registry.get("tenant.plugin.cache.size").gauge().value(), 0);
+    }
+
+}
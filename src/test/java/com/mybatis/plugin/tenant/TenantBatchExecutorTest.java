@@ -0,0 +1,141 @@
+package com.mybatis.plugin.tenant;
+
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.apache.ibatis.exceptions.PersistenceException;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.ExecutorType;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.SqlSessionFactoryBuilder;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * ExecutorType.BATCH 下批次中途切换租户
+ */
+public class TenantBatchExecutorTest {
+
+    public interface OrderMapper {
+
+        @Update("create table t_order (id bigint primary key, name varchar(64), tenant_id varchar(32))")
+        void createTable();
+
+        @Insert("insert into t_order (id, name) values (#{id}, #{name})")
+        int insert(@Param("id") long id, @Param("name") String name);
+
+        @Select("select count(*) from t_order")
+        long count();
+
+    }
+
+    @After
+    public void clear() {
+        TenantContextHolder.clear();
+    }
+
+    @Test
+    public void literalModeRejectsTenantSwitch() {
+        SqlSessionFactory sqlSessionFactory = sqlSessionFactory("literal_switch", false);
+        try (SqlSession sqlSession = sqlSessionFactory.openSession(ExecutorType.BATCH, false)) {
+            OrderMapper mapper = sqlSession.getMapper(OrderMapper.class);
+            TenantContextHolder.set("t1");
+            mapper.insert(1, "a");
+            mapper.insert(2, "b");
+            TenantContextHolder.set("t2");
+            try {
+                mapper.insert(3, "c");
+                fail("tenant switch within a literal batch must be rejected");
+            } catch (PersistenceException e) {
+                assertTrue(hasCause(e, TenantPluginException.class));
+            }
+            sqlSession.rollback();
+        }
+        assertEquals(0, count(sqlSessionFactory, "t1"));
+        assertEquals(0, count(sqlSessionFactory, "t2"));
+    }
+
+    @Test
+    public void literalModeFlushBeforeTenantSwitch() {
+        SqlSessionFactory sqlSessionFactory = sqlSessionFactory("literal_flush", false);
+        try (SqlSession sqlSession = sqlSessionFactory.openSession(ExecutorType.BATCH, false)) {
+            OrderMapper mapper = sqlSession.getMapper(OrderMapper.class);
+            TenantContextHolder.set("t1");
+            mapper.insert(1, "a");
+            mapper.insert(2, "b");
+            sqlSession.flushStatements();
+            TenantContextHolder.set("t2");
+            mapper.insert(3, "c");
+            sqlSession.commit();
+        }
+        assertEquals(2, count(sqlSessionFactory, "t1"));
+        assertEquals(1, count(sqlSessionFactory, "t2"));
+    }
+
+    @Test
+    public void bindModeBindsTenantPerRow() {
+        SqlSessionFactory sqlSessionFactory = sqlSessionFactory("bind_switch", true);
+        try (SqlSession sqlSession = sqlSessionFactory.openSession(ExecutorType.BATCH, false)) {
+            OrderMapper mapper = sqlSession.getMapper(OrderMapper.class);
+            TenantContextHolder.set("t1");
+            mapper.insert(1, "a");
+            mapper.insert(2, "b");
+            TenantContextHolder.set("t2");
+            mapper.insert(3, "c");
+            sqlSession.commit();
+        }
+        assertEquals(2, count(sqlSessionFactory, "t1"));
+        assertEquals(1, count(sqlSessionFactory, "t2"));
+    }
+
+    private static SqlSessionFactory sqlSessionFactory(String database, boolean bindParameter) {
+        UnpooledDataSource dataSource = new UnpooledDataSource("org.h2.Driver", "jdbc:h2:mem:" + database + ";DB_CLOSE_DELAY=-1", "sa", "");
+        Configuration configuration = new Configuration(new Environment("test", new JdbcTransactionFactory(), dataSource));
+        configuration.addMapper(OrderMapper.class);
+
+        TenantProperties tenantProperties = new TenantProperties();
+        tenantProperties.setEnable(true);
+        tenantProperties.setBindParameter(bindParameter);
+        new TenantPluginContext(tenantProperties);
+        configuration.addInterceptor(new TenantPluginInterceptor(() -> {
+            throw new IllegalStateException("tenant must be set by TenantContextHolder");
+        }));
+        SqlSessionFactory sqlSessionFactory = new SqlSessionFactoryBuilder().build(configuration);
+
+        try (SqlSession sqlSession = sqlSessionFactory.openSession(true)) {
+            TenantContextHolder.set("t0");
+            sqlSession.getMapper(OrderMapper.class).createTable();
+        } finally {
+            TenantContextHolder.clear();
+        }
+        return sqlSessionFactory;
+    }
+
+    private static long count(SqlSessionFactory sqlSessionFactory, String tenantId) {
+        try (SqlSession sqlSession = sqlSessionFactory.openSession(true)) {
+            TenantContextHolder.set(tenantId);
+            return sqlSession.getMapper(OrderMapper.class).count();
+        } finally {
+            TenantContextHolder.clear();
+        }
+    }
+
+    private static boolean hasCause(Throwable e, Class<? extends Throwable> type) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (type.isInstance(cause)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,166 @@
+package com.mybatis.plugin.tenant;
+
+import net.sf.jsqlparser.expression.StringValue;
+import org.apache.ibatis.annotations.CacheNamespace;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.SqlSessionFactoryBuilder;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 按租户分区的二级缓存
+ */
+public class TenantCacheTest {
+
+    @CacheNamespace(implementation = TenantCache.class)
+    public interface DictMapper {
+
+        @Update("create table t_dict (id bigint primary key, tenant_id varchar(32))")
+        void createTable();
+
+        @Update("insert into t_dict (id, tenant_id) values (1, 't1'), (2, 't1'), (3, 't2')")
+        void insertRows();
+
+        @Select("select count(*) from t_dict")
+        long count();
+
+    }
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    /*ITenantDefine的调用次数*/
+    private final AtomicInteger resolved = new AtomicInteger();
+
+    private volatile String tenantId;
+
+    private SqlSessionFactory sqlSessionFactory;
+
+    @Before
+    public void init() {
+        UnpooledDataSource dataSource = new UnpooledDataSource("org.h2.Driver", "jdbc:h2:mem:tenant_cache_" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        Configuration configuration = new Configuration(new Environment("test", new JdbcTransactionFactory(), dataSource));
+        configuration.addMapper(DictMapper.class);
+
+        TenantProperties tenantProperties = new TenantProperties();
+        tenantProperties.setEnable(true);
+        new TenantPluginContext(tenantProperties);
+        configuration.addInterceptor(new TenantPluginInterceptor(() -> {
+            resolved.incrementAndGet();
+            return new StringValue(tenantId);
+        }));
+        sqlSessionFactory = new SqlSessionFactoryBuilder().build(configuration);
+
+        try (SqlSession sqlSession = sqlSessionFactory.openSession(true)) {
+            DictMapper mapper = sqlSession.getMapper(DictMapper.class);
+            mapper.createTable();
+            mapper.insertRows();
+        }
+        TenantCache.getCache(DictMapper.class.getName()).clear();
+        resolved.set(0);
+    }
+
+    @Test
+    public void resolveTenantOncePerQuery() {
+        tenantId = "t1";
+        try (SqlSession sqlSession = sqlSessionFactory.openSession()) {
+            assertEquals(2, sqlSession.getMapper(DictMapper.class).count());
+            sqlSession.commit();
+        }
+        assertEquals(1, resolved.get());
+    }
+
+    @Test
+    public void partitionFromCacheKeyAtCommit() {
+        try (SqlSession sqlSession = sqlSessionFactory.openSession()) {
+            TenantContextHolder.set("t1");
+            assertEquals(2, sqlSession.getMapper(DictMapper.class).count());
+            TenantContextHolder.set("t2");
+            assertEquals(1, sqlSession.getMapper(DictMapper.class).count());
+            //事务提交时租户上下文已清除, ITenantDefine返回其它租户
+            TenantContextHolder.clear();
+            tenantId = "t3";
+            sqlSession.commit();
+        }
+        TenantCache cache = TenantCache.getCache(DictMapper.class.getName());
+        assertEquals(1, cache.getStats("t1").getSize());
+        assertEquals(1, cache.getStats("t2").getSize());
+        assertNull(cache.getStats("t3"));
+
+        TenantCache.evictTenant("t1");
+        assertNull(cache.getStats("t1"));
+        assertEquals(1, cache.getStats("t2").getSize());
+    }
+
+    @Test
+    public void getDoesNotCreatePartition() {
+        TenantCache cache = new TenantCache("tenant_cache_get");
+        assertNull(cache.getObject(key("t1", 1)));
+        assertNull(cache.getStats("t1"));
+        assertEquals(1, cache.getColdMissCount());
+
+        cache.putObject(key("t1", 1), "a");
+        assertEquals("a", cache.getObject(key("t1", 1)));
+        assertNull(cache.getObject(key("t1", 2)));
+        assertEquals(1, cache.getStats("t1").getHitCount());
+        assertEquals(1, cache.getStats("t1").getMissCount());
+        assertEquals(1, cache.getColdMissCount());
+    }
+
+    @Test
+    public void maxTenantsUnderConcurrentPuts() throws Exception {
+        TenantCache cache = new TenantCache("tenant_cache_max_tenants");
+        cache.setMaxTenants(4);
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 2000; i++) {
+                        cache.putObject(key("t" + (thread * 2000 + i), i), i);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        //检查租户数和创建分区不是原子操作时, 并发创建会超出上限
+        assertEquals(4, cache.getStats().size());
+    }
+
+    private static CacheKey key(String tenantId, int id) {
+        CacheKey key = new CacheKey();
+        key.update(id);
+        key.update(TenantCache.partitionKey(Collections.singletonList(new StringValue(tenantId))));
+        return key;
+    }
+
+}
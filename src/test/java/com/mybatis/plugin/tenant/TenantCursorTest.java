@@ -0,0 +1,140 @@
+package com.mybatis.plugin.tenant;
+
+import org.apache.ibatis.annotations.Options;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.SelectProvider;
+import org.apache.ibatis.cursor.Cursor;
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.SqlSessionFactoryBuilder;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Executor.queryCursor 的流式查询
+ * <p>
+ * 在 -Xmx64m 的独立surefire执行中运行(见pom), t_order是按需生成的视图, 每行约2KB, 共约200MB,
+ * 改写或结果处理把结果集整体加载到内存时会OOM
+ * </p>
+ */
+public class TenantCursorTest {
+
+    /*总行数, 每4行中1行属于t2*/
+    private static final int ROWS = 100000;
+
+    /*每行的填充字符数*/
+    private static final int PAYLOAD = 1000;
+
+    private static final int T2_ROWS = ROWS / 4;
+
+    public interface OrderMapper {
+
+        @Options(fetchSize = 100)
+        @Select("select tenant_id, payload from t_order")
+        Cursor<Map<String, Object>> streamRows();
+
+        @SelectProvider(type = OrderProvider.class, method = "streamTenants")
+        Cursor<String> streamTenantsByProvider();
+
+    }
+
+    public static class OrderProvider {
+
+        /*生成sql的次数*/
+        static final AtomicInteger CALLS = new AtomicInteger();
+
+        public static String streamTenants() {
+            CALLS.incrementAndGet();
+            return "select tenant_id from t_order";
+        }
+
+    }
+
+    @After
+    public void clear() {
+        TenantContextHolder.clear();
+    }
+
+    @Test
+    public void literalModeStreamsOwnRows() throws Exception {
+        SqlSessionFactory sqlSessionFactory = sqlSessionFactory("cursor_literal", false, false);
+        assertEquals(ROWS - T2_ROWS, stream(sqlSessionFactory, "t1"));
+        assertEquals(T2_ROWS, stream(sqlSessionFactory, "t2"));
+    }
+
+    @Test
+    public void bindModeStreamsOwnRows() throws Exception {
+        SqlSessionFactory sqlSessionFactory = sqlSessionFactory("cursor_bind", true, false);
+        assertEquals(ROWS - T2_ROWS, stream(sqlSessionFactory, "t1"));
+        assertEquals(T2_ROWS, stream(sqlSessionFactory, "t2"));
+    }
+
+    @Test
+    public void shadowModeSkipsBoundSqlWhenNotSampled() throws Exception {
+        SqlSessionFactory sqlSessionFactory = sqlSessionFactory("cursor_shadow", false, true);
+        OrderProvider.CALLS.set(0);
+        TenantContextHolder.set("t1");
+        int rows = 0;
+        try (SqlSession sqlSession = sqlSessionFactory.openSession();
+             Cursor<String> cursor = sqlSession.getMapper(OrderMapper.class).streamTenantsByProvider()) {
+            for (String ignored : cursor) {
+                rows++;
+            }
+        }
+        //影子模式不改写, 未采样时只有Executor生成一次BoundSql
+        assertEquals(ROWS, rows);
+        assertEquals(1, OrderProvider.CALLS.get());
+    }
+
+    private static int stream(SqlSessionFactory sqlSessionFactory, String tenantId) throws IOException {
+        TenantContextHolder.set(tenantId);
+        int rows = 0;
+        try (SqlSession sqlSession = sqlSessionFactory.openSession();
+             Cursor<Map<String, Object>> cursor = sqlSession.getMapper(OrderMapper.class).streamRows()) {
+            for (Map<String, Object> row : cursor) {
+                assertEquals(tenantId, row.get("TENANT_ID"));
+                assertEquals(PAYLOAD, ((String) row.get("PAYLOAD")).length());
+                rows++;
+            }
+        } finally {
+            TenantContextHolder.clear();
+        }
+        return rows;
+    }
+
+    private static SqlSessionFactory sqlSessionFactory(String database, boolean bindParameter, boolean shadow) throws SQLException {
+        //惰性执行, 视图的行在读取时生成, 不占用堆
+        UnpooledDataSource dataSource = new UnpooledDataSource("org.h2.Driver", "jdbc:h2:mem:" + database + ";DB_CLOSE_DELAY=-1;LAZY_QUERY_EXECUTION=TRUE", "sa", "");
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("create view t_order as select x as id, case when mod(x, 4) = 0 then 't2' else 't1' end as tenant_id, lpad(cast(x as varchar), " + PAYLOAD + ", 'x') as payload"
+                    + " from system_range(1, " + ROWS + ")");
+        }
+        Configuration configuration = new Configuration(new Environment("test", new JdbcTransactionFactory(), dataSource));
+        configuration.addMapper(OrderMapper.class);
+
+        TenantProperties tenantProperties = new TenantProperties();
+        tenantProperties.setEnable(true);
+        tenantProperties.setBindParameter(bindParameter);
+        tenantProperties.setShadowEnable(shadow);
+        tenantProperties.setShadowSampleRate(0D);
+        new TenantPluginContext(tenantProperties);
+        configuration.addInterceptor(new TenantPluginInterceptor(() -> {
+            throw new IllegalStateException("tenant must be set by TenantContextHolder");
+        }));
+        return new SqlSessionFactoryBuilder().build(configuration);
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.mybatis.plugin.tenant;
+
+import net.sf.jsqlparser.JSQLParserException;
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.StringValue;
+import net.sf.jsqlparser.parser.CCJSqlParserUtil;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 词法改写与语法树改写的差异测试
+ * <p>
+ * 词法改写的结果重新解析后必须与语法树改写的结果一致, 语法树无法解析的sql(如与关键字同名的列)不比较
+ * </p>
+ */
+public class TenantFastPathRewriterTest {
+
+    private static final Expression TENANT_ID = new StringValue("T1");
+
+    private static final String[] CORPUS = {
+            "select * from a",
+            "select * from a where x = ?",
+            "SELECT id FROM a t WHERE x = ? OR y = ? ORDER BY id LIMIT 10",
+            "select count(*) from db.a as t where (x = 1 or y = 2) and z = 3 group by k having count(*) > 1",
+            "select * from `a` where x = 'it''s where'",
+            "select * from a limit 1",
+            "select * from a where x = 1 for update",
+            "select * from a where not x = 1",
+            "select * from a where x = 1 or y = 2 and z = 3",
+            "update a set x = ? where id = ?",
+            "update a t set x = ?",
+            "update a set x = ? where a = 1 or b = 2 limit 5",
+            "update a set x = ? limit 5",
+            "delete from a",
+            "delete from a where x = ? or y = ?",
+            "delete from a order by id limit 1",
+            "select * from ig where x = 1",
+            "update ig set x = 1",
+            "select * from rt where x = 1",
+            "select * from a, b",
+            "select * from a join b on a.id = b.id",
+            "select * from a where x in (select 1 from b)",
+            "select * from a where x = 1 -- c",
+            "select * from a use index (i)",
+            "update a, b set a.x = 1",
+            //表名位置的关键字
+            "update ignore a set x = 1 where id = 1",
+            "update low_priority a set x = 1",
+            "update ignore ig set x = 1",
+            "update ignore rt set x = 1",
+            "update low_priority ignore a set x = 1 where id = 1",
+            "delete low_priority from a where id = 1",
+            "delete quick from a where id = 1",
+            "delete ignore from a where id = 1",
+            "select * from only a",
+            //与子句关键字同名的列
+            "select * from a where offset = 1",
+            "select * from a where x = 1 or offset = 2 order by id",
+            "select * from a where x = 1 or `offset` = 2 limit 1",
+            "update a set x = 1 where y = 1 or lock = 2",
+            "update a set x = 1 where y = 1 or `for` = 2",
+            "update a set x = 1 where y = 1 or window = 2",
+            "update a set x = 1 where y = 1 or fetch = 2",
+            "update a set offset = 1",
+            "update a set x = 1, offset = 2 where id = 1",
+            "delete from a where x = 1 or offset = 2",
+            "delete from a where offset = 2 order by id",
+            "select * from a where x = offset limit 1",
+            "select * from a where x = 1 or y = 2 order by offset",
+            "select * from a where x = 1 or y = 2 limit 1 offset 2",
+    };
+
+    private static TenantPluginInterceptor interceptor;
+
+    @BeforeClass
+    public static void init() {
+        TenantProperties properties = new TenantProperties();
+        properties.setEnable(true);
+        properties.setIgnoreTables("ig");
+        properties.setRouteTables(Collections.singletonMap("rt", "rt_" + TenantPluginContext.TABLE_ROUTE_TENANT));
+        //关闭快速改写, interceptor只走语法树
+        properties.setFastPathEnable(false);
+        new TenantPluginContext(properties);
+        interceptor = new TenantPluginInterceptor(() -> TENANT_ID);
+    }
+
+    @Test
+    public void fastPathMatchesAst() throws JSQLParserException {
+        TenantFastPathRewriter rewriter = new TenantFastPathRewriter();
+        List<String> failures = new ArrayList<>();
+        for (String sql : CORPUS) {
+            String fast = rewriter.rewrite(sql);
+            String ast;
+            try {
+                ast = interceptor.rewriteSingle(sql, null).getSql(TENANT_ID);
+            } catch (TenantPluginException e) {
+                continue;
+            }
+            if (fast == null) {
+                continue;
+            }
+            String rendered = CCJSqlParserUtil.parse(TenantSql.compile(fast).getSql(TENANT_ID)).toString();
+            if (!rendered.equals(ast)) {
+                failures.add(sql + "\n  fast: " + rendered + "\n  ast:  " + ast);
+            }
+        }
+        assertTrue(String.join("\n", failures), failures.isEmpty());
+    }
+
+    @Test
+    public void keywordIsNotTableName() {
+        TenantFastPathRewriter rewriter = new TenantFastPathRewriter();
+        assertNull(rewriter.rewrite("update ignore a set x = 1"));
+        assertNull(rewriter.rewrite("update low_priority a set x = 1"));
+        assertNull(rewriter.rewrite("update quick a set x = 1"));
+        assertNull(rewriter.rewrite("select * from only a"));
+    }
+
+    @Test
+    public void clauseKeywordColumnIsNotClause() {
+        TenantFastPathRewriter rewriter = new TenantFastPathRewriter();
+        assertNull(rewriter.rewrite("select * from a where y = 1 or offset = 2"));
+        assertNull(rewriter.rewrite("select * from a where lock = 1 or y = 2"));
+        assertNull(rewriter.rewrite("update a set x = 1 where y = 1 or limit = 2"));
+        assertNull(rewriter.rewrite("update a set x = 1, limit = 2"));
+        //UPDATE中offset不是子句
+        assertEquals("update a set x = 1 where a.tenant_id " + TenantSql.TENANT_CONDITION + " AND (y = 1 or offset = 2)",
+                rewriter.rewrite("update a set x = 1 where y = 1 or offset = 2"));
+        assertEquals("select * from a WHERE a.tenant_id " + TenantSql.TENANT_CONDITION + " limit 1 offset 2",
+                rewriter.rewrite("select * from a limit 1 offset 2"));
+    }
+
+}
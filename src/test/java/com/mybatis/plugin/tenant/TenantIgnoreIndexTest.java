@@ -0,0 +1,135 @@
+package com.mybatis.plugin.tenant;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 编译期索引与运行时反射的忽略结果一致
+ * <p>
+ * 同一组mapper分别在开启索引和不开启索引时编译, 比较构建快照得到的忽略mapper类和方法
+ * </p>
+ */
+public class TenantIgnoreIndexTest {
+
+    private static final String PACKAGE = "tenant.index.sample";
+
+    private static final Map<String, String> SOURCES = new LinkedHashMap<>();
+
+    static {
+        SOURCES.put("IgnoredBase", "@IgnoreTenant public interface IgnoredBase {}");
+        SOURCES.put("ChildMapper", "public interface ChildMapper extends IgnoredBase { void select(); }");
+        SOURCES.put("BaseMapper", "public interface BaseMapper { @IgnoreTenant void selectAll(); void selectOne(); }");
+        //覆盖父接口方法时没有重复标注
+        SOURCES.put("OrderMapper", "public interface OrderMapper extends BaseMapper { @Override void selectAll(); @Global void selectGlobal(); void selectOwn(); }");
+        //以 @IgnoreTenant 为元注解的注解
+        SOURCES.put("Global", "@IgnoreTenant @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) public @interface Global {}");
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void indexMatchesReflection() throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        Assume.assumeNotNull(compiler);
+        Path sources = writeSources();
+        Path indexed = compile(compiler, sources, "indexed", true);
+        Path reflected = compile(compiler, sources, "reflected", false);
+        assertTrue(Files.exists(indexed.resolve(TenantIgnoreIndex.INDEX_LOCATION)));
+
+        TenantPluginSnapshot byReflection = snapshot(reflected, false);
+        TenantPluginSnapshot byIndex = snapshot(indexed, false);
+        TenantPluginSnapshot byIndexOnly = snapshot(indexed, true);
+
+        Set<String> ignoreClasses = new HashSet<>(Arrays.asList(PACKAGE + ".IgnoredBase", PACKAGE + ".ChildMapper", PACKAGE + ".Global"));
+        assertEquals(ignoreClasses, byReflection.ignoreMapperClasses);
+        Set<String> ignoreMethods = new HashSet<>(Arrays.asList(PACKAGE + ".BaseMapper.selectAll", PACKAGE + ".OrderMapper.selectAll", PACKAGE + ".OrderMapper.selectGlobal"));
+        for (String mapper : SOURCES.keySet()) {
+            for (String method : TenantPluginSnapshot.DEFAULT_IGNORE_METHODS) {
+                ignoreMethods.add(PACKAGE + "." + mapper + "." + method);
+            }
+        }
+        assertEquals(ignoreMethods, byReflection.ignoreMapperMethods);
+
+        assertEquals(byReflection.ignoreMapperClasses, byIndex.ignoreMapperClasses);
+        assertEquals(byReflection.ignoreMapperMethods, byIndex.ignoreMapperMethods);
+        assertEquals(byReflection.ignoreMapperClasses, byIndexOnly.ignoreMapperClasses);
+        assertEquals(byReflection.ignoreMapperMethods, byIndexOnly.ignoreMapperMethods);
+    }
+
+    private Path writeSources() throws IOException {
+        Path sources = folder.newFolder("src").toPath();
+        Path dir = sources.resolve(PACKAGE.replace('.', '/'));
+        Files.createDirectories(dir);
+        for (Map.Entry<String, String> entry : SOURCES.entrySet()) {
+            String source = "package " + PACKAGE + ";\nimport " + IgnoreTenant.class.getName() + ";\n" + entry.getValue() + "\n";
+            Files.write(dir.resolve(entry.getKey() + ".java"), source.getBytes(StandardCharsets.UTF_8));
+        }
+        return sources;
+    }
+
+    private Path compile(JavaCompiler compiler, Path sources, String name, boolean index) throws IOException {
+        Path output = folder.newFolder(name).toPath();
+        String classpath = new File(IgnoreTenant.class.getProtectionDomain().getCodeSource().getLocation().getPath()).getPath();
+        List<File> files = new ArrayList<>();
+        for (String source : SOURCES.keySet()) {
+            files.add(sources.resolve(PACKAGE.replace('.', '/')).resolve(source + ".java").toFile());
+        }
+        List<String> options = new ArrayList<>(Arrays.asList("-classpath", classpath, "-d", output.toString()));
+        if (index) {
+            options.add("-A" + IgnoreTenantProcessor.OPTION_ENABLE + "=true");
+        } else {
+            options.add("-proc:none");
+        }
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
+            Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(files);
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, null, options, null, units);
+            if (index) {
+                task.setProcessors(Collections.singletonList(new IgnoreTenantProcessor()));
+            }
+            assertTrue(task.call());
+        }
+        return output;
+    }
+
+    private static TenantPluginSnapshot snapshot(Path classes, boolean ignoreIndexOnly) throws IOException {
+        TenantProperties properties = new TenantProperties();
+        properties.setEnable(true);
+        properties.setMapperLocations(PACKAGE);
+        properties.setIgnoreIndexOnly(ignoreIndexOnly);
+        Thread thread = Thread.currentThread();
+        ClassLoader original = thread.getContextClassLoader();
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[]{classes.toUri().toURL()}, original)) {
+            thread.setContextClassLoader(classLoader);
+            return TenantPluginSnapshot.build(properties, TenantPluginSnapshot.EMPTY);
+        } finally {
+            thread.setContextClassLoader(original);
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+package com.mybatis.plugin.tenant;
+
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.SqlSessionFactoryBuilder;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 折叠的 IN 列表按原长度展开后, 绑定参数模式下租户ID的参数位置
+ */
+public class TenantInListTest {
+
+    /*每个租户的订单数, 两个租户的数据相同, 租户绑定错位时会查到其它租户或类型转换失败*/
+    private static final int ORDERS = 6;
+
+    public interface OrderMapper {
+
+        @Select({"<script>",
+                "select concat(o.tenant_id, ':', o.id) from t_order o",
+                "where o.id in <foreach collection='ids' item='id' open='(' separator=',' close=')'>#{id}</foreach>",
+                "and exists (select 1 from t_item i where i.order_id = o.id",
+                "and i.sku in <foreach collection='skus' item='sku' open='(' separator=',' close=')'>#{sku}</foreach>",
+                "and i.qty &gt;= #{qty})",
+                "and o.name in <foreach collection='names' item='name' open='(' separator=',' close=')'>#{name}</foreach>",
+                "order by o.id limit #{limit}",
+                "</script>"})
+        List<String> select(@Param("ids") List<Long> ids, @Param("skus") List<String> skus, @Param("qty") int qty,
+                            @Param("names") List<String> names, @Param("limit") int limit);
+
+    }
+
+    private SqlSessionFactory sqlSessionFactory;
+
+    @Before
+    public void init() throws SQLException {
+        UnpooledDataSource dataSource = new UnpooledDataSource("org.h2.Driver", "jdbc:h2:mem:tenant_in_list;DB_CLOSE_DELAY=-1", "sa", "");
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("drop table if exists t_order");
+            statement.execute("drop table if exists t_item");
+            statement.execute("create table t_order (id bigint, name varchar(64), tenant_id varchar(32))");
+            statement.execute("create table t_item (order_id bigint, sku varchar(32), qty int, tenant_id varchar(32))");
+            for (String tenantId : new String[]{"t1", "t2"}) {
+                for (int id = 1; id <= ORDERS; id++) {
+                    statement.execute("insert into t_order values (" + id + ", 'a', '" + tenantId + "')");
+                    statement.execute("insert into t_item values (" + id + ", 's" + id + "', " + id + ", '" + tenantId + "')");
+                }
+            }
+        }
+        Configuration configuration = new Configuration(new Environment("test", new JdbcTransactionFactory(), dataSource));
+        configuration.addMapper(OrderMapper.class);
+
+        TenantProperties tenantProperties = new TenantProperties();
+        tenantProperties.setEnable(true);
+        tenantProperties.setBindParameter(true);
+        tenantProperties.setCacheEnable(true);
+        tenantProperties.setCacheNormalizeEnable(true);
+        new TenantPluginContext(tenantProperties);
+        configuration.addInterceptor(new TenantPluginInterceptor(() -> {
+            throw new IllegalStateException("tenant must be set by TenantContextHolder");
+        }));
+        sqlSessionFactory = new SqlSessionFactoryBuilder().build(configuration);
+    }
+
+    @After
+    public void clear() {
+        TenantContextHolder.clear();
+    }
+
+    /**
+     * 子查询的租户条件在 ids,skus 之后, 外层的租户条件在 names 之后, 两个租户参数之间隔着 names
+     */
+    @Test
+    public void bindModeInListsAroundTenant() {
+        List<String> allNames = Arrays.asList("a", "b", "c");
+        for (String tenantId : new String[]{"t1", "t2"}) {
+            TenantContextHolder.set(tenantId);
+            for (int idCount = 1; idCount <= ORDERS; idCount++) {
+                for (int skuCount = 1; skuCount <= ORDERS; skuCount++) {
+                    List<String> names = allNames.subList(0, (idCount + skuCount) % allNames.size() + 1);
+                    List<Long> ids = new ArrayList<>();
+                    for (long id = 1; id <= idCount; id++) {
+                        ids.add(id);
+                    }
+                    List<String> skus = new ArrayList<>();
+                    for (int sku = ORDERS - skuCount + 1; sku <= ORDERS; sku++) {
+                        skus.add("s" + sku);
+                    }
+                    //订单 ids ∩ skus, qty >= 2 排除订单1
+                    List<String> expected = new ArrayList<>();
+                    for (int id = Math.max(2, ORDERS - skuCount + 1); id <= idCount; id++) {
+                        expected.add(tenantId + ":" + id);
+                    }
+                    try (SqlSession sqlSession = sqlSessionFactory.openSession()) {
+                        List<String> actual = sqlSession.getMapper(OrderMapper.class).select(ids, skus, 2, names, ORDERS);
+                        assertEquals("ids=" + idCount + ", skus=" + skuCount + ", names=" + names.size(), expected, actual);
+                    }
+                }
+            }
+        }
+        //不同长度的列表共用一次改写
+        assertEquals(1, TenantPluginContext.getSqlCache().size());
+    }
+
+    @Test
+    public void expandedParameterIndexes() {
+        TenantSql tenantSql = TenantSql.compile("select * from a where x in (?) and a.tenant_id " + TenantSql.TENANT_CONDITION
+                + " and exists (select 1 from b where b.y in (?) and b.tenant_id " + TenantSql.TENANT_CONDITION + ") and z = ?");
+        assertArrayEquals(new int[]{1, 3}, tenantSql.getParameterIndexes());
+        assertArrayEquals(new int[]{3, 7}, tenantSql.expand(new int[]{3, 3}).getParameterIndexes());
+        assertArrayEquals(new int[]{1, 6}, tenantSql.expand(new int[]{1, 4}).getParameterIndexes());
+        assertArrayEquals(new int[]{3, 4, 8, 9}, tenantSql.expand(new int[]{3, 3}).getParameterIndexes(2));
+        //列表个数不一致
+        assertNull(tenantSql.expand(new int[]{3}));
+    }
+
+    @Test
+    public void mismatchedInListsFallBackToRawSql() {
+        String sql = "select * from t_order where id in (?, ?, ?) and name = ?";
+        TenantSqlShape shape = TenantSqlShape.of(sql);
+        TenantSqlCache sqlCache = TenantPluginContext.getSqlCache();
+        TenantPluginSnapshot snapshot = TenantPluginContext.snapshot();
+        //形状对应的改写结果中没有 IN 列表, 无法展开
+        TenantSql mismatched = TenantSql.compile("select * from t_order where id = ? and name = ? and t_order.tenant_id " + TenantSql.TENANT_CONDITION);
+        sqlCache.put(new TenantSqlCache.Key("m.select", shape.getSql(), snapshot.properties.getColumn(), snapshot.generation), mismatched);
+
+        TenantPluginInterceptor interceptor = new TenantPluginInterceptor(() -> {
+            throw new IllegalStateException("tenant is not used by rewrite");
+        });
+        TenantSql tenantSql = interceptor.parserWithCache(sql, "m.select", false);
+        assertNotSame(mismatched, tenantSql);
+        assertArrayEquals(new int[]{4}, tenantSql.getParameterIndexes());
+        //原sql的改写结果按原sql缓存
+        assertEquals(2, sqlCache.size());
+        TenantSqlCache.Key rawKey = new TenantSqlCache.Key("m.select", sql, snapshot.properties.getColumn(), snapshot.generation);
+        assertEquals(tenantSql, sqlCache.get(rawKey));
+    }
+
+}
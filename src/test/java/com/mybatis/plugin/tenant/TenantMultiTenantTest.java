@@ -0,0 +1,251 @@
+package com.mybatis.plugin.tenant;
+
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.StringValue;
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.apache.ibatis.executor.statement.StatementHandler;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Intercepts;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.plugin.Signature;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.SqlSessionFactoryBuilder;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.junit.After;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 一次查询多个租户: 租户条件输出为 IN 列表, insert,路由表和空租户集合抛出异常
+ */
+public class TenantMultiTenantTest {
+
+    private static final List<Expression> TENANT_IDS = Arrays.asList(new StringValue("T1"), new StringValue("T2"));
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    public interface OrderMapper {
+
+        @Select("select concat(o.tenant_id, ':', o.id) from t_order o where o.id <= #{maxId}"
+                + " and exists (select 1 from t_item i where i.order_id = o.id and i.qty >= #{qty}) order by o.tenant_id, o.id")
+        List<String> select(@Param("maxId") long maxId, @Param("qty") int qty);
+
+        @Insert("insert into t_order (id) values (#{id})")
+        int insert(@Param("id") long id);
+
+        @Select("select count(*) from t_route")
+        long countRoute();
+
+    }
+
+    /**
+     * 记录租户插件改写后的 BoundSql, 先于租户插件注册, 在其内层执行
+     */
+    @Intercepts(@Signature(type = StatementHandler.class, method = "prepare", args = {Connection.class, Integer.class}))
+    public static class BoundSqlRecorder implements Interceptor {
+
+        private final List<BoundSql> boundSqls = new ArrayList<>();
+
+        @Override
+        public Object intercept(Invocation invocation) throws Throwable {
+            boundSqls.add(((StatementHandler) invocation.getTarget()).getBoundSql());
+            return invocation.proceed();
+        }
+
+    }
+
+    private final BoundSqlRecorder recorder = new BoundSqlRecorder();
+
+    @After
+    public void clear() {
+        TenantContextHolder.clear();
+    }
+
+    @Test
+    public void literalModeRendersInList() {
+        TenantSql tenantSql = TenantSql.compile("select * from a where a.tenant_id " + TenantSql.TENANT_CONDITION
+                + " and exists (select 1 from b where b.tenant_id " + TenantSql.TENANT_CONDITION + ")");
+        assertEquals("select * from a where a.tenant_id IN ('T1', 'T2') and exists (select 1 from b where b.tenant_id IN ('T1', 'T2'))",
+                tenantSql.getSql(TENANT_IDS));
+        //单个租户仍为等值条件
+        assertEquals("select * from a where a.tenant_id = 'T1' and exists (select 1 from b where b.tenant_id = 'T1')",
+                tenantSql.getSql(TENANT_IDS.subList(0, 1)));
+    }
+
+    @Test
+    public void bindModeRendersPlaceholders() {
+        TenantSql tenantSql = TenantSql.compile("select * from a where x = ? and a.tenant_id " + TenantSql.TENANT_CONDITION
+                + " and exists (select 1 from b where y = ? and b.tenant_id " + TenantSql.TENANT_CONDITION + ")");
+        assertEquals("select * from a where x = ? and a.tenant_id IN (?, ?) and exists (select 1 from b where y = ? and b.tenant_id IN (?, ?))",
+                tenantSql.getParameterizedSql(TENANT_IDS));
+        //每个租户条件依次占用租户个数个参数
+        assertArrayEquals(new int[]{1, 2, 4, 5}, tenantSql.getParameterIndexes(2));
+        assertArrayEquals(new int[]{1, 3}, tenantSql.getParameterIndexes(1));
+    }
+
+    @Test
+    public void literalModeQueriesTenants() throws SQLException {
+        SqlSessionFactory sqlSessionFactory = sqlSessionFactory(false);
+        TenantContextHolder.setAll(Arrays.asList(new StringValue("t1"), new StringValue("t2")));
+        try (SqlSession sqlSession = sqlSessionFactory.openSession()) {
+            assertEquals(Arrays.asList("t1:2", "t1:3", "t2:2", "t2:3"), sqlSession.getMapper(OrderMapper.class).select(3, 2));
+        }
+        String sql = recorder.boundSqls.get(0).getSql();
+        assertTrue(sql, sql.contains("o.tenant_id IN ('t1', 't2')"));
+        assertTrue(sql, sql.contains("i.tenant_id IN ('t1', 't2')"));
+    }
+
+    @Test
+    public void bindModeQueriesTenants() throws SQLException {
+        SqlSessionFactory sqlSessionFactory = sqlSessionFactory(true);
+        //t3 在前, 参数顺序错位时结果不同
+        TenantContextHolder.setAll(Arrays.asList(new StringValue("t3"), new StringValue("t1")));
+        try (SqlSession sqlSession = sqlSessionFactory.openSession()) {
+            assertEquals(Arrays.asList("t1:2", "t1:3", "t3:2", "t3:3"), sqlSession.getMapper(OrderMapper.class).select(3, 2));
+        }
+        BoundSql boundSql = recorder.boundSqls.get(0);
+        assertTrue(boundSql.getSql(), boundSql.getSql().contains("o.tenant_id IN (?, ?)"));
+        assertTrue(boundSql.getSql(), boundSql.getSql().contains("i.tenant_id IN (?, ?)"));
+        List<String> properties = new ArrayList<>();
+        for (ParameterMapping parameterMapping : boundSql.getParameterMappings()) {
+            properties.add(parameterMapping.getProperty());
+        }
+        //外层的租户条件追加在 exists 之后: maxId, 子查询的 qty 和租户, 外层租户
+        assertEquals(Arrays.asList("maxId", "qty", "__tenantId", "__tenantId1", "__tenantId", "__tenantId1"), properties);
+        assertEquals("t3", boundSql.getAdditionalParameter("__tenantId"));
+        assertEquals("t1", boundSql.getAdditionalParameter("__tenantId1"));
+    }
+
+    @Test
+    public void insertRequiresOneTenant() throws SQLException {
+        SqlSessionFactory sqlSessionFactory = sqlSessionFactory(false);
+        TenantContextHolder.setAll(Arrays.asList(new StringValue("t1"), new StringValue("t2")));
+        try (SqlSession sqlSession = sqlSessionFactory.openSession()) {
+            sqlSession.getMapper(OrderMapper.class).insert(9);
+            fail();
+        } catch (RuntimeException e) {
+            assertTenantPluginException(e, "Insert or routed table requires exactly one tenant id");
+        }
+    }
+
+    @Test
+    public void routedTableRequiresOneTenant() throws SQLException {
+        SqlSessionFactory sqlSessionFactory = sqlSessionFactory(true);
+        TenantContextHolder.setAll(Arrays.asList(new StringValue("t1"), new StringValue("t2")));
+        try (SqlSession sqlSession = sqlSessionFactory.openSession()) {
+            sqlSession.getMapper(OrderMapper.class).countRoute();
+            fail();
+        } catch (RuntimeException e) {
+            assertTenantPluginException(e, "Insert or routed table requires exactly one tenant id");
+        }
+    }
+
+    @Test
+    public void emptyTenantsRejected() {
+        TenantSql tenantSql = TenantSql.compile("select * from a where a.tenant_id " + TenantSql.TENANT_CONDITION);
+        try {
+            tenantSql.getSql(Collections.emptyList());
+            fail();
+        } catch (TenantPluginException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Tenant id is required"));
+        }
+        try {
+            tenantSql.getParameterizedSql(Collections.emptyList());
+            fail();
+        } catch (TenantPluginException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Tenant id is required"));
+        }
+        try {
+            tenantSql.getParameterIndexes(0);
+            fail();
+        } catch (TenantPluginException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Tenant id is required"));
+        }
+    }
+
+    @Test
+    public void emptyTenantsFromDefineRejected() throws SQLException {
+        SqlSessionFactory sqlSessionFactory = sqlSessionFactory(false, new ITenantDefine() {
+            @Override
+            public Expression getTenantId() {
+                return null;
+            }
+
+            @Override
+            public List<Expression> getTenantIds() {
+                return Collections.emptyList();
+            }
+        });
+        try (SqlSession sqlSession = sqlSessionFactory.openSession()) {
+            sqlSession.getMapper(OrderMapper.class).select(3, 2);
+            fail();
+        } catch (RuntimeException e) {
+            assertTenantPluginException(e, "Tenant id is required");
+        }
+    }
+
+    private static void assertTenantPluginException(Throwable e, String message) {
+        Throwable cause = e;
+        while (cause != null && !(cause instanceof TenantPluginException)) {
+            cause = cause.getCause();
+        }
+        if (cause == null) {
+            throw new AssertionError("TenantPluginException expected", e);
+        }
+        assertTrue(cause.getMessage(), cause.getMessage().startsWith(message));
+    }
+
+    private SqlSessionFactory sqlSessionFactory(boolean bindParameter) throws SQLException {
+        return sqlSessionFactory(bindParameter, () -> {
+            throw new IllegalStateException("tenant must be set by TenantContextHolder");
+        });
+    }
+
+    private SqlSessionFactory sqlSessionFactory(boolean bindParameter, ITenantDefine tenantDefine) throws SQLException {
+        UnpooledDataSource dataSource = new UnpooledDataSource("org.h2.Driver", "jdbc:h2:mem:tenant_multi_" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("create table t_order (id bigint, tenant_id varchar(32))");
+            statement.execute("create table t_item (order_id bigint, qty int, tenant_id varchar(32))");
+            for (String tenantId : new String[]{"t1", "t2", "t3"}) {
+                for (int id = 1; id <= 4; id++) {
+                    statement.execute("insert into t_order values (" + id + ", '" + tenantId + "')");
+                    statement.execute("insert into t_item values (" + id + ", " + id + ", '" + tenantId + "')");
+                }
+            }
+        }
+        Configuration configuration = new Configuration(new Environment("test", new JdbcTransactionFactory(), dataSource));
+        configuration.addMapper(OrderMapper.class);
+
+        TenantProperties tenantProperties = new TenantProperties();
+        tenantProperties.setEnable(true);
+        tenantProperties.setBindParameter(bindParameter);
+        tenantProperties.setRouteTables(Collections.singletonMap("t_route", "t_route_" + TenantPluginContext.TABLE_ROUTE_TENANT));
+        new TenantPluginContext(tenantProperties);
+        //先注册的插件在内层, 记录改写后的sql
+        configuration.addInterceptor(recorder);
+        configuration.addInterceptor(new TenantPluginInterceptor(tenantDefine));
+        return new SqlSessionFactoryBuilder().build(configuration);
+    }
+
+}
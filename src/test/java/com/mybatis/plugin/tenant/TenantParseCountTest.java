@@ -0,0 +1,161 @@
+package com.mybatis.plugin.tenant;
+
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.cursor.Cursor;
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.ExecutorType;
+import org.apache.ibatis.session.RowBounds;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.SqlSessionFactoryBuilder;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 每次mapper调用只解析一次sql
+ * <p>
+ * 未启用改写缓存和词法改写, 每次解析都会调用一次 recordRewrite 或 parseFailure, 以此统计解析次数
+ * </p>
+ */
+public class TenantParseCountTest {
+
+    public interface OrderMapper {
+
+        @Update("create table t_order (id bigint primary key, name varchar(64), tenant_id varchar(32))")
+        void createTable();
+
+        @Insert("insert into t_order (id, name) values (#{id}, #{name})")
+        int insert(@Param("id") long id, @Param("name") String name);
+
+        @Select("select count(*) from t_order")
+        long count();
+
+        @Select("select name from t_order order by id")
+        Cursor<String> streamNames();
+
+    }
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    /*解析次数*/
+    private final AtomicInteger parses = new AtomicInteger();
+
+    private Configuration configuration;
+
+    private SqlSessionFactory sqlSessionFactory;
+
+    @Before
+    public void init() {
+        UnpooledDataSource dataSource = new UnpooledDataSource("org.h2.Driver", "jdbc:h2:mem:tenant_parse_" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        configuration = new Configuration(new Environment("test", new JdbcTransactionFactory(), dataSource));
+        configuration.addMapper(OrderMapper.class);
+
+        TenantProperties tenantProperties = new TenantProperties();
+        tenantProperties.setEnable(true);
+        new TenantPluginContext(tenantProperties);
+        configuration.addInterceptor(new TenantPluginInterceptor(() -> {
+            throw new IllegalStateException("tenant must be set by TenantContextHolder");
+        }));
+        sqlSessionFactory = new SqlSessionFactoryBuilder().build(configuration);
+
+        TenantContextHolder.set("t1");
+        try (SqlSession sqlSession = sqlSessionFactory.openSession(true)) {
+            OrderMapper mapper = sqlSession.getMapper(OrderMapper.class);
+            mapper.createTable();
+            mapper.insert(1, "a");
+        }
+        TenantPluginContext.setMetrics(new ITenantPluginMetrics() {
+            @Override
+            public void recordRewrite(SqlCommandType commandType, String mapperId, long parseNanos, long rewriteNanos, long deparseNanos) {
+                parses.incrementAndGet();
+            }
+
+            @Override
+            public void parseFailure(String mapperId) {
+                parses.incrementAndGet();
+            }
+        });
+    }
+
+    @After
+    public void clear() {
+        TenantPluginContext.setMetrics(null);
+        TenantContextHolder.clear();
+    }
+
+    @Test
+    public void query() {
+        try (SqlSession sqlSession = sqlSessionFactory.openSession()) {
+            //Executor.query(4) -> Executor.query(6) -> StatementHandler.prepare
+            assertEquals(1, sqlSession.getMapper(OrderMapper.class).count());
+        }
+        assertEquals(1, parses.get());
+    }
+
+    @Test
+    public void queryWithBoundSql() throws Exception {
+        MappedStatement ms = configuration.getMappedStatement(OrderMapper.class.getName() + ".count");
+        Executor executor = configuration.newExecutor(new JdbcTransactionFactory().newTransaction(configuration.getEnvironment().getDataSource(), null, true));
+        try {
+            BoundSql boundSql = ms.getBoundSql(null);
+            CacheKey cacheKey = executor.createCacheKey(ms, null, RowBounds.DEFAULT, boundSql);
+            List<Long> result = executor.query(ms, null, RowBounds.DEFAULT, Executor.NO_RESULT_HANDLER, cacheKey, boundSql);
+            assertEquals(Long.valueOf(1), result.get(0));
+        } finally {
+            executor.close(false);
+        }
+        assertEquals(1, parses.get());
+    }
+
+    @Test
+    public void update() {
+        try (SqlSession sqlSession = sqlSessionFactory.openSession(true)) {
+            assertEquals(1, sqlSession.getMapper(OrderMapper.class).insert(2, "b"));
+        }
+        assertEquals(1, parses.get());
+    }
+
+    @Test
+    public void batch() {
+        try (SqlSession sqlSession = sqlSessionFactory.openSession(ExecutorType.BATCH, false)) {
+            OrderMapper mapper = sqlSession.getMapper(OrderMapper.class);
+            //同一批次复用Statement和改写模板
+            mapper.insert(2, "b");
+            mapper.insert(3, "c");
+            mapper.insert(4, "d");
+            sqlSession.commit();
+        }
+        assertEquals(1, parses.get());
+    }
+
+    @Test
+    public void cursor() throws Exception {
+        int rows = 0;
+        try (SqlSession sqlSession = sqlSessionFactory.openSession();
+             Cursor<String> cursor = sqlSession.getMapper(OrderMapper.class).streamNames()) {
+            for (String ignored : cursor) {
+                rows++;
+            }
+        }
+        assertEquals(1, rows);
+        assertEquals(1, parses.get());
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.mybatis.plugin.tenant;
+
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.SqlSessionFactoryBuilder;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 改写期间配置刷新, 旧配置的改写结果不能被新配置使用
+ */
+public class TenantRefreshTest {
+
+    public interface OrderMapper {
+
+        @Update("create table t_order (id bigint primary key, tenant_id varchar(32))")
+        void createTable();
+
+        @Update("insert into t_order (id, tenant_id) values (1, 't1'), (2, 't1'), (3, 't2')")
+        void insertRows();
+
+        @Select("select count(*) from t_order")
+        long count();
+
+    }
+
+    @After
+    public void clear() {
+        TenantPluginContext.setMetrics(null);
+        TenantContextHolder.clear();
+    }
+
+    @Test
+    public void refreshDuringRewrite() {
+        UnpooledDataSource dataSource = new UnpooledDataSource("org.h2.Driver", "jdbc:h2:mem:tenant_refresh;DB_CLOSE_DELAY=-1", "sa", "");
+        Configuration configuration = new Configuration(new Environment("test", new JdbcTransactionFactory(), dataSource));
+        configuration.addMapper(OrderMapper.class);
+
+        TenantProperties tenantProperties = new TenantProperties();
+        tenantProperties.setEnable(true);
+        tenantProperties.setCacheEnable(true);
+        tenantProperties.setIgnoreTables("t_order");
+        new TenantPluginContext(tenantProperties);
+        configuration.addInterceptor(new TenantPluginInterceptor(() -> {
+            throw new IllegalStateException("tenant must be set by TenantContextHolder");
+        }));
+        SqlSessionFactory sqlSessionFactory = new SqlSessionFactoryBuilder().build(configuration);
+        try (SqlSession sqlSession = sqlSessionFactory.openSession(true)) {
+            OrderMapper mapper = sqlSession.getMapper(OrderMapper.class);
+            mapper.createTable();
+            mapper.insertRows();
+        }
+
+        //第一次改写count完成后, 写入缓存和改写决策之前, t_order不再忽略
+        String countId = OrderMapper.class.getName() + ".count";
+        AtomicBoolean refreshed = new AtomicBoolean();
+        TenantPluginContext.setMetrics(new ITenantPluginMetrics() {
+            @Override
+            public void recordRewrite(SqlCommandType commandType, String mapperId, long parseNanos, long rewriteNanos, long deparseNanos) {
+                if (countId.equals(mapperId) && refreshed.compareAndSet(false, true)) {
+                    TenantPluginContext.refreshIgnoreTables(Collections.emptyList());
+                }
+            }
+        });
+
+        TenantContextHolder.set("t1");
+        try (SqlSession sqlSession = sqlSessionFactory.openSession(true)) {
+            //刷新前开始的改写按旧配置执行
+            assertEquals(3, sqlSession.getMapper(OrderMapper.class).count());
+        }
+        try (SqlSession sqlSession = sqlSessionFactory.openSession(true)) {
+            assertEquals(2, sqlSession.getMapper(OrderMapper.class).count());
+        }
+        assertEquals(TenantDecision.REWRITE, TenantPluginContext.getDecision(configuration.getMappedStatement(countId)));
+    }
+
+}
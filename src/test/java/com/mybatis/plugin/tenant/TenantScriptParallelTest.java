@@ -0,0 +1,168 @@
+package com.mybatis.plugin.tenant;
+
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.StringValue;
+import net.sf.jsqlparser.statement.Statement;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 多语句脚本并行改写与逐条改写的差异测试
+ * <p>
+ * 同一脚本分别在开启和关闭并行阈值时改写, 结果(或异常)必须一致
+ * </p>
+ */
+public class TenantScriptParallelTest {
+
+    private static final Expression TENANT_ID = new StringValue("T1");
+
+    private static final String[] CORPUS = {
+            "select * from a where x = 1; delete from b where y = 2",
+            //引号内的分号
+            "select * from a where x = 'a;b'; update b set y = 'c;' where id = 1; delete from c",
+            "select * from a where x = \"a;b\"; delete from b where y = 'it''s;'",
+            //注释中的分号
+            "select * from a -- c;d\n where x = 1; delete from b -- ;\n",
+            "select * from a /* ; */ where x = 1; delete from b",
+            //嵌套括号
+            "select * from a where x in (select id from b where y in (select id from c where z = ';')); delete from d where (e = 1 or (f = 2 and g = 3))",
+            "insert into a (x, y) select x, (select max(y) from c where c.id = b.id) from b; update d set z = (select 1 from e where e.id = d.id)",
+            "select * from ig; select * from a; update ig set x = 1",
+            "select * from a;",
+            //有语句解析失败时按整个脚本解析
+            "select * from a; this is not sql; delete from b",
+            "select * from a; select * from (b; delete from c",
+    };
+
+    /*改写语句的线程名*/
+    private final Set<String> threads = ConcurrentHashMap.newKeySet();
+
+    private TenantPluginInterceptor interceptor;
+
+    @Before
+    public void init() {
+        interceptor = new TenantPluginInterceptor(() -> TENANT_ID) {
+            @Override
+            public void processStatement(Statement statement, int index, String sql, Object obj) {
+                threads.add(Thread.currentThread().getName());
+                String text = statement.toString();
+                if (text.contains("fail_first")) {
+                    //让后面的语句先失败
+                    sleep();
+                    throw TenantPluginException.tenantPluginException("first failure at %s", index);
+                }
+                if (text.contains("fail_second")) {
+                    throw TenantPluginException.tenantPluginException("second failure at %s", index);
+                }
+                super.processStatement(statement, index, sql, obj);
+            }
+        };
+    }
+
+    @After
+    public void clear() {
+        refresh(0);
+    }
+
+    @Test
+    public void parallelMatchesSequential() {
+        List<String> failures = new ArrayList<>();
+        for (String sql : CORPUS) {
+            refresh(0);
+            String sequential = rewrite(sql);
+            refresh(2);
+            String parallel = rewrite(sql);
+            if (!sequential.equals(parallel)) {
+                failures.add(sql + "\n  parallel:   " + parallel + "\n  sequential: " + sequential);
+            }
+        }
+        assertTrue(String.join("\n", failures), failures.isEmpty());
+    }
+
+    @Test
+    public void scriptIsSplit() {
+        for (String sql : CORPUS) {
+            List<String> scripts = TenantSqlScript.split(sql);
+            if (sql.contains("(b;")) {
+                //括号不配对, 不拆分
+                assertEquals(null, scripts);
+            } else {
+                assertNotNull(sql, scripts);
+            }
+        }
+        assertEquals(2, TenantSqlScript.split(CORPUS[0]).size());
+        assertEquals(3, TenantSqlScript.split(CORPUS[1]).size());
+        assertEquals(2, TenantSqlScript.split(CORPUS[3]).size());
+        assertEquals(2, TenantSqlScript.split(CORPUS[5]).size());
+    }
+
+    @Test
+    public void rewritesOnScriptThreads() {
+        refresh(2);
+        interceptor.rewriteMulti(CORPUS[1], null);
+        assertFalse(threads.isEmpty());
+        for (String thread : threads) {
+            assertTrue(thread, thread.startsWith("tenant-sql-script-"));
+        }
+
+        threads.clear();
+        refresh(0);
+        interceptor.rewriteMulti(CORPUS[1], null);
+        assertEquals(1, threads.size());
+        assertTrue(threads.contains(Thread.currentThread().getName()));
+    }
+
+    /**
+     * 多条语句改写失败时抛出第一条的异常, 与逐条改写一致
+     */
+    @Test
+    public void firstFailureWins() {
+        String sql = "select * from a; update fail_first set x = 1; delete from b; delete from fail_second";
+        refresh(0);
+        String sequential = rewrite(sql);
+        refresh(2);
+        String parallel = rewrite(sql);
+        assertEquals(TenantPluginException.class.getName() + ": first failure at 1", sequential);
+        assertEquals(sequential, parallel);
+        //后面的语句确实在并行线程中先失败
+        assertTrue(threads.stream().anyMatch(thread -> thread.startsWith("tenant-sql-script-")));
+    }
+
+    private String rewrite(String sql) {
+        try {
+            return interceptor.rewriteMulti(sql, null).getSql(TENANT_ID);
+        } catch (RuntimeException e) {
+            return e.getClass().getName() + ": " + e.getMessage();
+        }
+    }
+
+    private static void refresh(int threshold) {
+        TenantProperties properties = new TenantProperties();
+        properties.setEnable(true);
+        properties.setIgnoreTables("ig");
+        properties.setFastPathEnable(false);
+        properties.setScriptParallelThreshold(threshold);
+        properties.setScriptParallelism(4);
+        TenantPluginContext.refresh(properties);
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(200);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
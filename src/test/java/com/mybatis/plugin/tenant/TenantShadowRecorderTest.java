@@ -0,0 +1,130 @@
+package com.mybatis.plugin.tenant;
+
+import net.sf.jsqlparser.expression.StringValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * 影子模式记录器的去重, 差异格式和关闭
+ */
+public class TenantShadowRecorderTest {
+
+    private static final String SELECT = "select * from t_order where id = ?";
+
+    private static final String DELETE = "delete from t_order where id = ?";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TenantPluginContext context;
+
+    private TenantPluginInterceptor interceptor;
+
+    private Path file;
+
+    @Before
+    public void init() {
+        file = folder.getRoot().toPath().resolve("tenant-shadow.log");
+        TenantProperties tenantProperties = new TenantProperties();
+        tenantProperties.setEnable(true);
+        tenantProperties.setShadowEnable(true);
+        tenantProperties.setShadowSampleRate(1D);
+        tenantProperties.setShadowLogFile(file.toString());
+        context = new TenantPluginContext(tenantProperties);
+        interceptor = new TenantPluginInterceptor(() -> new StringValue("t1"));
+    }
+
+    @After
+    public void close() {
+        context.close();
+    }
+
+    @Test
+    public void drainDeduplicates() throws IOException {
+        TenantShadowRecorder recorder = interceptor.shadowRecorder();
+        recorder.record("m.select", SELECT, false);
+        recorder.record("m.select", SELECT, false);
+        recorder.record("m.delete", DELETE, true);
+        recorder.drain();
+        //已输出的 (mapperId, sql) 不再输出
+        recorder.record("m.select", SELECT, false);
+        recorder.drain();
+
+        assertEquals(4, recorder.getSampledCount());
+        assertEquals(2, recorder.getWrittenCount());
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList(
+                "[tenant shadow] m.select",
+                "  original:  " + SELECT,
+                "  rewritten: SELECT * FROM t_order WHERE id = ? AND t_order.tenant_id " + TenantSql.TENANT_CONDITION,
+                "  diff:      @34 +[ AND t_order.tenant_id " + TenantSql.TENANT_CONDITION + "]",
+                "[tenant shadow] m.delete",
+                "  original:  " + DELETE,
+                "  rewritten: DELETE FROM t_order WHERE t_order.tenant_id " + TenantSql.TENANT_CONDITION + " AND id = ?",
+                "  diff:      @26 +[t_order.tenant_id " + TenantSql.TENANT_CONDITION + " AND ]"), lines);
+    }
+
+    @Test
+    public void diff() {
+        assertEquals("unchanged", TenantShadowRecorder.diff("abc", "abc"));
+        assertEquals("@2 +[X]", TenantShadowRecorder.diff("abc", "abXc"));
+        assertEquals("@1 -[b] +[X]", TenantShadowRecorder.diff("abc", "aXc"));
+        assertEquals("@3 -[d] +[]", TenantShadowRecorder.diff("abcd", "abc"));
+    }
+
+    @Test
+    public void closeDrainsAndStops() throws IOException {
+        TenantShadowRecorder recorder = interceptor.shadowRecorder();
+        recorder.record("m.select", SELECT, false);
+        context.close();
+
+        assertEquals(1, recorder.getWrittenCount());
+        assertEquals(4, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+        assertFalse(drainerAlive());
+
+        //关闭后不再记录
+        recorder.record("m.delete", DELETE, true);
+        assertEquals(1, recorder.getSampledCount());
+        assertFalse(drainerAlive());
+    }
+
+    @Test
+    public void stopsWhenShadowDisabled() throws Exception {
+        TenantShadowRecorder recorder = interceptor.shadowRecorder();
+        recorder.record("m.select", SELECT, false);
+
+        TenantProperties tenantProperties = new TenantProperties();
+        tenantProperties.setEnable(true);
+        tenantProperties.setShadowLogFile(file.toString());
+        TenantPluginContext.refresh(tenantProperties);
+        for (int i = 0; i < 50 && drainerAlive(); i++) {
+            Thread.sleep(100);
+        }
+        //影子模式关闭后取完剩余记录即退出
+        assertFalse(drainerAlive());
+        assertEquals(1, recorder.getWrittenCount());
+    }
+
+    private static boolean drainerAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("tenant-shadow-recorder".equals(thread.getName()) && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
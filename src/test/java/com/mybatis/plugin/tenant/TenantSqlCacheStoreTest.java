@@ -0,0 +1,122 @@
+package com.mybatis.plugin.tenant;
+
+import net.sf.jsqlparser.expression.StringValue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * 改写缓存的磁盘快照
+ */
+public class TenantSqlCacheStoreTest {
+
+    private static final String SQL = "select * from t_order where id = ?";
+
+    private static final String MAPPER_ID = "com.example.OrderMapper.selectById";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TenantPluginInterceptor interceptor;
+
+    private Path file;
+
+    @Before
+    public void init() throws IOException {
+        TenantProperties tenantProperties = new TenantProperties();
+        tenantProperties.setEnable(true);
+        tenantProperties.setCacheEnable(true);
+        new TenantPluginContext(tenantProperties);
+        interceptor = new TenantPluginInterceptor(() -> new StringValue("t1"));
+        file = folder.getRoot().toPath().resolve("tenant-sql-cache.bin");
+
+        interceptor.parserWithCache(SQL, MAPPER_ID, false);
+        interceptor.parserWithCache("delete from t_order where id = ?", MAPPER_ID, true);
+    }
+
+    @Test
+    public void versionIsKnown() {
+        //插件版本来自过滤后的资源, jsqlparser版本来自Bundle-Version
+        String version = TenantSqlCacheStore.version();
+        assertNotNull(version);
+        String[] versions = version.split("/");
+        assertEquals(2, versions.length);
+        assertFalse(versions[0].isEmpty() || versions[0].equals("null") || versions[0].startsWith("${"));
+        assertFalse(versions[1].isEmpty() || versions[1].equals("null"));
+    }
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        TenantSqlCacheStore store = new TenantSqlCacheStore(file, 0);
+        assertEquals(2, store.save());
+
+        TenantSqlCache sqlCache = TenantPluginContext.getSqlCache();
+        String expected = sqlCache.get(key(SQL)).getMarkedSql();
+        sqlCache.clear();
+        assertEquals(2, store.load(sqlCache));
+        assertEquals(expected, sqlCache.get(key(SQL)).getMarkedSql());
+    }
+
+    @Test
+    public void fingerprintMismatch() throws IOException {
+        TenantSqlCacheStore store = new TenantSqlCacheStore(file, 0);
+        assertEquals(2, store.save());
+
+        TenantPluginContext.refreshIgnoreTables(Collections.singletonList("t_order"));
+        TenantSqlCache sqlCache = TenantPluginContext.getSqlCache();
+        assertEquals(0, store.load(sqlCache));
+        assertEquals(0, sqlCache.size());
+    }
+
+    @Test
+    public void versionMismatch() throws IOException {
+        TenantSqlCacheStore store = new TenantSqlCacheStore(file, 0);
+        assertEquals(2, store.save());
+
+        //文件头: MAGIC, 格式版本, 版本字符串长度, 版本字符串; 改动版本后重算CRC, 只有版本不一致
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[12] = (byte) (bytes[12] == '9' ? '8' : '9');
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 8);
+        ByteBuffer.wrap(bytes).putLong(bytes.length - 8, crc.getValue());
+        Files.write(file, bytes);
+
+        TenantSqlCache sqlCache = TenantPluginContext.getSqlCache();
+        sqlCache.clear();
+        assertEquals(0, store.load(sqlCache));
+        assertEquals(0, sqlCache.size());
+    }
+
+    @Test
+    public void truncatedFile() throws IOException {
+        TenantSqlCacheStore store = new TenantSqlCacheStore(file, 0);
+        assertEquals(2, store.save());
+
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 20));
+
+        TenantSqlCache sqlCache = TenantPluginContext.getSqlCache();
+        sqlCache.clear();
+        assertEquals(0, store.load(sqlCache));
+        assertEquals(0, sqlCache.size());
+    }
+
+    private static TenantSqlCache.Key key(String sql) {
+        TenantPluginSnapshot snapshot = TenantPluginContext.snapshot();
+        return new TenantSqlCache.Key(MAPPER_ID, sql, snapshot.properties.getColumn(), snapshot.generation);
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.mybatis.plugin.tenant;
+
+import net.sf.jsqlparser.JSQLParserException;
+import net.sf.jsqlparser.expression.StringValue;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 解析入口的简单/复杂模式重试和关闭
+ */
+public class TenantSqlParserTest {
+
+    /*简单模式无法解析, 需要按复杂模式重试*/
+    private static final String COMPLEX = "select * from a where (x = 1) is true";
+
+    @Test
+    public void complexRetry() throws JSQLParserException {
+        for (TenantSqlParser parser : new TenantSqlParser[]{
+                new TenantSqlParser(TenantSqlParser.ParseMode.CALLER, 0),
+                new TenantSqlParser(TenantSqlParser.ParseMode.EXECUTOR, 1000)}) {
+            try {
+                assertEquals("SELECT * FROM a WHERE (x = 1) IS TRUE", parser.parse(COMPLEX).toString());
+                assertEquals(2, parser.parseStatements("select * from a; " + COMPLEX).getStatements().size());
+                assertEquals("SELECT * FROM a", parser.parse("select * from a").toString());
+            } finally {
+                parser.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void reuseAfterFailure() throws JSQLParserException {
+        TenantSqlParser parser = new TenantSqlParser(TenantSqlParser.ParseMode.CALLER, 0);
+        try {
+            parser.parse("select * from where");
+            fail();
+        } catch (JSQLParserException e) {
+            //expected
+        }
+        assertEquals("SELECT * FROM a WHERE x = ?", parser.parse("select * from a where x = ?").toString());
+        assertEquals("SELECT * FROM b WHERE y = ?", parser.parse("select * from b where y = ?").toString());
+    }
+
+    @Test
+    public void closeShutsDownPools() {
+        TenantProperties tenantProperties = new TenantProperties();
+        tenantProperties.setEnable(true);
+        tenantProperties.setScriptParallelThreshold(2);
+        tenantProperties.setScriptParallelism(2);
+        TenantPluginContext context = new TenantPluginContext(tenantProperties);
+        TenantPluginInterceptor interceptor = new TenantPluginInterceptor(() -> new StringValue("t1"));
+        interceptor.rewriteMulti("select * from a; delete from b", null);
+
+        TenantSqlParser parser = TenantPluginContext.getSqlParser();
+        context.close();
+        assertTrue(parser.scriptPool().isShutdown());
+        assertNotSame(parser, TenantPluginContext.getSqlParser());
+
+        //再次刷新时按配置重建
+        TenantPluginContext.refresh(tenantProperties);
+        assertEquals(2, TenantPluginContext.getSqlParser().getScriptParallelism());
+        assertEquals("SELECT * FROM a WHERE a.tenant_id = 't1';DELETE FROM b WHERE b.tenant_id = 't1'",
+                interceptor.parserMulti("select * from a; delete from b", null));
+    }
+
+}